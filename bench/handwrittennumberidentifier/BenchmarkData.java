@@ -0,0 +1,126 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Data sets used by the benchmarks. The MNIST files of the working directory 
+ * are used when they exist, otherwise synthetic IDX files with the same shape
+ * are written to a temporary directory, so the benchmarks can always run.
+ * @author Pablo Alonso
+ */
+final class BenchmarkData {
+    
+    static final int IMAGE_SIZE = 784;
+    //Roughly the fraction of MNIST pixels that are not 0
+    private static final double INK_DENSITY = 0.19;
+    
+    private BenchmarkData(){
+    }
+    
+    /**
+     *
+     * @param fileName The name of the MNIST file
+     * @param numberOfSamples The number of samples of the synthetic file if 
+     * the real one doesn't exist
+     * @return The path of the real file or of a synthetic one
+     */
+    static Path idxFile(String fileName, int numberOfSamples) throws IOException {
+        Path real = Paths.get(fileName);
+        if (Files.exists(real)) return real;
+        Path synthetic = Paths.get(System.getProperty("java.io.tmpdir"), "mlp-bench-" + numberOfSamples + "-" + fileName);
+        if (!Files.exists(synthetic)) {
+            boolean images = fileName.contains("images");
+            writeSyntheticIdx(synthetic, numberOfSamples, images, new Random(numberOfSamples));
+        }
+        return synthetic;
+    }
+    
+    static double[][] testImages() throws IOException {
+        return DataManager.loadData(idxFile("t10k-images.idx3-ubyte", 10000));
+    }
+    
+    static double[] testLabels() throws IOException {
+        return DataManager.loadLabels(idxFile("t10k-labels.idx1-ubyte", 10000));
+    }
+    
+    /**
+     *
+     * @return Random images with the density of ink of the MNIST digits
+     */
+    static double[][] randomImages(int numberOfImages, long seed){
+        Random random = new Random(seed);
+        double[][] images = new double[numberOfImages][IMAGE_SIZE];
+        for (double[] image : images) {
+            for (int i = 0; i < IMAGE_SIZE; i++) {
+                if (random.nextDouble() < INK_DENSITY) image[i] = (1 + random.nextInt(255)) / 255.0;
+            }
+        }
+        return images;
+    }
+    
+    /**
+     *
+     * @return The one-hot or scaled expected outputs of random labels
+     */
+    static double[][] randomExpectedOutputs(int numberOfSamples, int outputSize, long seed){
+        Random random = new Random(seed);
+        double[][] outputs = new double[numberOfSamples][outputSize];
+        for (double[] output : outputs) {
+            int digit = random.nextInt(10);
+            if (outputSize == 1) {
+                output[0] = digit / 10.0;
+            } else {
+                output[digit % outputSize] = 1;
+            }
+        }
+        return outputs;
+    }
+    
+    /**
+     *
+     * @param topology The layer sizes separated by '-', input first
+     * @return The layer sizes
+     */
+    static int[] parseTopology(String topology){
+        String[] sizes = topology.split("-");
+        int[] layerSizes = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            layerSizes[i] = Integer.parseInt(sizes[i]);
+        }
+        return layerSizes;
+    }
+    
+    static MultilayerPerceptron perceptron(String topology){
+        int[] layerSizes = parseTopology(topology);
+        int[] hiddenLayersSizes = new int[layerSizes.length - 2];
+        System.arraycopy(layerSizes, 1, hiddenLayersSizes, 0, hiddenLayersSizes.length);
+        return new MultilayerPerceptron(layerSizes[0], layerSizes[layerSizes.length - 1], 0.1, hiddenLayersSizes);
+    }
+    
+    private static void writeSyntheticIdx(Path path, int numberOfSamples, boolean images, Random random) throws IOException {
+        int headerLength = images ? 16 : 8;
+        int sampleSize = images ? IMAGE_SIZE : 1;
+        ByteBuffer file = ByteBuffer.allocate(headerLength + numberOfSamples * sampleSize);
+        file.putInt(images ? 0x00000803 : 0x00000801);
+        file.putInt(numberOfSamples);
+        if (images) {
+            file.putInt(28);
+            file.putInt(28);
+        }
+        for (int i = 0; i < numberOfSamples * sampleSize; i++) {
+            if (images) {
+                file.put(random.nextDouble() < INK_DENSITY ? (byte) (1 + random.nextInt(255)) : 0);
+            } else {
+                file.put((byte) random.nextInt(10));
+            }
+        }
+        Path temporary = Files.createTempFile(path.getParent(), "mlp-bench", ".tmp");
+        Files.write(temporary, file.array());
+        Files.move(temporary, path, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+}
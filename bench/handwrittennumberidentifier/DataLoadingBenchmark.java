@@ -0,0 +1,53 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DataManager.loadData and loadLabels over the test data set, reported in 
+ * samples per second.
+ * @author Pablo Alonso
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataLoadingBenchmark {
+    
+    static final int TEST_SAMPLES = 10000;
+    
+    private Path images;
+    private Path labels;
+    
+    @Setup
+    public void setUp() throws IOException {
+        images = BenchmarkData.idxFile("t10k-images.idx3-ubyte", TEST_SAMPLES);
+        labels = BenchmarkData.idxFile("t10k-labels.idx1-ubyte", TEST_SAMPLES);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(TEST_SAMPLES)
+    public double[][] loadData(){
+        return DataManager.loadData(images);
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(TEST_SAMPLES)
+    public double[] loadLabels(){
+        return DataManager.loadLabels(labels);
+    }
+}
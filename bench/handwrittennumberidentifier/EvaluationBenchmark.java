@@ -0,0 +1,55 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * NeuralNetWorker.getHits over the 10k test data set, reported in samples per second.
+ * @author Pablo Alonso
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluationBenchmark {
+    
+    static final int TEST_SAMPLES = 10000;
+    
+    @Param({"10-20-10"})
+    public String hiddenLayers;
+    
+    @Param({"1", "4"})
+    public int threads;
+    
+    private NeuralNetWorker worker;
+    private double[][] testImages;
+    private double[] testLabels;
+    
+    @Setup
+    public void setUp() throws IOException {
+        worker = new NeuralNetWorker(0.2, BenchmarkData.parseTopology(hiddenLayers));
+        worker.setEvaluationThreads(threads);
+        testImages = BenchmarkData.testImages();
+        testLabels = BenchmarkData.testLabels();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(TEST_SAMPLES)
+    public int getHits(){
+        return worker.getHits(testImages, testLabels);
+    }
+}
@@ -0,0 +1,63 @@
+package handwrittennumberidentifier;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Forward pass throughput, reported in samples per second.
+ * @author Pablo Alonso
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForwardBenchmark {
+    
+    static final int SAMPLES = 256;
+    
+    @Param({"784-10-20-10-1", "784-100-10", "784-300-100-10"})
+    public String topology;
+    
+    private MultilayerPerceptron perceptron;
+    private InferenceModel model;
+    private double[][] inputs;
+    private double[] outputs;
+    
+    @Setup
+    public void setUp(){
+        perceptron = BenchmarkData.perceptron(topology);
+        model = perceptron.toInferenceModel();
+        inputs = BenchmarkData.randomImages(SAMPLES, 1);
+        outputs = new double[model.getOutputSize()];
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void perceptronTestNeuralNet(Blackhole blackhole){
+        for (double[] input : inputs) {
+            blackhole.consume(perceptron.testNeuralNet(input));
+        }
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void inferenceModelPredict(Blackhole blackhole){
+        for (double[] input : inputs) {
+            blackhole.consume(model.predict(input, outputs));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to save and load a perceptron in the binary and the text formats.
+ * The files are written to a temporary directory instead of the database of 
+ * the working directory, so its index is never modified.
+ * @author Pablo Alonso
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelIoBenchmark {
+    
+    @Param({"784-10-20-10-1", "784-300-100-10"})
+    public String topology;
+    
+    private MultilayerPerceptron perceptron;
+    private Path directory;
+    private Path binaryModel;
+    private Path textModel;
+    private Path written;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        perceptron = BenchmarkData.perceptron(topology);
+        directory = Files.createTempDirectory("mlp-bench-models");
+        binaryModel = directory.resolve("binary");
+        textModel = directory.resolve("text");
+        written = directory.resolve("written");
+        BinaryModelFormat.write(perceptron, 0, 0, binaryModel);
+        DataManager.exportPerceptronText(perceptron, textModel.toString(), 0, 0);
+    }
+    
+    @TearDown(Level.Invocation)
+    public void deleteWritten() throws IOException {
+        Files.deleteIfExists(written);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(binaryModel);
+        Files.deleteIfExists(textModel);
+        Files.deleteIfExists(directory);
+    }
+    
+    @Benchmark
+    public void saveBinary() throws IOException {
+        BinaryModelFormat.write(perceptron, 0, 0, written);
+    }
+    
+    @Benchmark
+    public boolean saveText(){
+        return DataManager.exportPerceptronText(perceptron, written.toString(), 0, 0);
+    }
+    
+    @Benchmark
+    public MultilayerPerceptron loadBinary(){
+        return DataManager.loadPerceptronData(binaryModel);
+    }
+    
+    @Benchmark
+    public InferenceModel mapBinary() throws IOException {
+        return BinaryModelFormat.mapInferenceModel(binaryModel);
+    }
+    
+    @Benchmark
+    public MultilayerPerceptron loadText(){
+        return DataManager.loadPerceptronData(textModel);
+    }
+}
@@ -0,0 +1,74 @@
+package handwrittennumberidentifier;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of one startTrainingCycle, and samples per second of the per-sample 
+ * and the mini-batch training.
+ * @author Pablo Alonso
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+    
+    static final int SAMPLES = 256;
+    
+    @Param({"784-10-20-10-1", "784-100-10", "784-300-100-10"})
+    public String topology;
+    
+    @Param({"32"})
+    public int batchSize;
+    
+    private MultilayerPerceptron perceptron;
+    private double[][] inputs;
+    private double[][] expectedOutputs;
+    private int nextSample;
+    
+    @Setup
+    public void setUp(){
+        perceptron = BenchmarkData.perceptron(topology);
+        int[] layerSizes = BenchmarkData.parseTopology(topology);
+        inputs = BenchmarkData.randomImages(SAMPLES, 1);
+        expectedOutputs = BenchmarkData.randomExpectedOutputs(SAMPLES, layerSizes[layerSizes.length - 1], 2);
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void startTrainingCycleLatency(){
+        perceptron.startTrainingCycle(inputs[nextSample], expectedOutputs[nextSample]);
+        nextSample = (nextSample + 1) % SAMPLES;
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(SAMPLES)
+    public void startTrainingCycleThroughput(){
+        for (int i = 0; i < SAMPLES; i++) {
+            perceptron.startTrainingCycle(inputs[i], expectedOutputs[i]);
+        }
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(SAMPLES)
+    public void trainBatchThroughput(){
+        perceptron.trainBatch(inputs, expectedOutputs, batchSize);
+    }
+}
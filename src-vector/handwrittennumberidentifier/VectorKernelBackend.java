@@ -0,0 +1,78 @@
+package handwrittennumberidentifier;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels written with the Vector API, using the widest vectors of the CPU. 
+ * The elements that don't fill a whole vector are handled by a scalar tail.
+ * It needs a JDK 16 or later and the jdk.incubator.vector module, see Kernels.
+ * @author Pablo Alonso
+ */
+final class VectorKernelBackend implements KernelBackend {
+    
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length){
+        DoubleVector summations = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(length); i < bound; i += DOUBLES.length()) {
+            DoubleVector aValues = DoubleVector.fromArray(DOUBLES, a, aOffset + i);
+            DoubleVector bValues = DoubleVector.fromArray(DOUBLES, b, bOffset + i);
+            summations = aValues.fma(bValues, summations);
+        }
+        double summation = summations.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            summation += a[aOffset + i] * b[bOffset + i];
+        }
+        return summation;
+    }
+    
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length){
+        DoubleVector alphas = DoubleVector.broadcast(DOUBLES, alpha);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(length); i < bound; i += DOUBLES.length()) {
+            DoubleVector xValues = DoubleVector.fromArray(DOUBLES, x, xOffset + i);
+            DoubleVector yValues = DoubleVector.fromArray(DOUBLES, y, yOffset + i);
+            xValues.fma(alphas, yValues).intoArray(y, yOffset + i);
+        }
+        for (; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+    
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length){
+        FloatVector summations = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            FloatVector aValues = FloatVector.fromArray(FLOATS, a, aOffset + i);
+            FloatVector bValues = FloatVector.fromArray(FLOATS, b, bOffset + i);
+            summations = aValues.fma(bValues, summations);
+        }
+        float summation = summations.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            summation += a[aOffset + i] * b[bOffset + i];
+        }
+        return summation;
+    }
+    
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length){
+        FloatVector alphas = FloatVector.broadcast(FLOATS, alpha);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(length); i < bound; i += FLOATS.length()) {
+            FloatVector xValues = FloatVector.fromArray(FLOATS, x, xOffset + i);
+            FloatVector yValues = FloatVector.fromArray(FLOATS, y, yOffset + i);
+            xValues.fma(alphas, yValues).intoArray(y, yOffset + i);
+        }
+        for (; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+}
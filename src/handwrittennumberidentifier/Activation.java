@@ -0,0 +1,57 @@
+package handwrittennumberidentifier;
+
+/**
+ * Activation functions that can be used in any layer besides the sigmoids of
+ * SigmoidPrecision.
+ * @author Pablo Alonso
+ */
+public enum Activation implements ActivationFunction {
+    
+    /**
+     * max(0, x).
+     */
+    RELU {
+        @Override
+        public double activate(double summation) {
+            return summation > 0 ? summation : 0;
+        }
+
+        @Override
+        public double derivative(double activation) {
+            return activation > 0 ? 1 : 0;
+        }
+    },
+    
+    /**
+     * x for positive values, 0.01 * x for the negative ones, so the neurons 
+     * never stop learning completely.
+     */
+    LEAKY_RELU {
+        @Override
+        public double activate(double summation) {
+            return summation > 0 ? summation : LEAKY_SLOPE * summation;
+        }
+
+        @Override
+        public double derivative(double activation) {
+            return activation > 0 ? 1 : LEAKY_SLOPE;
+        }
+    },
+    
+    /**
+     * Hyperbolic tangent, outputs in the range (-1, 1).
+     */
+    TANH {
+        @Override
+        public double activate(double summation) {
+            return Math.tanh(summation);
+        }
+
+        @Override
+        public double derivative(double activation) {
+            return 1 - activation * activation;
+        }
+    };
+    
+    private static final double LEAKY_SLOPE = 0.01;
+}
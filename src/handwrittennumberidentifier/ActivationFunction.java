@@ -0,0 +1,45 @@
+package handwrittennumberidentifier;
+
+/**
+ *
+ * @author Pablo Alonso
+ */
+public interface ActivationFunction {
+    
+    /**
+     *
+     * @param summation The weighted sum of the inputs of a neuron plus its threshold
+     * @return The output of the neuron
+     */
+    double activate(double summation);
+    
+    /**
+     * The derivative is calculated from the output already stored for the 
+     * neuron, so the activation doesn't need to be evaluated again.
+     * @param activation The output of the neuron, as returned by activate
+     * @return The derivative of the function at the summation that produced that output
+     */
+    double derivative(double activation);
+    
+    /**
+     *
+     * @return The name used to save this function with a perceptron. The enums
+     * implementing this interface use the name of the constant
+     */
+    String name();
+    
+    /**
+     *
+     * @param name The name of one of the constants of Activation or SigmoidPrecision
+     * @return The function with that name
+     */
+    static ActivationFunction forName(String name){
+        for (SigmoidPrecision sigmoid : SigmoidPrecision.values()) {
+            if (sigmoid.name().equals(name)) return sigmoid;
+        }
+        for (Activation activation : Activation.values()) {
+            if (activation.name().equals(name)) return activation;
+        }
+        throw new RuntimeException("Unknown activation function: " + name);
+    }
+}
@@ -0,0 +1,81 @@
+package handwrittennumberidentifier;
+
+/**
+ * Time and loss of one update of the perceptron.
+ * @author Pablo Alonso
+ */
+public final class BatchMetrics {
+    
+    private final int cycle;
+    private final long batch;
+    private final long samples;
+    private final long nanos;
+    private final long forwardNanos;
+    private final long deltaNanos;
+    private final long updateNanos;
+    private final double loss;
+    
+    BatchMetrics(int cycle, long batch, TrainingCounters counters, long nanos){
+        this.cycle = cycle;
+        this.batch = batch;
+        this.samples = counters.samples;
+        this.nanos = nanos;
+        this.forwardNanos = counters.forwardNanos;
+        this.deltaNanos = counters.deltaNanos;
+        this.updateNanos = counters.updateNanos;
+        this.loss = counters.samples == 0 ? Double.NaN : counters.lossSum / counters.samples;
+    }
+
+    public int getCycle() {
+        return cycle;
+    }
+
+    /**
+     *
+     * @return The index of the batch inside its cycle, starting at 0
+     */
+    public long getBatch() {
+        return batch;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     *
+     * @return The total time of the batch, which includes the phases and the
+     * time spent by the trainer between them
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    public long getForwardNanos() {
+        return forwardNanos;
+    }
+
+    /**
+     *
+     * @return The time spent calculating the deltas and the gradients
+     */
+    public long getDeltaNanos() {
+        return deltaNanos;
+    }
+
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    /**
+     *
+     * @return The mean loss of the samples of the batch, before the update
+     */
+    public double getLoss() {
+        return loss;
+    }
+    
+    public double getSamplesPerSecond() {
+        return nanos == 0 ? 0 : samples * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,48 @@
+package handwrittennumberidentifier;
+
+/**
+ * Scratch memory used to run a whole batch of samples through a perceptron.
+ * Each layer is stored as a row-major [samples x neurons] matrix inside a flat
+ * buffer, and the gradients of the batch are accumulated apart from the 
+ * perceptron parameters, so one workspace can be owned by each training thread.
+ * @author Pablo Alonso
+ */
+final class BatchWorkspace {
+    
+    final int capacity;
+    final int[] layerSizes;
+    //Offsets of each layer inside neurons, indexed by layer
+    final int[] neuronsOffsets;
+    //Offsets of each layer inside summations and neuronsDelta, starting at the first hidden layer
+    final int[] deltaOffsets;
+    final double[] neurons;
+    final double[] summations;
+    final double[] neuronsDelta;
+    final double[] weightGradients;
+    final double[] thresholdGradients;
+    //Time and loss of the last batch spread with this workspace
+    long forwardNanos;
+    long deltaNanos;
+    double lossSum;
+    
+    BatchWorkspace(int[] layerSizes, int capacity, int weightsLength, int thresholdsLength){
+        if(capacity < 1){
+            throw new RuntimeException("The batch size must be at least 1");
+        }
+        this.capacity = capacity;
+        this.layerSizes = layerSizes.clone();
+        neuronsOffsets = new int[layerSizes.length + 1];
+        deltaOffsets = new int[layerSizes.length];
+        for (int i = 0; i < layerSizes.length; i++) {
+            neuronsOffsets[i + 1] = neuronsOffsets[i] + capacity * layerSizes[i];
+        }
+        for (int i = 1; i < layerSizes.length; i++) {
+            deltaOffsets[i] = deltaOffsets[i - 1] + capacity * layerSizes[i];
+        }
+        neurons = new double[neuronsOffsets[layerSizes.length]];
+        summations = new double[deltaOffsets[layerSizes.length - 1]];
+        neuronsDelta = new double[summations.length];
+        weightGradients = new double[weightsLength];
+        thresholdGradients = new double[thresholdsLength];
+    }
+}
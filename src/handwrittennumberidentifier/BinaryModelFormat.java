@@ -0,0 +1,295 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary file format of a perceptron. Everything is little-endian:
+ * <pre>
+ * int    magic number, the characters "MLPB"
+ * int    version
+ * int    header length in bytes, padding included
+ * int    number of layers, followed by an int with the size of each layer
+ * double alpha
+ * int    test data right guessed
+ * int    training data right guessed
+ * string loss function, followed by one string per activation function. Each
+ *        string is a short with its length and its UTF-8 bytes
+ * long   CRC32 of the rest of the file: the header without this field, the
+ *        padding and the weights and thresholds blocks
+ * padding up to a multiple of 8 bytes
+ * double weights of every layer, in the same order used by the perceptron
+ * double thresholds of every layer
+ * </pre>
+ * The checksum of version 1 files only covers the weights and thresholds
+ * blocks; they can still be read.
+ * The blocks of doubles are aligned to 8 bytes, so a memory mapped file can be
+ * used directly as the parameters of an InferenceModel.
+ * @author Pablo Alonso
+ */
+final class BinaryModelFormat {
+    
+    static final int MAGIC_NUMBER = 0x42504C4D;
+    static final int VERSION = 2;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    
+    private BinaryModelFormat(){
+    }
+    
+    /**
+     *
+     * @return true if the file starts with the magic number of this format
+     */
+    static boolean isBinaryModel(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) < 0) return false;
+            }
+            return magic.getInt(0) == MAGIC_NUMBER;
+        }
+    }
+    
+    static void write(MultilayerPerceptron perceptron, int testDataRightGuessed, int trainingDataRigthGuessed, Path path) throws IOException {
+        double[] weights = perceptron.getWeightsBuffer();
+        double[] thresholds = perceptron.getThresholdsBuffer();
+        ByteBuffer header = buildHeader(perceptron, testDataRightGuessed, trainingDataRigthGuessed);
+        int checksumPosition = header.position();
+        CRC32 crc = new CRC32();
+        updateHeaderChecksum(crc, header, checksumPosition);
+        updateChecksum(crc, weights, thresholds);
+        header.putLong(checksumPosition, crc.getValue());
+        header.clear();
+        
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            writeFully(channel, header);
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            writeDoubles(channel, buffer, weights);
+            writeDoubles(channel, buffer, thresholds);
+            channel.force(true);
+        }
+    }
+    
+    /**
+     * Reads the whole file into a new perceptron that can be trained.
+     */
+    static MultilayerPerceptron read(Path path) throws IOException {
+        Model model = map(path);
+        double[] weights = new double[model.weights.remaining()];
+        double[] thresholds = new double[model.thresholds.remaining()];
+        model.weights.get(weights);
+        model.thresholds.get(thresholds);
+        MultilayerPerceptron perceptron = new MultilayerPerceptron(model.layerSizes, model.alpha, weights, thresholds);
+        for (int i = 0; i < model.activations.length; i++) {
+            perceptron.setActivation(i + 1, model.activations[i]);
+        }
+        perceptron.setLossFunction(model.lossFunction);
+        return perceptron;
+    }
+    
+    /**
+     * Maps the file in memory and builds an InferenceModel that reads its 
+     * parameters straight from the mapped file, without copying them.
+     */
+    static InferenceModel mapInferenceModel(Path path) throws IOException {
+        Model model = map(path);
+        return new InferenceModel(model.layerSizes, model.weights, model.thresholds, model.activations, model.lossFunction);
+    }
+    
+    private static Model map(Path path) throws IOException {
+        MappedByteBuffer file;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        if (file.remaining() < 16 || file.getInt() != MAGIC_NUMBER) {
+            throw new IOException(path + " is not a binary perceptron file");
+        }
+        int version = file.getInt();
+        if (version != VERSION && version != 1) {
+            throw new IOException("Unsupported binary perceptron version " + version + " in " + path);
+        }
+        int headerLength = file.getInt();
+        if (headerLength < 16 || headerLength > file.capacity() || headerLength % 8 != 0) {
+            throw new IOException(path + " has a wrong header length: " + headerLength);
+        }
+        Model model = new Model();
+        long expectedChecksum;
+        int checksumPosition;
+        try {
+            file.limit(headerLength);
+            int layers = file.getInt();
+            if (layers < 2 || layers > file.remaining() / 4) {
+                throw new IOException(path + " has a wrong number of layers: " + layers);
+            }
+            model.layerSizes = new int[layers];
+            for (int i = 0; i < model.layerSizes.length; i++) {
+                model.layerSizes[i] = file.getInt();
+                if (model.layerSizes[i] < 1) {
+                    throw new IOException(path + " has a layer of size " + model.layerSizes[i]);
+                }
+            }
+            model.alpha = file.getDouble();
+            file.getInt();
+            file.getInt();
+            model.lossFunction = LossFunction.valueOf(readString(file));
+            model.activations = new ActivationFunction[model.layerSizes.length - 1];
+            for (int i = 0; i < model.activations.length; i++) {
+                model.activations[i] = ActivationFunction.forName(readString(file));
+            }
+            checksumPosition = file.position();
+            expectedChecksum = file.getLong();
+        } catch (BufferUnderflowException ex) {
+            throw new IOException(path + " has a header longer than " + headerLength + " bytes", ex);
+        } catch (RuntimeException ex) {
+            throw new IOException(path + " has a wrong header: " + ex.getMessage(), ex);
+        } finally {
+            file.limit(file.capacity());
+        }
+        
+        //The sizes come from the file, so they are added as longs before trusting them
+        long weightsLength = 0;
+        long thresholdsLength = 0;
+        for (int i = 1; i < model.layerSizes.length; i++) {
+            weightsLength += (long) model.layerSizes[i - 1] * model.layerSizes[i];
+            thresholdsLength += model.layerSizes[i];
+        }
+        if (weightsLength + thresholdsLength > Integer.MAX_VALUE / 8) {
+            throw new IOException(path + " has layers too big for a perceptron");
+        }
+        long expectedSize = headerLength + 8L * (weightsLength + thresholdsLength);
+        if (file.capacity() != expectedSize) {
+            throw new IOException(path + " should be " + expectedSize + " bytes long, but it is " + file.capacity());
+        }
+        
+        file.position(headerLength);
+        ByteBuffer payload = file.slice();
+        CRC32 crc = new CRC32();
+        if (version != 1) {
+            updateHeaderChecksum(crc, file, checksumPosition);
+        }
+        crc.update(payload.duplicate());
+        if (crc.getValue() != expectedChecksum) {
+            throw new IOException("The checksum of " + path + " doesn't match, the file is corrupted");
+        }
+        DoubleBuffer doubles = payload.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        doubles.limit((int) weightsLength);
+        model.weights = doubles.slice();
+        doubles.limit((int) (weightsLength + thresholdsLength));
+        doubles.position((int) weightsLength);
+        model.thresholds = doubles.slice();
+        return model;
+    }
+    
+    /**
+     *
+     * @return The header with the checksum still at 0, its position is the
+     * position of the checksum
+     */
+    private static ByteBuffer buildHeader(MultilayerPerceptron perceptron, int testDataRightGuessed, int trainingDataRigthGuessed){
+        int[] layerSizes = perceptron.getAllLayersSize();
+        ActivationFunction[] activations = perceptron.getActivations();
+        byte[] lossFunction = perceptron.getLossFunction().name().getBytes(StandardCharsets.UTF_8);
+        byte[][] activationNames = new byte[activations.length][];
+        int length = 4 * 4 + 4 * layerSizes.length + 8 + 4 + 4 + 2 + lossFunction.length + 8;
+        for (int i = 0; i < activations.length; i++) {
+            activationNames[i] = activations[i].name().getBytes(StandardCharsets.UTF_8);
+            length += 2 + activationNames[i].length;
+        }
+        int headerLength = (length + 7) & ~7;
+        
+        ByteBuffer header = ByteBuffer.allocate(headerLength).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC_NUMBER);
+        header.putInt(VERSION);
+        header.putInt(headerLength);
+        header.putInt(layerSizes.length);
+        for (int size : layerSizes) {
+            header.putInt(size);
+        }
+        header.putDouble(perceptron.getAlpha());
+        header.putInt(testDataRightGuessed);
+        header.putInt(trainingDataRigthGuessed);
+        header.putShort((short) lossFunction.length).put(lossFunction);
+        for (byte[] name : activationNames) {
+            header.putShort((short) name.length).put(name);
+        }
+        return header;
+    }
+    
+    /**
+     * Adds the header to the checksum, all of it but the checksum itself.
+     * @param header A buffer starting with the header, its position isn't changed
+     * @param checksumPosition The position of the checksum in the header
+     */
+    private static void updateHeaderChecksum(CRC32 crc, ByteBuffer header, int checksumPosition){
+        int headerLength = header.getInt(8);
+        ByteBuffer block = header.duplicate();
+        block.limit(checksumPosition);
+        block.position(0);
+        crc.update(block);
+        block.limit(headerLength);
+        block.position(checksumPosition + 8);
+        crc.update(block);
+    }
+    
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static void updateChecksum(CRC32 crc, double[] weights, double[] thresholds){
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (double[] values : new double[][]{weights, thresholds}) {
+            for (double value : values) {
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+                buffer.putDouble(value);
+            }
+        }
+        buffer.flip();
+        crc.update(buffer);
+    }
+    
+    private static void writeDoubles(FileChannel channel, ByteBuffer buffer, double[] values) throws IOException {
+        buffer.clear();
+        for (double value : values) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                writeFully(channel, buffer);
+                buffer.clear();
+            }
+            buffer.putDouble(value);
+        }
+        buffer.flip();
+        writeFully(channel, buffer);
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    private static final class Model {
+        int[] layerSizes;
+        double alpha;
+        LossFunction lossFunction;
+        ActivationFunction[] activations;
+        DoubleBuffer weights;
+        DoubleBuffer thresholds;
+    }
+}
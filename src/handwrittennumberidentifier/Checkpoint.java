@@ -0,0 +1,152 @@
+package handwrittennumberidentifier;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of a training: a copy of the perceptron, the number of cycles 
+ * already trained, the seed the random numbers of every cycle are derived 
+ * from, the state of the optimizer and the state of the early stopping. The snapshot doesn't change when the
+ * training goes on, so it can be written by another thread.
+ * @author Pablo Alonso
+ */
+public final class Checkpoint {
+    
+    private final MultilayerPerceptron perceptron;
+    private final int completedCycles;
+    private final long seed;
+    private final Map<String, double[]> optimizerState;
+    private final double bestValidationAccuracy;
+    private final int cyclesWithoutImprovement;
+    //Null when there is no best cycle yet
+    private final double[] bestWeights;
+    private final double[] bestThresholds;
+    
+    /**
+     *
+     * @param perceptron The perceptron, it is copied
+     * @param completedCycles The number of cycles trained so far
+     * @param seed The seed of the random numbers of the training
+     * @param optimizerState The buffers kept by the optimizer between updates,
+     * by name. They are copied
+     */
+    public Checkpoint(MultilayerPerceptron perceptron, int completedCycles, long seed, Map<String, double[]> optimizerState){
+        this(perceptron, completedCycles, seed, optimizerState, Double.NEGATIVE_INFINITY, 0, null);
+    }
+    
+    /**
+     *
+     * @param perceptron The perceptron, it is copied
+     * @param completedCycles The number of cycles trained so far
+     * @param seed The seed of the random numbers of the training
+     * @param optimizerState The buffers kept by the optimizer between updates,
+     * by name. They are copied
+     * @param bestValidationAccuracy The best accuracy on the validation samples
+     * so far, or Double.NEGATIVE_INFINITY if there is none
+     * @param cyclesWithoutImprovement The cycles since that accuracy was reached
+     * @param bestPerceptron The perceptron of the best cycle, or null if there
+     * is none. Its weights and thresholds are copied
+     */
+    public Checkpoint(MultilayerPerceptron perceptron, int completedCycles, long seed, Map<String, double[]> optimizerState,
+            double bestValidationAccuracy, int cyclesWithoutImprovement, MultilayerPerceptron bestPerceptron){
+        this(perceptron, completedCycles, seed, optimizerState, bestValidationAccuracy, cyclesWithoutImprovement,
+                bestPerceptron == null ? null : bestPerceptron.getWeightsBuffer().clone(),
+                bestPerceptron == null ? null : bestPerceptron.getThresholdsBuffer().clone());
+    }
+    
+    /**
+     * The best weights and thresholds are used as they are.
+     */
+    Checkpoint(MultilayerPerceptron perceptron, int completedCycles, long seed, Map<String, double[]> optimizerState,
+            double bestValidationAccuracy, int cyclesWithoutImprovement, double[] bestWeights, double[] bestThresholds){
+        if ((bestWeights == null) != (bestThresholds == null)) {
+            throw new RuntimeException("The best weights and thresholds must be both present or both missing");
+        }
+        if (bestWeights != null && (bestWeights.length != perceptron.getWeightsBuffer().length 
+                || bestThresholds.length != perceptron.getThresholdsBuffer().length)) {
+            throw new RuntimeException("The best weights and thresholds don't match the perceptron");
+        }
+        this.bestValidationAccuracy = bestValidationAccuracy;
+        this.cyclesWithoutImprovement = cyclesWithoutImprovement;
+        this.bestWeights = bestWeights;
+        this.bestThresholds = bestThresholds;
+        this.perceptron = perceptron.copy();
+        this.completedCycles = completedCycles;
+        this.seed = seed;
+        Map<String, double[]> state = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> entry : optimizerState.entrySet()) {
+            state.put(entry.getKey(), entry.getValue().clone());
+        }
+        this.optimizerState = Collections.unmodifiableMap(state);
+    }
+    
+    /**
+     *
+     * @return A new copy of the perceptron of this checkpoint, ready to be trained
+     */
+    public MultilayerPerceptron getPerceptron(){
+        return perceptron.copy();
+    }
+
+    public int getCompletedCycles() {
+        return completedCycles;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+    
+    /**
+     *
+     * @return A copy of the buffers of the optimizer, by name
+     */
+    public Map<String, double[]> getOptimizerState(){
+        Map<String, double[]> state = new LinkedHashMap<>();
+        for (Map.Entry<String, double[]> entry : optimizerState.entrySet()) {
+            state.put(entry.getKey(), entry.getValue().clone());
+        }
+        return state;
+    }
+    
+    /**
+     *
+     * @return The best accuracy on the validation samples so far, or 
+     * Double.NEGATIVE_INFINITY if the training doesn't stop early
+     */
+    public double getBestValidationAccuracy() {
+        return bestValidationAccuracy;
+    }
+
+    public int getCyclesWithoutImprovement() {
+        return cyclesWithoutImprovement;
+    }
+    
+    /**
+     * The perceptron of this checkpoint, without copying it. It must not be modified.
+     */
+    MultilayerPerceptron getPerceptronSnapshot(){
+        return perceptron;
+    }
+    
+    /**
+     * The buffers of the optimizer, without copying them. They must not be modified.
+     */
+    Map<String, double[]> getOptimizerStateSnapshot(){
+        return optimizerState;
+    }
+    
+    /**
+     * The weights of the best cycle, or null, without copying them. They must not be modified.
+     */
+    double[] getBestWeightsSnapshot(){
+        return bestWeights;
+    }
+    
+    /**
+     * The thresholds of the best cycle, or null, without copying them. They must not be modified.
+     */
+    double[] getBestThresholdsSnapshot(){
+        return bestThresholds;
+    }
+}
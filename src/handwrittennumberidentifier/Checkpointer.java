@@ -0,0 +1,322 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Writes checkpoints to a directory from a background thread, so the training
+ * only waits while the snapshot is copied. If a checkpoint is submitted while
+ * the previous one is still being written, it waits for it, and if another one
+ * arrives meanwhile, the waiting one is dropped in favour of the newer one.
+ * Each checkpoint is made of two files, the perceptron in the binary format and
+ * the state of the training:
+ * <pre>
+ * int    magic number, the characters "MLPS"
+ * int    version
+ * int    completed cycles
+ * long   seed
+ * string sigmoid precision of the perceptron: a short with its length and
+ *        its UTF-8 bytes
+ * int    number of layers with weights, followed by the learning rate factor
+ *        of each one as a double
+ * double best accuracy on the validation samples, -Infinity if there is none
+ * int    cycles without improvement of that accuracy
+ * int    number of weights of the best cycle, 0 if there is no best cycle,
+ *        followed by the weights as doubles
+ * int    number of thresholds of the best cycle, followed by the thresholds
+ * int    number of optimizer buffers, followed by each buffer: a short with
+ *        the length of its name, its UTF-8 bytes, an int with the number of
+ *        values and the values as doubles
+ * long   CRC32 of everything above
+ * </pre>
+ * The perceptron file doesn't keep the sigmoid precision or the learning rate
+ * factors, so they are in the state file. Version 1 state files don't have
+ * them; the perceptron gets the default ones. Version 1 and 2 state files
+ * don't have the early stopping state either; the training goes on as if no
+ * cycle had improved yet.
+ * Both files are written with a temporary name and renamed when they are
+ * complete, the state file last, so a checkpoint whose state file exists is
+ * complete. Only the newest checkpoints are kept.
+ * @author Pablo Alonso
+ */
+public class Checkpointer implements AutoCloseable {
+
+    static final int STATE_MAGIC_NUMBER = 0x53504C4D;
+    static final int STATE_VERSION = 3;
+    private static final String PREFIX = "checkpoint-";
+    private static final String MODEL_EXTENSION = ".model";
+    private static final String STATE_EXTENSION = ".state";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+
+    private final Path directory;
+    private final int checkpointsKept;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     *
+     * @param directory The directory where the checkpoints are written, it is
+     * created if it doesn't exist
+     * @param checkpointsKept The number of newest checkpoints kept, the older
+     * ones are deleted
+     */
+    public Checkpointer(Path directory, int checkpointsKept){
+        if(checkpointsKept < 1){
+            throw new RuntimeException("At least one checkpoint must be kept");
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            throw new RuntimeException("The checkpoints directory can't be created", ex);
+        }
+        this.directory = directory;
+        this.checkpointsKept = checkpointsKept;
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1), runnable -> {
+            Thread thread = new Thread(runnable, "Checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    /**
+     * Writes the checkpoint in the background. Errors are printed, they don't
+     * stop the training.
+     * @param checkpoint The checkpoint that will be written
+     */
+    public void submit(Checkpoint checkpoint){
+        executor.execute(() -> {
+            try {
+                write(checkpoint);
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("PROBLEM WRITING THE CHECKPOINT OF THE CYCLE " + checkpoint.getCompletedCycles());
+                System.out.println(ex);
+            }
+        });
+    }
+
+    /**
+     * Waits until the pending checkpoints are written and stops the background thread.
+     */
+    @Override
+    public void close(){
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a checkpoint right away, in the calling thread.
+     * @param checkpoint The checkpoint that will be written
+     * @throws IOException If the files can't be written
+     */
+    public void write(Checkpoint checkpoint) throws IOException {
+        String name = String.format("%s%06d", PREFIX, checkpoint.getCompletedCycles());
+        Path model = directory.resolve(name + MODEL_EXTENSION);
+        Path state = directory.resolve(name + STATE_EXTENSION);
+        Path temporaryModel = directory.resolve(name + MODEL_EXTENSION + TEMPORARY_EXTENSION);
+        Path temporaryState = directory.resolve(name + STATE_EXTENSION + TEMPORARY_EXTENSION);
+        Files.deleteIfExists(temporaryModel);
+        Files.deleteIfExists(temporaryState);
+
+        BinaryModelFormat.write(checkpoint.getPerceptronSnapshot(), 0, 0, temporaryModel);
+        Files.move(temporaryModel, model, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel channel = FileChannel.open(temporaryState, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            ByteBuffer buffer = buildState(checkpoint);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporaryState, state, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteOldCheckpoints();
+    }
+
+    /**
+     * Reads the newest complete checkpoint of the directory. If it is corrupted,
+     * the previous one is used instead.
+     * @param directory The directory with the checkpoints
+     * @return The newest checkpoint, or null if there is none
+     */
+    public static Checkpoint loadLatest(Path directory){
+        if (!Files.isDirectory(directory)) return null;
+        List<Integer> cycles;
+        try {
+            cycles = listCheckpoints(directory);
+        } catch (IOException ex) {
+            System.out.println(ex);
+            return null;
+        }
+        for (int i = cycles.size() - 1; i >= 0; i--) {
+            String name = String.format("%s%06d", PREFIX, cycles.get(i));
+            try {
+                return read(directory.resolve(name + MODEL_EXTENSION), directory.resolve(name + STATE_EXTENSION));
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("THE CHECKPOINT " + name + " CAN'T BE READ, TRYING THE PREVIOUS ONE");
+                System.out.println(ex);
+            }
+        }
+        return null;
+    }
+
+    private static Checkpoint read(Path model, Path state) throws IOException {
+        MultilayerPerceptron perceptron = BinaryModelFormat.read(model);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(state)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 32 || buffer.getInt() != STATE_MAGIC_NUMBER) {
+            throw new IOException(state + " is not a checkpoint state file");
+        }
+        int version = buffer.getInt();
+        if (version < 1 || version > STATE_VERSION) {
+            throw new IOException("Unsupported checkpoint state version " + version + " in " + state);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.limit() - 8);
+        if (crc.getValue() != buffer.getLong(buffer.limit() - 8)) {
+            throw new IOException("The checksum of " + state + " doesn't match, the file is corrupted");
+        }
+        int completedCycles = buffer.getInt();
+        long seed = buffer.getLong();
+        if (version != 1) {
+            byte[] sigmoidPrecision = new byte[buffer.getShort()];
+            buffer.get(sigmoidPrecision);
+            perceptron.setSigmoidPrecision(SigmoidPrecision.valueOf(new String(sigmoidPrecision, StandardCharsets.UTF_8)));
+            int layers = buffer.getInt();
+            if (layers != perceptron.getAllLayersSize().length - 1) {
+                throw new IOException(state + " has " + layers + " learning rate factors, but the perceptron has " 
+                        + (perceptron.getAllLayersSize().length - 1) + " layers with weights");
+            }
+            for (int layer = 1; layer <= layers; layer++) {
+                perceptron.setLearningRateFactor(layer, buffer.getDouble());
+            }
+        }
+        double bestValidationAccuracy = Double.NEGATIVE_INFINITY;
+        int cyclesWithoutImprovement = 0;
+        double[] bestWeights = null;
+        double[] bestThresholds = null;
+        if (version >= 3) {
+            bestValidationAccuracy = buffer.getDouble();
+            cyclesWithoutImprovement = buffer.getInt();
+            bestWeights = readDoubles(buffer);
+            bestThresholds = readDoubles(buffer);
+            if (bestWeights.length == 0) {
+                bestWeights = null;
+                bestThresholds = null;
+            }
+        }
+        Map<String, double[]> optimizerState = new LinkedHashMap<>();
+        int buffers = buffer.getInt();
+        for (int i = 0; i < buffers; i++) {
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            optimizerState.put(new String(name, StandardCharsets.UTF_8), readDoubles(buffer));
+        }
+        return new Checkpoint(perceptron, completedCycles, seed, optimizerState, 
+                bestValidationAccuracy, cyclesWithoutImprovement, bestWeights, bestThresholds);
+    }
+    
+    private static double[] readDoubles(ByteBuffer buffer){
+        double[] values = new double[buffer.getInt()];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + 8 * values.length);
+        return values;
+    }
+
+    private static ByteBuffer buildState(Checkpoint checkpoint){
+        Map<String, double[]> optimizerState = checkpoint.getOptimizerStateSnapshot();
+        MultilayerPerceptron perceptron = checkpoint.getPerceptronSnapshot();
+        byte[] sigmoidPrecision = perceptron.getSigmoidPrecision().name().getBytes(StandardCharsets.UTF_8);
+        int layers = perceptron.getAllLayersSize().length - 1;
+        double[] bestWeights = checkpoint.getBestWeightsSnapshot();
+        double[] bestThresholds = checkpoint.getBestThresholdsSnapshot();
+        int bestParameters = bestWeights == null ? 0 : bestWeights.length + bestThresholds.length;
+        int length = 4 + 4 + 4 + 8 + 2 + sigmoidPrecision.length + 4 + 8 * layers + 8 + 4 + 4 + 4 + 8 * bestParameters + 4 + 8;
+        List<byte[]> names = new ArrayList<>();
+        for (Map.Entry<String, double[]> entry : optimizerState.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            length += 2 + name.length + 4 + 8 * entry.getValue().length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(STATE_MAGIC_NUMBER);
+        buffer.putInt(STATE_VERSION);
+        buffer.putInt(checkpoint.getCompletedCycles());
+        buffer.putLong(checkpoint.getSeed());
+        buffer.putShort((short) sigmoidPrecision.length).put(sigmoidPrecision);
+        buffer.putInt(layers);
+        for (int layer = 1; layer <= layers; layer++) {
+            buffer.putDouble(perceptron.getLearningRateFactor(layer));
+        }
+        buffer.putDouble(checkpoint.getBestValidationAccuracy());
+        buffer.putInt(checkpoint.getCyclesWithoutImprovement());
+        for (double[] values : new double[][]{bestWeights, bestThresholds}) {
+            buffer.putInt(values == null ? 0 : values.length);
+            if (values != null) {
+                for (double value : values) {
+                    buffer.putDouble(value);
+                }
+            }
+        }
+        buffer.putInt(optimizerState.size());
+        int i = 0;
+        for (double[] values : optimizerState.values()) {
+            byte[] name = names.get(i++);
+            buffer.putShort((short) name.length).put(name);
+            buffer.putInt(values.length);
+            for (double value : values) {
+                buffer.putDouble(value);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private void deleteOldCheckpoints() throws IOException {
+        List<Integer> cycles = listCheckpoints(directory);
+        for (int i = 0; i < cycles.size() - checkpointsKept; i++) {
+            String name = String.format("%s%06d", PREFIX, cycles.get(i));
+            Files.deleteIfExists(directory.resolve(name + STATE_EXTENSION));
+            Files.deleteIfExists(directory.resolve(name + MODEL_EXTENSION));
+        }
+    }
+
+    /**
+     *
+     * @return The completed cycles of every complete checkpoint, from the oldest to the newest
+     */
+    private static List<Integer> listCheckpoints(Path directory) throws IOException {
+        List<Integer> cycles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + STATE_EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    cycles.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - STATE_EXTENSION.length())));
+                } catch (NumberFormatException ex) {
+                    //Not a checkpoint written by this class
+                }
+            }
+        }
+        Collections.sort(cycles);
+        return cycles;
+    }
+}
@@ -0,0 +1,434 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The subcommands of HandwrittenNumberIdentifier, so the usual workflows don't
+ * need to edit and compile the main method again. Every option is written as
+ * "--name value". The options can also be read from a properties file passed
+ * with --config, using the names without the dashes, which lets every machine
+ * keep its own threads and batch sizes; the command line overrides the file.
+ * Options the command doesn't have are rejected in both places.
+ * @author Pablo Alonso
+ */
+final class CommandLine {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: HandwrittenNumberIdentifier <command> [--option value]...",
+            "Commands:",
+            "  train          Trains a new perceptron, and saves it if a name is given",
+            "                 --hidden 100,50 --activation RELU --outputs 10 --alpha 0.05 --cycles 10",
+            "                 --batch-size 32 --threads 1 --precision DOUBLE --optimizer sgd|momentum|nesterov|adam",
+            "                 --seed <number> --save <name>",
+            "  evaluate       Prints the hits of a saved perceptron, of several ones together or of a sparse model",
+            "                 --model <name>[,<name>...] --combination VOTE|AVERAGE --sparse-model <file>",
+            "  convert-model  Writes a saved perceptron in the text format or pruned in the sparse format",
+            "                 --model <name> --format text|sparse --output <file>",
+            "                 --sparsity 0.9 --fine-tuning-cycles 0 --batch-size 32",
+            "  benchmark      Measures the samples per second of a saved perceptron or of a sparse model",
+            "                 --model <name> --sparse-model <file> --threads <all> --batch-size 1 --rounds 5",
+            "  serve          Serves a saved perceptron over HTTP until the process is stopped. It sets",
+            "                 -Dsun.net.httpserver.nodelay=true unless the property is already given",
+            "                 --model <name> --port 8080 --max-batch 64 --latency-budget 1000 --batch-threads <half>",
+            "Options of every command:",
+            "  --data-dir <directory with the four MNIST files>",
+            "  --train-images <file> --train-labels <file> --test-images <file> --test-labels <file>",
+            "  --eval-threads <all> --config <properties file>");
+
+    private static final List<String> COMMON_OPTIONS = Arrays.asList("config", "data-dir",
+            "train-images", "train-labels", "test-images", "test-labels", "eval-threads");
+    private static final Map<String, List<String>> COMMAND_OPTIONS = new HashMap<>();
+
+    static {
+        COMMAND_OPTIONS.put("train", Arrays.asList("hidden", "activation", "outputs", "alpha", "cycles",
+                "batch-size", "threads", "precision", "optimizer", "seed", "save"));
+        COMMAND_OPTIONS.put("evaluate", Arrays.asList("model", "combination", "sparse-model"));
+        COMMAND_OPTIONS.put("convert-model", Arrays.asList("model", "format", "output", "sparsity",
+                "fine-tuning-cycles", "batch-size"));
+        COMMAND_OPTIONS.put("benchmark", Arrays.asList("model", "sparse-model", "threads", "batch-size", "rounds"));
+        COMMAND_OPTIONS.put("serve", Arrays.asList("model", "port", "max-batch", "latency-budget", "batch-threads"));
+    }
+
+    private final String command;
+    private final Map<String, String> options;
+
+    private CommandLine(String command, Map<String, String> options){
+        this.command = command;
+        this.options = options;
+    }
+
+    /**
+     * Runs the command of the arguments, or prints the usage and exits with
+     * status 1 if they aren't valid.
+     * @param args The command followed by its options
+     */
+    static void run(String[] args){
+        CommandLine commandLine = parse(args);
+        commandLine.setDataSetFiles();
+        switch (commandLine.command) {
+            case "train":
+                commandLine.train();
+                break;
+            case "evaluate":
+                commandLine.evaluate();
+                break;
+            case "convert-model":
+                commandLine.convertModel();
+                break;
+            case "benchmark":
+                commandLine.benchmark();
+                break;
+            default:
+                commandLine.serve();
+        }
+    }
+
+    private static CommandLine parse(String[] args){
+        if (args.length == 0 || !COMMAND_OPTIONS.containsKey(args[0])) {
+            fail(args.length == 0 ? "Missing command" : "Unknown command: " + args[0]);
+        }
+        Set<String> allowed = new HashSet<>(COMMON_OPTIONS);
+        allowed.addAll(COMMAND_OPTIONS.get(args[0]));
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !allowed.contains(args[i].substring(2))) {
+                fail("Unknown option for " + args[0] + ": " + args[i]);
+            }
+            if (i + 1 == args.length) {
+                fail("Missing value for " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (options.containsKey("config")) {
+            //Only the options missing in the command line are taken from the file
+            Properties config = new Properties();
+            try (InputStream input = Files.newInputStream(Paths.get(options.get("config")))) {
+                config.load(input);
+            } catch (IOException ex) {
+                System.out.println("PROBLEM READING THE CONFIGURATION FILE");
+                System.out.println(ex);
+                System.exit(1);
+            }
+            for (String name : config.stringPropertyNames()) {
+                if (!allowed.contains(name)) {
+                    fail("Unknown option for " + args[0] + " in " + options.get("config") + ": " + name);
+                }
+                options.putIfAbsent(name, config.getProperty(name).trim());
+            }
+        }
+        return new CommandLine(args[0], options);
+    }
+
+    private void train(){
+        int[] hiddenLayersSizes = getInts("hidden", new int[]{100});
+        double alpha = getDouble("alpha", 0.05);
+        Precision precision = getEnum(Precision.class, "precision", Precision.DOUBLE);
+        NeuralNetWorker nnworker;
+        if (getInt("outputs", 10) == 1) {
+            //The old perceptron, with a single sigmoid output for the digit divided by 10
+            if (options.containsKey("activation") || precision != Precision.DOUBLE) {
+                fail("The perceptrons with a single output only use the sigmoid, in double precision");
+            }
+            nnworker = new NeuralNetWorker(alpha, hiddenLayersSizes);
+        } else if (getInt("outputs", 10) == 10) {
+            nnworker = new NeuralNetWorker(precision, alpha, getActivation(), hiddenLayersSizes);
+        } else {
+            fail("The number of outputs must be 1 or 10");
+            return;
+        }
+        nnworker.setEvaluationThreads(getInt("eval-threads", Runtime.getRuntime().availableProcessors()));
+        nnworker.setOptimizer(getOptimizer());
+        if (options.containsKey("seed")) {
+            nnworker.setSeed(getLong("seed", 0));
+        }
+        nnworker.trainNeuralNet(getInt("cycles", 10), getInt("batch-size", 32), getInt("threads", 1));
+        if (options.containsKey("save")) {
+            nnworker.saveNeuralNet(options.get("save"));
+        }
+    }
+
+    private void evaluate(){
+        if (options.containsKey("sparse-model")) {
+            SparseInferenceModel model = loadSparseModel();
+            try (Evaluator evaluator = new Evaluator(getInt("eval-threads", Runtime.getRuntime().availableProcessors()))) {
+                System.out.print(evaluator.evaluate(model, DataManager.loadTestData(), DataManager.loadTestLabels(), null, NeuralNetWorker.ERROR_RANGE));
+            }
+            return;
+        }
+        String[] names = getRequired("model").split(",");
+        for (String name : names) {
+            checkSavedPerceptron(name);
+        }
+        if (names.length > 1) {
+            NeuralNetWorker.testEnsemble(getEnum(EnsembleModel.Combination.class, "combination", EnsembleModel.Combination.VOTE), names);
+            return;
+        }
+        NeuralNetWorker nnworker = new NeuralNetWorker(names[0]);
+        nnworker.setEvaluationThreads(getInt("eval-threads", Runtime.getRuntime().availableProcessors()));
+        nnworker.testNeuralNet();
+    }
+
+    private void convertModel(){
+        String name = getRequired("model");
+        String output = getRequired("output");
+        checkSavedPerceptron(name);
+        if (Files.exists(Paths.get(output))) {
+            fail("The file " + output + " already exists");
+        }
+        String format = getRequired("format");
+        boolean written;
+        if (format.equals("text")) {
+            ModelInfo info = ModelRegistry.getDefault().getInfo(name);
+            written = DataManager.exportPerceptronText(DataManager.loadPerceptron(name), output,
+                    info.getTestDataRightGuessed(), info.getTrainingDataRightGuessed());
+        } else if (format.equals("sparse")) {
+            NeuralNetWorker nnworker = new NeuralNetWorker(name);
+            nnworker.setEvaluationThreads(getInt("eval-threads", Runtime.getRuntime().availableProcessors()));
+            SparseInferenceModel sparseModel = nnworker.pruneWeights(getDouble("sparsity", 0.9),
+                    getInt("fine-tuning-cycles", 0), getInt("batch-size", 32));
+            written = DataManager.saveSparseModel(sparseModel, output);
+        } else {
+            fail("Unknown format: " + format);
+            return;
+        }
+        System.out.println(written ? "Written " + output : "PROBLEM WRITING " + output);
+    }
+
+    /**
+     * Spreads the test data set several rounds, split between the threads,
+     * and prints the best round. Every thread has its own workspace and its
+     * samples already copied into batches, so only the spreading is timed.
+     */
+    private void benchmark(){
+        int threads = getInt("threads", Runtime.getRuntime().availableProcessors());
+        int batchSize = getInt("batch-size", 1);
+        int rounds = getInt("rounds", 5);
+        if (threads < 1 || batchSize < 1 || rounds < 1) {
+            fail("The threads, the batch size and the rounds must be at least 1");
+        }
+        SparseInferenceModel sparseModel = null;
+        InferenceModel model = null;
+        if (options.containsKey("sparse-model")) {
+            sparseModel = loadSparseModel();
+            if (batchSize > 1) {
+                fail("The sparse models spread one sample at a time, the batch size must be 1");
+            }
+        } else {
+            String name = getRequired("model");
+            checkSavedPerceptron(name);
+            model = DataManager.loadInferenceModel(name);
+        }
+        double[][] testDataSet = DataManager.loadTestData();
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int from = (int) ((long) testDataSet.length * t / threads);
+            int to = (int) ((long) testDataSet.length * (t + 1) / threads);
+            tasks.add(Executors.callable(sparseModel != null
+                    ? sparseTask(sparseModel, testDataSet, from, to)
+                    : batchTask(model, testDataSet, from, to, batchSize)));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long bestNanos = Long.MAX_VALUE;
+            //The first rounds warm up the compiler
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                for (Future<Object> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+                bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            }
+            System.out.println(String.format(Locale.ROOT, "Threads: %d, Batch Size: %d, Samples: %d, Throughput: %.0f samples/s, Time: %.2f us/sample per thread",
+                    threads, batchSize, testDataSet.length, testDataSet.length * 1e9 / bestNanos, bestNanos / 1e3 * threads / testDataSet.length));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("The benchmark failed", ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Runnable batchTask(InferenceModel model, double[][] dataSet, int from, int to, int batchSize){
+        int inputSize = model.getInputSize();
+        List<double[]> batches = new ArrayList<>();
+        for (int start = from; start < to; start += batchSize) {
+            int rows = Math.min(batchSize, to - start);
+            double[] batch = new double[rows * inputSize];
+            for (int row = 0; row < rows; row++) {
+                System.arraycopy(dataSet[start + row], 0, batch, row * inputSize, inputSize);
+            }
+            batches.add(batch);
+        }
+        InferenceWorkspace workspace = model.newWorkspace(batchSize);
+        double[] outputs = new double[batchSize * model.getOutputSize()];
+        return () -> {
+            for (double[] batch : batches) {
+                model.predictBatch(batch, outputs, batch.length / inputSize, workspace);
+            }
+        };
+    }
+
+    private static Runnable sparseTask(SparseInferenceModel model, double[][] dataSet, int from, int to){
+        InferenceWorkspace workspace = model.newWorkspace();
+        double[] outputs = new double[model.getOutputSize()];
+        return () -> {
+            for (int i = from; i < to; i++) {
+                model.predict(dataSet[i], outputs, workspace);
+            }
+        };
+    }
+
+    private void serve(){
+        //The JDK reads it once, before any HttpServer of the process exists; see InferenceServer
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        String name = getRequired("model");
+        checkSavedPerceptron(name);
+        InferenceServer server;
+        try {
+            server = new InferenceServer(DataManager.loadInferenceModel(name), getInt("port", 8080), getInt("max-batch", 64),
+                    getLong("latency-budget", 1000), getInt("batch-threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        } catch (IOException ex) {
+            System.out.println("PROBLEM OPENING THE PORT");
+            System.out.println(ex);
+            System.exit(1);
+            return;
+        }
+        //The threads of the HTTP server keep the process alive until it is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close, "Inference server shutdown"));
+        server.start();
+        System.out.println("Serving " + name + " on port " + server.getPort());
+    }
+
+    private void setDataSetFiles(){
+        Path directory = Paths.get(options.getOrDefault("data-dir", ""));
+        DataManager.setDataSetFiles(
+                options.getOrDefault("train-images", directory.resolve("train-images.idx3-ubyte").toString()),
+                options.getOrDefault("train-labels", directory.resolve("train-labels.idx1-ubyte").toString()),
+                options.getOrDefault("test-images", directory.resolve("t10k-images.idx3-ubyte").toString()),
+                options.getOrDefault("test-labels", directory.resolve("t10k-labels.idx1-ubyte").toString()));
+    }
+
+    private SparseInferenceModel loadSparseModel(){
+        SparseInferenceModel model = DataManager.loadSparseModel(options.get("sparse-model"));
+        if (model == null) {
+            System.exit(1);
+        }
+        return model;
+    }
+
+    private static void checkSavedPerceptron(String name){
+        if (!ModelRegistry.getDefault().contains(name)) {
+            fail("There is no saved perceptron called " + name);
+        }
+    }
+
+    private ActivationFunction getActivation(){
+        try {
+            return ActivationFunction.forName(options.getOrDefault("activation", "RELU").toUpperCase(Locale.ROOT));
+        } catch (RuntimeException ex) {
+            fail(ex.getMessage());
+            return null;
+        }
+    }
+
+    private Optimizer getOptimizer(){
+        switch (options.getOrDefault("optimizer", "sgd")) {
+            case "sgd":
+                return Optimizer.sgd();
+            case "momentum":
+                return Optimizer.momentum(0.9);
+            case "nesterov":
+                return Optimizer.nesterov(0.9);
+            case "adam":
+                return Optimizer.adam();
+            default:
+                fail("Unknown optimizer: " + options.get("optimizer"));
+                return null;
+        }
+    }
+
+    private String getRequired(String name){
+        if (!options.containsKey(name)) {
+            fail("The command " + command + " needs --" + name);
+        }
+        return options.get(name);
+    }
+
+    private int getInt(String name, int defaultValue){
+        try {
+            return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+        } catch (NumberFormatException ex) {
+            fail("--" + name + " must be an integer: " + options.get(name));
+            return defaultValue;
+        }
+    }
+
+    private long getLong(String name, long defaultValue){
+        try {
+            return options.containsKey(name) ? Long.parseLong(options.get(name)) : defaultValue;
+        } catch (NumberFormatException ex) {
+            fail("--" + name + " must be an integer: " + options.get(name));
+            return defaultValue;
+        }
+    }
+
+    private double getDouble(String name, double defaultValue){
+        try {
+            return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+        } catch (NumberFormatException ex) {
+            fail("--" + name + " must be a number: " + options.get(name));
+            return defaultValue;
+        }
+    }
+
+    private int[] getInts(String name, int[] defaultValue){
+        if (!options.containsKey(name)) return defaultValue;
+        String[] values = options.get(name).split(",");
+        int[] ints = new int[values.length];
+        try {
+            for (int i = 0; i < values.length; i++) {
+                ints[i] = Integer.parseInt(values[i].trim());
+            }
+        } catch (NumberFormatException ex) {
+            fail("--" + name + " must be a list of integers separated by commas: " + options.get(name));
+        }
+        return ints;
+    }
+
+    private <E extends Enum<E>> E getEnum(Class<E> type, String name, E defaultValue){
+        if (!options.containsKey(name)) return defaultValue;
+        try {
+            return Enum.valueOf(type, options.get(name).toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            fail("Unknown value of --" + name + ": " + options.get(name));
+            return defaultValue;
+        }
+    }
+
+    private static void fail(String message){
+        System.out.println(message);
+        System.out.println(USAGE);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,145 @@
+package handwrittennumberidentifier;
+
+/**
+ * Time, loss, hits and memory usage of one training cycle.
+ * @author Pablo Alonso
+ */
+public final class CycleMetrics {
+    
+    private final int cycle;
+    private final long samples;
+    private final long trainingNanos;
+    private final long forwardNanos;
+    private final long deltaNanos;
+    private final long updateNanos;
+    private final long evaluationNanos;
+    private final double loss;
+    private final EvaluationResult trainingData;
+    private final EvaluationResult testData;
+    private final long allocatedBytes;
+    private final long garbageCollections;
+    private final long garbageCollectionMillis;
+    
+    CycleMetrics(int cycle, TrainingCounters counters, long trainingNanos, long evaluationNanos, EvaluationResult trainingData, 
+            EvaluationResult testData, long allocatedBytes, long garbageCollections, long garbageCollectionMillis){
+        this.cycle = cycle;
+        this.samples = counters.samples;
+        this.trainingNanos = trainingNanos;
+        this.forwardNanos = counters.forwardNanos;
+        this.deltaNanos = counters.deltaNanos;
+        this.updateNanos = counters.updateNanos;
+        this.evaluationNanos = evaluationNanos;
+        this.loss = counters.samples == 0 ? Double.NaN : counters.lossSum / counters.samples;
+        this.trainingData = trainingData;
+        this.testData = testData;
+        this.allocatedBytes = allocatedBytes;
+        this.garbageCollections = garbageCollections;
+        this.garbageCollectionMillis = garbageCollectionMillis;
+    }
+
+    public int getCycle() {
+        return cycle;
+    }
+
+    /**
+     *
+     * @return The number of samples trained in this cycle
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     *
+     * @return The total time of the training, without the evaluation
+     */
+    public long getTrainingNanos() {
+        return trainingNanos;
+    }
+
+    public long getForwardNanos() {
+        return forwardNanos;
+    }
+
+    /**
+     *
+     * @return The time spent calculating the deltas and the gradients
+     */
+    public long getDeltaNanos() {
+        return deltaNanos;
+    }
+
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    public long getEvaluationNanos() {
+        return evaluationNanos;
+    }
+
+    /**
+     *
+     * @return The mean loss of the samples trained in this cycle, each one 
+     * measured before the update it took part in
+     */
+    public double getLoss() {
+        return loss;
+    }
+
+    /**
+     *
+     * @return The evaluation of the training data set, or null if it wasn't evaluated
+     */
+    public EvaluationResult getTrainingData() {
+        return trainingData;
+    }
+
+    /**
+     *
+     * @return The evaluation of the test data set, or null if it wasn't evaluated
+     */
+    public EvaluationResult getTestData() {
+        return testData;
+    }
+
+    /**
+     *
+     * @return The bytes allocated by the training thread during the cycle, or
+     * -1 if the JVM can't measure it
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     *
+     * @return The number of garbage collections of the whole JVM during the cycle
+     */
+    public long getGarbageCollections() {
+        return garbageCollections;
+    }
+
+    public long getGarbageCollectionMillis() {
+        return garbageCollectionMillis;
+    }
+    
+    public double getSamplesPerSecond() {
+        return trainingNanos == 0 ? 0 : samples * 1e9 / trainingNanos;
+    }
+    
+    /**
+     *
+     * @return The accuracy on the training data set, or NaN if it wasn't evaluated
+     */
+    public double getTrainingAccuracy() {
+        return trainingData == null ? Double.NaN : trainingData.getAccuracy();
+    }
+    
+    /**
+     *
+     * @return The accuracy on the test data set, or NaN if it wasn't evaluated
+     */
+    public double getTestAccuracy() {
+        return testData == null ? Double.NaN : testData.getAccuracy();
+    }
+}
@@ -1,16 +1,16 @@
 package handwrittennumberidentifier;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -19,33 +19,79 @@ import java.util.Scanner;
  */
 public class DataManager {
     
+    private static Path trainImagesFile = Paths.get("train-images.idx3-ubyte");
+    private static Path trainLabelsFile = Paths.get("train-labels.idx1-ubyte");
+    private static Path testImagesFile = Paths.get("t10k-images.idx3-ubyte");
+    private static Path testLabelsFile = Paths.get("t10k-labels.idx1-ubyte");
+    
+    /**
+     * Changes the files read by the load methods, which are the MNIST files 
+     * of the working directory by default. It must be called before loading
+     * any data set.
+     * @param trainImages The IDX file with the training images
+     * @param trainLabels The IDX file with the training labels
+     * @param testImages The IDX file with the test images
+     * @param testLabels The IDX file with the test labels
+     */
+    public static void setDataSetFiles(String trainImages, String trainLabels, String testImages, String testLabels){
+        trainImagesFile = Paths.get(trainImages);
+        trainLabelsFile = Paths.get(trainLabels);
+        testImagesFile = Paths.get(testImages);
+        testLabelsFile = Paths.get(testLabels);
+    }
+    
     public static double[][] loadTrainData() {
-        Path path = Paths.get("train-images.idx3-ubyte");
-        return loadData(path, 60000);
+        return loadData(trainImagesFile);
     }
 
     public static double[][] loadTestData() {
-        Path path = Paths.get("t10k-images.idx3-ubyte");
-        return loadData(path, 10000);
+        return loadData(testImagesFile);
+    }
+    
+    /**
+     * Same as loadTrainData, but every value is stored as a float, so the data
+     * set takes half the memory.
+     * @return The training images, one row per sample
+     */
+    public static float[][] loadTrainDataFloat() {
+        return loadDataFloat(trainImagesFile);
+    }
+
+    /**
+     * Same as loadTestData, but every value is stored as a float.
+     * @return The test images, one row per sample
+     */
+    public static float[][] loadTestDataFloat() {
+        return loadDataFloat(testImagesFile);
+    }
+    
+    /**
+     * Same as loadTrainData, but only the pixels that aren't 0 are stored.
+     * @return The training images, one sparse row per sample
+     */
+    public static SparseDataSet loadTrainDataSparse() {
+        return loadDataSparse(trainImagesFile);
+    }
+
+    /**
+     * Same as loadTestData, but only the pixels that aren't 0 are stored.
+     * @return The test images, one sparse row per sample
+     */
+    public static SparseDataSet loadTestDataSparse() {
+        return loadDataSparse(testImagesFile);
     }
     
     public static double[] loadTrainLabels() {
-        Path path = Paths.get("train-labels.idx1-ubyte");
-        return loadLabels(path, 60000);
+        return loadLabels(trainLabelsFile);
     }
 
     public static double[] loadTestLabels() {
-        Path path = Paths.get("t10k-labels.idx1-ubyte");
-        return loadLabels(path, 10000);
+        return loadLabels(testLabelsFile);
     }
     
     public static boolean savePercepron(MultilayerPerceptron perceptron, String perceptronName, int testDataRightGuessed, int trainingDataRigthGuessed){
-        for (String name : getPerceptronNames()) {
-            if(perceptronName.equals(name)) return false;
-        }
         try {
-            savePerceptronData(perceptron, perceptronName, testDataRightGuessed, trainingDataRigthGuessed);
-            return true;
+            return ModelRegistry.getDefault().save(perceptron, perceptronName, testDataRightGuessed, trainingDataRigthGuessed);
         } catch (IOException ex) {
             System.out.println(ex);
         }
@@ -54,40 +100,136 @@ public class DataManager {
     
     /**
      * This method throw an error if the name passed as argument is not found in
-     * the database index file.
+     * the database index file. The perceptrons loaded lately are cached, so 
+     * loading them again doesn't parse their files.
      * @param perceptronName The name of the perceptron saved in the DataBase
      * @return the perceptron saved in the DataBase.
      */
     public static MultilayerPerceptron loadPerceptron(String perceptronName){
-        boolean exist = false;
-        for (String name : getPerceptronNames()) {
-            if (perceptronName.equals(name)) {
-                exist = true;
-                break;
-            }
+        return ModelRegistry.getDefault().load(perceptronName);
+    }
+    
+    /**
+     * Loads a perceptron saved in the DataBase as a read-only model. Perceptrons 
+     * saved in the binary format are memory mapped, and the model reads the 
+     * weights straight from the file without copying them.
+     * This method throw an error if the name passed as argument is not found in
+     * the database index file.
+     * @param perceptronName The name of the perceptron saved in the DataBase
+     * @return the perceptron saved in the DataBase, ready to be shared between threads.
+     */
+    public static InferenceModel loadInferenceModel(String perceptronName){
+        return ModelRegistry.getDefault().loadInferenceModel(perceptronName);
+    }
+    
+    /**
+     * Loads several perceptrons saved in the DataBase as read-only models that
+     * answer together. Their first layers are fused, so each input is read once
+     * for all of them. They must all have the same input and output sizes.
+     * @param combination How the outputs of the perceptrons are combined
+     * @param perceptronNames The names of the perceptrons saved in the DataBase
+     * @return the ensemble of the perceptrons, ready to be shared between threads.
+     */
+    public static EnsembleModel loadEnsemble(EnsembleModel.Combination combination, String... perceptronNames){
+        return ModelRegistry.getDefault().loadEnsemble(combination, perceptronNames);
+    }
+    
+    /**
+     *
+     * @return The layers size, hits and saving time of every perceptron saved
+     * in the DataBase, without reading their files
+     */
+    public static List<ModelInfo> getSavedPerceptrons(){
+        return ModelRegistry.getDefault().getModels();
+    }
+    
+    /**
+     * Writes a perceptron in the old text format. The file isn't added to the 
+     * database index, it is meant to be read by people or other programs.
+     * @param perceptron The perceptron that will be exported
+     * @param fileName The name of the new file, it must not exist
+     * @param testDataRightGuessed The hits of the perceptron in the test data set
+     * @param trainingDataRigthGuessed The hits of the perceptron in the training data set
+     * @return true if the file was written
+     */
+    public static boolean exportPerceptronText(MultilayerPerceptron perceptron, String fileName, int testDataRightGuessed, int trainingDataRigthGuessed){
+        File file = new File(fileName);
+        if (file.exists()) return false;
+        try {
+            writePerceptronText(perceptron, fileName, testDataRightGuessed, trainingDataRigthGuessed, file);
+            return true;
+        } catch (IOException ex) {
+            System.out.println(ex);
+        }
+        return false;
+    }
+    
+    /**
+     * Writes a pruned model in its own sparse format. The file isn't added to 
+     * the database index.
+     * @param model The model that will be saved
+     * @param fileName The name of the new file, it must not exist
+     * @return true if the file was written
+     */
+    public static boolean saveSparseModel(SparseInferenceModel model, String fileName){
+        File file = new File(fileName);
+        if (file.exists()) return false;
+        try {
+            model.save(file.toPath());
+            return true;
+        } catch (IOException ex) {
+            System.out.println(ex);
+        }
+        return false;
+    }
+    
+    /**
+     *
+     * @param fileName A file written by saveSparseModel
+     * @return The pruned model, or null if the file can't be read
+     */
+    public static SparseInferenceModel loadSparseModel(String fileName){
+        try {
+            return SparseInferenceModel.load(Paths.get(fileName));
+        } catch (IOException ex) {
+            System.out.println("PROBLEM LOADING THE SPARSE MODEL");
+            System.out.println(ex);
         }
-        if(!exist){
-            throw new RuntimeException("Perceptron not found in the PerceptronIndex file");
+        return null;
+    }
+    
+    /**
+     * Opens an IDX file without loading it, its samples are decoded when they
+     * are requested.
+     * @param fileName The IDX file
+     * @return The file mapped in memory
+     */
+    public static IdxFile openIdxFile(String fileName){
+        try {
+            return IdxFile.open(Paths.get(fileName));
+        } catch (IOException ex) {
+            System.out.println("PROBLEM WITH ONE DATA SET FILE");
+            System.out.println(ex);
+            System.exit(1);
         }
-        return loadPerceptronData(perceptronName);
+        return null;
+    }
+    
+    /**
+     * The test images without decoding them, for the models fed with raw pixels.
+     * @return The test images file, mapped in memory
+     */
+    public static IdxFile openTestImages(){
+        return openIdxFile(testImagesFile.toString());
     }
     
-    private static double[][] loadData(Path path, int numberOfImage){
-        double[][] dataSet = new double[numberOfImage][784];
+    static double[][] loadData(Path path){
         try {
-            byte[] images = Files.readAllBytes(path);
-            int pointer = 16;
+            IdxFile images = IdxFile.open(path);
             //Scaling the input data from 0 to 1; 0 = 0, 255 = 1
-            for (double[] image : dataSet) {
-                for (int i = 0; i < image.length; i++) {
-                    Byte pixelByte = images[pointer];
-                    double pixel = pixelByte.doubleValue();
-                    if (pixel < 0) {
-                        pixel = 256 + pixel;
-                    }
-                    image[i] = pixel / 255;
-                    pointer++;
-                }
+            double[][] dataSet = new double[images.getNumberOfSamples()][images.getSampleSize()];
+            for (int i = 0; i < dataSet.length; i++) {
+                images.readSample(i, dataSet[i]);
             }
             return dataSet;
         } catch (IOException ex) {
@@ -95,104 +237,134 @@ public class DataManager {
             System.out.println(ex);
             System.exit(1);
         }
-        return dataSet;
+        return new double[0][];
     }
     
-    private static double[] loadLabels(Path path, int numberOfLabels){
-        double[] labelsSet = new double[numberOfLabels];
+    static float[][] loadDataFloat(Path path){
         try {
-            byte[] labels = Files.readAllBytes(path);
-            int pointer = 8;
-            //Scaling the input data from 0 to 0.9; 0 = 0, 9 = 0.9
-            for (int i = 0; i < labelsSet.length; i++) {
-                Byte labelByte = labels[pointer];
-                double label = labelByte.doubleValue();
-                labelsSet[i] = label / 10;
-                pointer++;
+            IdxFile images = IdxFile.open(path);
+            //Scaling the input data from 0 to 1; 0 = 0, 255 = 1
+            float[][] dataSet = new float[images.getNumberOfSamples()][images.getSampleSize()];
+            for (int i = 0; i < dataSet.length; i++) {
+                images.readSample(i, dataSet[i]);
             }
+            return dataSet;
         } catch (IOException ex) {
-            System.out.println("PROBLEM WITH ONE LABEL SET FILE");
+            System.out.println("PROBLEM WITH ONE DATA SET FILE");
             System.out.println(ex);
             System.exit(1);
         }
-        return labelsSet;
+        return new float[0][];
     }
-
-    private static ArrayList<String> getPerceptronNames() {
+    
+    static SparseDataSet loadDataSparse(Path path){
         try {
-            File index = new File("PerceptronIndex");
-            ArrayList<String> perceptronNames = new ArrayList<>();
-            if (!index.exists()){
-                index.createNewFile();
-            } else {
-                try (Scanner input = new Scanner(new BufferedReader(new FileReader(index)))) {
-                    while (input.hasNextLine()) {
-                        String line = input.nextLine();
-                        if (line.isEmpty()) continue;
-                        perceptronNames.add(line.trim());
+            IdxFile images = IdxFile.open(path);
+            int sampleSize = images.getSampleSize();
+            //The file is read twice, first to size the arrays and then to fill them
+            int[] rowOffsets = new int[images.getNumberOfSamples() + 1];
+            for (int i = 0; i < images.getNumberOfSamples(); i++) {
+                ByteBuffer pixels = images.getSampleBytes(i);
+                int nonZeros = 0;
+                for (int j = 0; j < sampleSize; j++) {
+                    if (pixels.get(j) != 0) nonZeros++;
+                }
+                rowOffsets[i + 1] = rowOffsets[i] + nonZeros;
+            }
+            int[] columns = new int[rowOffsets[rowOffsets.length - 1]];
+            double[] values = new double[columns.length];
+            for (int i = 0; i < images.getNumberOfSamples(); i++) {
+                ByteBuffer pixels = images.getSampleBytes(i);
+                int position = rowOffsets[i];
+                for (int j = 0; j < sampleSize; j++) {
+                    int pixel = pixels.get(j) & 0xFF;
+                    if (pixel != 0) {
+                        columns[position] = j;
+                        //Scaling the input data from 0 to 1; 0 = 0, 255 = 1
+                        values[position++] = pixel / 255.0;
                     }
                 }
             }
-            return perceptronNames;
+            return new SparseDataSet(sampleSize, rowOffsets, columns, values);
         } catch (IOException ex) {
+            System.out.println("PROBLEM WITH ONE DATA SET FILE");
             System.out.println(ex);
+            System.exit(1);
         }
         return null;
     }
     
-    private static void savePerceptronData(MultilayerPerceptron perceptron, String perceptronName, int testDataRightGuessed, int trainingDataRigthGuessed) throws IOException {
-        //Index File
-        File perceptronIndex = new File("PerceptronIndex");
-        if(!perceptronIndex.exists()) perceptronIndex.createNewFile();
-        PrintStream perceptronIndexline = new PrintStream(new FileOutputStream(perceptronIndex, true));
-        perceptronIndexline.append(perceptronName + "\n");
-        
-        //Data File
-        File newPerceptronData = new File(perceptronName);
-        newPerceptronData.createNewFile();
-        PrintStream line = new PrintStream(new FileOutputStream(newPerceptronData, true));
-        String neuronsPerLayer = "NeuronsPerLayer:";
-        for (int size : perceptron.getAllLayersSize()) {
-            neuronsPerLayer += " " + size;
-        }
-        
-        line.append("PerceptronID: " + perceptronName + "\n");
-        line.append(neuronsPerLayer + "\n");
-        line.append("AlphaConstant: " + perceptron.getAlpha() + "\n");
-        line.append("TestDataRightGuessed: " + testDataRightGuessed + "\n");
-        line.append("TrainingDataRigthGuessed: " + trainingDataRigthGuessed + "\n");
-        line.append("Weights:" + "\n");
-        String weightsValues;
-        for (double[] weights : perceptron.getWeights()) {
-            weightsValues = "";
-            for (double weight : weights) {
-                weightsValues += weight + " ";
+    static double[] loadLabels(Path path){
+        try {
+            IdxFile labels = IdxFile.open(path);
+            //Scaling the input data from 0 to 0.9; 0 = 0, 9 = 0.9
+            double[] labelsSet = new double[labels.getNumberOfSamples()];
+            for (int i = 0; i < labelsSet.length; i++) {
+                labelsSet[i] = labels.getLabel(i) / 10.0;
             }
-            line.append(weightsValues.trim() + "\n");
+            return labelsSet;
+        } catch (IOException ex) {
+            System.out.println("PROBLEM WITH ONE LABEL SET FILE");
+            System.out.println(ex);
+            System.exit(1);
         }
-        line.append("EndWeights" + "\n");
-        
-        line.append("Thresholds:" + "\n");
-        String ThresholdsValues;
-        for (double[] thresholds : perceptron.getThresholds()) {
-            ThresholdsValues = "";
-            for (double threshold : thresholds) {
-                ThresholdsValues += threshold + " ";
+        return new double[0];
+    }
+
+    private static void writePerceptronText(MultilayerPerceptron perceptron, String perceptronName, int testDataRightGuessed, int trainingDataRigthGuessed, File file) throws IOException {
+        try (BufferedWriter line = new BufferedWriter(new FileWriter(file))) {
+            StringBuilder neuronsPerLayer = new StringBuilder("NeuronsPerLayer:");
+            for (int size : perceptron.getAllLayersSize()) {
+                neuronsPerLayer.append(" ").append(size);
+            }
+            StringBuilder activations = new StringBuilder("Activations:");
+            for (ActivationFunction activation : perceptron.getActivations()) {
+                activations.append(" ").append(activation.name());
+            }
+
+            line.append("PerceptronID: " + perceptronName + "\n");
+            line.append(neuronsPerLayer).append("\n");
+            line.append("AlphaConstant: " + perceptron.getAlpha() + "\n");
+            line.append(activations).append("\n");
+            line.append("LossFunction: " + perceptron.getLossFunction().name() + "\n");
+            line.append("TestDataRightGuessed: " + testDataRightGuessed + "\n");
+            line.append("TrainingDataRigthGuessed: " + trainingDataRigthGuessed + "\n");
+            line.append("Weights:" + "\n");
+            for (double[] weights : perceptron.getWeights()) {
+                writeValues(line, weights);
+            }
+            line.append("EndWeights" + "\n");
+
+            line.append("Thresholds:" + "\n");
+            for (double[] thresholds : perceptron.getThresholds()) {
+                writeValues(line, thresholds);
             }
-            line.append(ThresholdsValues.trim() + "\n");
+            line.append("EndThresholds" + "\n");
         }
-        line.append("EndThresholds" + "\n");
+    }
+    
+    private static void writeValues(BufferedWriter line, double[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) line.append(' ');
+            line.append(Double.toString(values[i]));
+        }
+        line.append("\n");
     }
 
-    private static MultilayerPerceptron loadPerceptronData(String perceptronName) {
+    static MultilayerPerceptron loadPerceptronData(Path file) {
         try {
-            File perceptronData = new File(perceptronName);
+            File perceptronData = file.toFile();
             if (!perceptronData.exists()) return null;
+            if (BinaryModelFormat.isBinaryModel(perceptronData.toPath())) {
+                return BinaryModelFormat.read(perceptronData.toPath());
+            }
             try (Scanner input = new Scanner(new BufferedReader(new FileReader(perceptronData)))) {
                 boolean loadingWeights = false;
                 boolean loadingThresholds = false;
                 double alpha = 0;
                 int[] layerSizes = new int[0];
+                String[] activations = new String[0];
+                LossFunction lossFunction = LossFunction.SQUARED_ERROR;
                 LinkedList<double[]> weights = new LinkedList<>();
                 LinkedList<double[]> thresholds = new LinkedList<>();
                 while (input.hasNextLine()) {
@@ -231,6 +403,13 @@ public class DataManager {
                         if (keyValueWords[0].equalsIgnoreCase("AlphaConstant:")) {
                             alpha = Double.parseDouble(keyValueWords[1]);
                         }
+                        if (keyValueWords[0].equalsIgnoreCase("Activations:")) {
+                            activations = new String[keyValueWords.length - 1];
+                            System.arraycopy(keyValueWords, 1, activations, 0, activations.length);
+                        }
+                        if (keyValueWords[0].equalsIgnoreCase("LossFunction:")) {
+                            lossFunction = LossFunction.valueOf(keyValueWords[1]);
+                        }
                         if (keyValueWords[0].equalsIgnoreCase("Weights:")) {
                             loadingWeights = true;
                         }
@@ -243,7 +422,13 @@ public class DataManager {
                 for (int i = 1; i < layerSizes.length - 1; i++) {
                     hiddenLayersSizes[i - 1] = layerSizes[i];
                 }
-                return new MultilayerPerceptron(layerSizes[0], layerSizes[layerSizes.length - 1], alpha, hiddenLayersSizes, weights, thresholds);
+                MultilayerPerceptron perceptron = new MultilayerPerceptron(layerSizes[0], layerSizes[layerSizes.length - 1], alpha, hiddenLayersSizes, weights, thresholds);
+                //Files saved before the activations were configurable only have sigmoids
+                for (int i = 0; i < activations.length; i++) {
+                    perceptron.setActivation(i + 1, ActivationFunction.forName(activations[i]));
+                }
+                perceptron.setLossFunction(lossFunction);
+                return perceptron;
             }
 
         } catch (IOException ex) {
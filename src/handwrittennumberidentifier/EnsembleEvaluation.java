@@ -0,0 +1,162 @@
+package handwrittennumberidentifier;
+
+/**
+ * Results of spreading a data set through an EnsembleModel: the hits and the
+ * confusion matrix of the combined outputs, the hits of each model on its own,
+ * and how often the models guess the same digit.
+ * @author Pablo Alonso
+ */
+public final class EnsembleEvaluation {
+
+    private int hits;
+    private int samples;
+    //Rows are the expected class, columns the class chosen by the ensemble
+    private final int[][] confusionMatrix;
+    private final int[] modelHits;
+    //Samples where each model guessed the same class as the ensemble
+    private final int[] agreementsWithEnsemble;
+    //Samples where two models guessed the same class, only the upper half is used
+    private final int[][] pairwiseAgreements;
+    private int unanimousSamples;
+
+    EnsembleEvaluation(int numberOfModels, int numberOfClasses){
+        confusionMatrix = new int[numberOfClasses][numberOfClasses];
+        modelHits = new int[numberOfModels];
+        agreementsWithEnsemble = new int[numberOfModels];
+        pairwiseAgreements = new int[numberOfModels][numberOfModels];
+    }
+
+    /**
+     * Counts one sample.
+     */
+    void addSample(int expectedClass, int guessedClass, boolean hit, int[] modelClasses, boolean[] modelHit){
+        samples++;
+        if (hit) hits++;
+        confusionMatrix[expectedClass][guessedClass]++;
+        boolean unanimous = true;
+        for (int m = 0; m < modelClasses.length; m++) {
+            if (modelHit[m]) modelHits[m]++;
+            if (modelClasses[m] == guessedClass) agreementsWithEnsemble[m]++;
+            if (modelClasses[m] != modelClasses[0]) unanimous = false;
+            for (int n = m + 1; n < modelClasses.length; n++) {
+                if (modelClasses[m] == modelClasses[n]) pairwiseAgreements[m][n]++;
+            }
+        }
+        if (unanimous) unanimousSamples++;
+    }
+
+    /**
+     * Adds the counts of the evaluation of other samples with the same ensemble.
+     */
+    void add(EnsembleEvaluation partial){
+        samples += partial.samples;
+        hits += partial.hits;
+        unanimousSamples += partial.unanimousSamples;
+        for (int i = 0; i < confusionMatrix.length; i++) {
+            for (int j = 0; j < confusionMatrix.length; j++) {
+                confusionMatrix[i][j] += partial.confusionMatrix[i][j];
+            }
+        }
+        for (int m = 0; m < modelHits.length; m++) {
+            modelHits[m] += partial.modelHits[m];
+            agreementsWithEnsemble[m] += partial.agreementsWithEnsemble[m];
+            for (int n = m + 1; n < modelHits.length; n++) {
+                pairwiseAgreements[m][n] += partial.pairwiseAgreements[m][n];
+            }
+        }
+    }
+
+    /**
+     *
+     * @return The hits and the confusion matrix of the combined outputs
+     */
+    public EvaluationResult getResult(){
+        int[][] copy = new int[confusionMatrix.length][];
+        for (int i = 0; i < confusionMatrix.length; i++) {
+            copy[i] = confusionMatrix[i].clone();
+        }
+        return new EvaluationResult(hits, samples, copy);
+    }
+
+    public int getHits(){
+        return hits;
+    }
+
+    public int getSamples(){
+        return samples;
+    }
+
+    public double getAccuracy(){
+        return samples == 0 ? 0 : (double) hits / samples;
+    }
+
+    public int getNumberOfModels(){
+        return modelHits.length;
+    }
+
+    /**
+     *
+     * @param model The index of the model inside the ensemble
+     * @return The hits of that model on its own
+     */
+    public int getModelHits(int model){
+        return modelHits[model];
+    }
+
+    public double getModelAccuracy(int model){
+        return samples == 0 ? 0 : (double) modelHits[model] / samples;
+    }
+
+    /**
+     *
+     * @param model The index of the model inside the ensemble
+     * @return The fraction of the samples where that model guessed the same
+     * digit as the whole ensemble
+     */
+    public double getAgreementWithEnsemble(int model){
+        return samples == 0 ? 0 : (double) agreementsWithEnsemble[model] / samples;
+    }
+
+    /**
+     *
+     * @return Element [m][n] is the fraction of the samples where the models m
+     * and n guessed the same digit. The diagonal is 1
+     */
+    public double[][] getPairwiseAgreement(){
+        int models = modelHits.length;
+        double[][] agreement = new double[models][models];
+        for (int m = 0; m < models; m++) {
+            agreement[m][m] = 1;
+            for (int n = m + 1; n < models; n++) {
+                agreement[m][n] = samples == 0 ? 0 : (double) pairwiseAgreements[m][n] / samples;
+                agreement[n][m] = agreement[m][n];
+            }
+        }
+        return agreement;
+    }
+
+    /**
+     *
+     * @return The number of samples where every model guessed the same digit
+     */
+    public int getUnanimousSamples(){
+        return unanimousSamples;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder text = new StringBuilder();
+        text.append("Ensemble Hits: ").append(hits).append("/").append(samples)
+                .append(", Unanimous Samples: ").append(unanimousSamples).append("\n");
+        double[][] agreement = getPairwiseAgreement();
+        for (int m = 0; m < modelHits.length; m++) {
+            text.append("Model ").append(m).append(": Hits: ").append(modelHits[m])
+                    .append(String.format(", Agreement With Ensemble: %.4f, Agreement With Each Model:", getAgreementWithEnsemble(m)));
+            for (double value : agreement[m]) {
+                text.append(String.format(" %.4f", value));
+            }
+            text.append("\n");
+        }
+        return text.toString();
+    }
+}
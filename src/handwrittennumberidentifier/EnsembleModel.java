@@ -0,0 +1,321 @@
+package handwrittennumberidentifier;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Several InferenceModels with the same inputs and outputs that answer
+ * together. The first layers of all the models are fused into a single wider
+ * layer, so every input is read once for the whole ensemble instead of once
+ * per model, and the rest of each model is spread on its own. The outputs of
+ * the models are combined by averaging them or by voting.
+ * <p>
+ * Like InferenceModel, the ensemble never changes once it is created and can
+ * be shared by any number of threads, each one with its own EnsembleWorkspace.
+ * @author Pablo Alonso
+ */
+public final class EnsembleModel {
+
+    public enum Combination {
+        //The mean of the outputs of the models
+        AVERAGE,
+        //The share of votes of each digit, a model votes for its biggest output
+        VOTE
+    }
+
+    private static final int NUMBER_OF_DIGITS = 10;
+
+    private final InferenceModel[] models;
+    private final Combination combination;
+    private final int inputSize;
+    private final int outputSize;
+    //Weights of the fused first layer, row k holds the weights leaving input k
+    private final double[] firstLayerWeights;
+    private final double[] firstLayerThresholds;
+    //Where the neurons of each model start inside the fused layer, and the total at the end
+    private final int[] firstLayerOffsets;
+    private final ActivationFunction[] firstLayerActivations;
+    //Layers after the first one of each model, null if the first one is its output layer
+    private final InferenceModel[] tails;
+    private final ThreadLocal<EnsembleWorkspace> workspaces;
+
+    private EnsembleModel(InferenceModel[] models, Combination combination){
+        if(models.length == 0){
+            throw new RuntimeException("An ensemble needs at least one model");
+        }
+        this.models = models.clone();
+        this.combination = combination;
+        this.inputSize = models[0].getInputSize();
+        this.outputSize = models[0].getOutputSize();
+        firstLayerOffsets = new int[models.length + 1];
+        for (int m = 0; m < models.length; m++) {
+            if(models[m].getInputSize() != inputSize || models[m].getOutputSize() != outputSize){
+                throw new RuntimeException("Every model of an ensemble must have the same input and output sizes");
+            }
+            firstLayerOffsets[m + 1] = firstLayerOffsets[m] + models[m].getAllLayersSize()[1];
+        }
+        int firstLayerSize = firstLayerOffsets[models.length];
+        firstLayerWeights = new double[inputSize * firstLayerSize];
+        firstLayerThresholds = new double[firstLayerSize];
+        firstLayerActivations = new ActivationFunction[models.length];
+        tails = new InferenceModel[models.length];
+        for (int m = 0; m < models.length; m++) {
+            fuse(m);
+        }
+        workspaces = ThreadLocal.withInitial(this::newWorkspace);
+    }
+
+    /**
+     *
+     * @param combination How the outputs of the models are combined
+     * @param models The models of the ensemble, all with the same input and
+     * output sizes
+     * @return A new ensemble
+     */
+    public static EnsembleModel of(Combination combination, InferenceModel... models){
+        return new EnsembleModel(models, combination);
+    }
+
+    /**
+     *
+     * @param combination How the outputs of the models are combined
+     * @param models The models of the ensemble, all with the same input and
+     * output sizes
+     * @return A new ensemble
+     */
+    public static EnsembleModel of(Combination combination, List<InferenceModel> models){
+        return new EnsembleModel(models.toArray(new InferenceModel[0]), combination);
+    }
+
+    /**
+     * Copies the first layer of a model into its columns of the fused layer,
+     * and keeps the rest of its layers as a model of their own that reads the
+     * same buffers, without copying them.
+     */
+    private void fuse(int m){
+        int[] layerSizes = models[m].getAllLayersSize();
+        int firstLayerSize = firstLayerOffsets[models.length];
+        int modelFirstLayerSize = layerSizes[1];
+        DoubleBuffer weights = models[m].getWeights();
+        DoubleBuffer thresholds = models[m].getThresholds();
+        for (int k = 0; k < inputSize; k++) {
+            for (int j = 0; j < modelFirstLayerSize; j++) {
+                firstLayerWeights[k * firstLayerSize + firstLayerOffsets[m] + j] = weights.get(k * modelFirstLayerSize + j);
+            }
+        }
+        for (int j = 0; j < modelFirstLayerSize; j++) {
+            firstLayerThresholds[firstLayerOffsets[m] + j] = thresholds.get(j);
+        }
+        ActivationFunction[] activations = models[m].getActivations();
+        firstLayerActivations[m] = activations[0];
+        if (layerSizes.length > 2) {
+            weights.position(inputSize * modelFirstLayerSize);
+            thresholds.position(modelFirstLayerSize);
+            tails[m] = new InferenceModel(Arrays.copyOfRange(layerSizes, 1, layerSizes.length), weights, thresholds,
+                    Arrays.copyOfRange(activations, 1, activations.length), models[m].getLossFunction());
+        }
+    }
+
+    /**
+     *
+     * @return A new workspace for single predictions, to be used by a single thread
+     */
+    public EnsembleWorkspace newWorkspace(){
+        return newWorkspace(1);
+    }
+
+    /**
+     *
+     * @param batchCapacity The biggest number of samples spread at once with predictBatch
+     * @return A new workspace for this ensemble, to be used by a single thread
+     */
+    public EnsembleWorkspace newWorkspace(int batchCapacity){
+        if(batchCapacity < 1){
+            throw new RuntimeException("The batch capacity must be at least 1");
+        }
+        int[] modelFirstLayerSizes = new int[models.length];
+        InferenceWorkspace[] modelWorkspaces = new InferenceWorkspace[models.length];
+        for (int m = 0; m < models.length; m++) {
+            modelFirstLayerSizes[m] = firstLayerOffsets[m + 1] - firstLayerOffsets[m];
+            modelWorkspaces[m] = tails[m] == null ? null : tails[m].newWorkspace(batchCapacity);
+        }
+        return new EnsembleWorkspace(batchCapacity, firstLayerOffsets[models.length], modelFirstLayerSizes, outputSize, modelWorkspaces);
+    }
+
+    /**
+     * Spreads the inputs using a workspace owned by the calling thread.
+     * @param inputs The inputs, it must be the same size as the input size of the models
+     * @param outputs The array where the combined outputs will be written, it
+     * must be the same size as the output size of the models
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(double[] inputs, double[] outputs){
+        return predict(inputs, outputs, workspaces.get());
+    }
+
+    /**
+     *
+     * @param inputs The inputs, it must be the same size as the input size of the models
+     * @param outputs The array where the combined outputs will be written, it
+     * must be the same size as the output size of the models
+     * @param workspace A workspace created by this ensemble, not used by any
+     * other thread at the same time. It keeps the outputs of every model
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(double[] inputs, double[] outputs, EnsembleWorkspace workspace){
+        if(inputs.length != inputSize){
+            throw new RuntimeException("The inputs passed as parameter is different in "
+                    + "size from the inputs size of this ensemble");
+        }
+        if(outputs.length != outputSize){
+            throw new RuntimeException("The output passed as parameter is different in "
+                    + "size from the output size of this ensemble");
+        }
+        return predictBatch(inputs, outputs, 1, workspace);
+    }
+
+    /**
+     * Spreads several samples at once through every model. Each row of the
+     * fused weights is read once for the whole batch and all the models.
+     * @param inputs The inputs of every sample, one after another
+     * @param outputs The array where the combined outputs of every sample will
+     * be written, one after another
+     * @param rows The number of samples
+     * @param workspace A workspace created by this ensemble for at least rows
+     * samples, not used by any other thread at the same time. It keeps the
+     * outputs of every model
+     * @return The outputs array passed as parameter
+     */
+    public double[] predictBatch(double[] inputs, double[] outputs, int rows, EnsembleWorkspace workspace){
+        if(inputs.length < rows * inputSize){
+            throw new RuntimeException("The inputs passed as parameter are smaller than the batch");
+        }
+        if(outputs.length < rows * outputSize){
+            throw new RuntimeException("The outputs passed as parameter are smaller than the batch");
+        }
+        if(workspace.batchCapacity < rows || workspace.modelOutputs.length != models.length){
+            throw new RuntimeException("The workspace passed as parameter is too small for the batch");
+        }
+        spreadFirstLayer(inputs, workspace.firstLayer, rows);
+        int firstLayerSize = firstLayerOffsets[models.length];
+        for (int m = 0; m < models.length; m++) {
+            int offset = firstLayerOffsets[m];
+            int size = firstLayerOffsets[m + 1] - offset;
+            ActivationFunction activation = firstLayerActivations[m];
+            if (tails[m] == null) {
+                for (int r = 0; r < rows; r++) {
+                    models[m].getLossFunction().activateOutputs(workspace.firstLayer, r * firstLayerSize + offset,
+                            workspace.modelOutputs[m], r * outputSize, size, activation);
+                }
+                continue;
+            }
+            double[] modelInputs = workspace.modelInputs[m];
+            for (int r = 0; r < rows; r++) {
+                for (int j = 0; j < size; j++) {
+                    modelInputs[r * size + j] = activation.activate(workspace.firstLayer[r * firstLayerSize + offset + j]);
+                }
+            }
+            tails[m].predictBatch(modelInputs, workspace.modelOutputs[m], rows, workspace.modelWorkspaces[m]);
+        }
+        for (int r = 0; r < rows; r++) {
+            combine(workspace, r * outputSize, outputs, r * outputSize);
+        }
+        return outputs;
+    }
+
+    public int getNumberOfModels(){
+        return models.length;
+    }
+
+    /**
+     *
+     * @param model The index of the model inside the ensemble
+     * @return The model, as it was passed to create the ensemble
+     */
+    public InferenceModel getModel(int model){
+        return models[model];
+    }
+
+    public Combination getCombination(){
+        return combination;
+    }
+
+    public int getInputSize(){
+        return inputSize;
+    }
+
+    public int getOutputSize(){
+        return outputSize;
+    }
+
+    /**
+     *
+     * @return The number of neurons of the fused first layer, the sum of the
+     * first layers of every model
+     */
+    public int getFusedLayerSize(){
+        return firstLayerOffsets[models.length];
+    }
+
+    private void spreadFirstLayer(double[] inputs, double[] neurons, int rows){
+        int size = firstLayerOffsets[models.length];
+        for (int r = 0; r < rows; r++) {
+            System.arraycopy(firstLayerThresholds, 0, neurons, r * size, size);
+        }
+        //Row k of the fused weights is added to every sample while it is still in the cache
+        for (int k = 0; k < inputSize; k++) {
+            for (int r = 0; r < rows; r++) {
+                double input = inputs[r * inputSize + k];
+                //Most pixels are 0, their rows add nothing
+                if (input == 0) continue;
+                Kernels.axpy(input, firstLayerWeights, k * size, neurons, r * size, size);
+            }
+        }
+    }
+
+    /**
+     * With AVERAGE the combined outputs are the mean of the outputs. With VOTE
+     * and several outputs, output i is (votes of i + mean of output i) divided
+     * by (models + 1): the digit with most votes has the biggest output, the
+     * mean only breaks the ties, and the outputs still add up to 1 when the
+     * models are softmax. With VOTE and a single output, it is the digit with
+     * most votes divided by 10, ties going to the digit closest to the mean.
+     */
+    private void combine(EnsembleWorkspace workspace, int offset, double[] outputs, int outputsOffset){
+        double[][] modelOutputs = workspace.modelOutputs;
+        double[] mean = workspace.mean;
+        Arrays.fill(mean, 0);
+        for (double[] modelOutput : modelOutputs) {
+            for (int i = 0; i < outputSize; i++) {
+                mean[i] += modelOutput[offset + i];
+            }
+        }
+        for (int i = 0; i < outputSize; i++) {
+            mean[i] /= models.length;
+        }
+        if (combination == Combination.AVERAGE) {
+            System.arraycopy(mean, 0, outputs, outputsOffset, outputSize);
+            return;
+        }
+        int[] votes = workspace.votes;
+        Arrays.fill(votes, 0);
+        for (double[] modelOutput : modelOutputs) {
+            votes[Evaluator.outputClass(modelOutput, offset, outputSize)]++;
+        }
+        if (outputSize > 1) {
+            for (int i = 0; i < outputSize; i++) {
+                outputs[outputsOffset + i] = (votes[i] + mean[i]) / (models.length + 1);
+            }
+            return;
+        }
+        int chosen = 0;
+        for (int digit = 1; digit < NUMBER_OF_DIGITS; digit++) {
+            if (votes[digit] > votes[chosen] || (votes[digit] == votes[chosen]
+                    && Math.abs(digit - mean[0] * NUMBER_OF_DIGITS) < Math.abs(chosen - mean[0] * NUMBER_OF_DIGITS))) {
+                chosen = digit;
+            }
+        }
+        outputs[outputsOffset] = chosen / (double) NUMBER_OF_DIGITS;
+    }
+}
@@ -0,0 +1,49 @@
+package handwrittennumberidentifier;
+
+/**
+ * Scratch memory used by an EnsembleModel to spread a batch of inputs. Like
+ * InferenceWorkspace, it must be used by just one thread at a time. After each
+ * prediction it keeps the outputs of every model of the ensemble.
+ * @author Pablo Alonso
+ */
+public final class EnsembleWorkspace {
+
+    final int batchCapacity;
+    //The neurons of the fused first layer, one row per sample
+    final double[] firstLayer;
+    //The first layer neurons of each model, one sample after another
+    final double[][] modelInputs;
+    //The outputs of each model, one sample after another
+    final double[][] modelOutputs;
+    //Null for the models without hidden layers
+    final InferenceWorkspace[] modelWorkspaces;
+    //Used to combine the outputs of one sample
+    final double[] mean;
+    final int[] votes;
+
+    EnsembleWorkspace(int batchCapacity, int firstLayerSize, int[] modelFirstLayerSizes, int outputSize, InferenceWorkspace[] modelWorkspaces){
+        this.batchCapacity = batchCapacity;
+        this.firstLayer = new double[batchCapacity * firstLayerSize];
+        this.modelInputs = new double[modelFirstLayerSizes.length][];
+        this.modelOutputs = new double[modelFirstLayerSizes.length][batchCapacity * outputSize];
+        for (int m = 0; m < modelFirstLayerSizes.length; m++) {
+            modelInputs[m] = modelWorkspaces[m] == null ? null : new double[batchCapacity * modelFirstLayerSizes[m]];
+        }
+        this.modelWorkspaces = modelWorkspaces;
+        this.mean = new double[outputSize];
+        this.votes = new int[Math.max(outputSize, 10)];
+    }
+
+    /**
+     *
+     * @param model The index of the model inside the ensemble
+     * @param row The sample inside the last batch spread
+     * @param outputs The array where the outputs of that model are written, it
+     * must be the same size as the output size of the ensemble
+     * @return The outputs array passed as parameter
+     */
+    public double[] getModelOutputs(int model, int row, double[] outputs){
+        System.arraycopy(modelOutputs[model], row * outputs.length, outputs, 0, outputs.length);
+        return outputs;
+    }
+}
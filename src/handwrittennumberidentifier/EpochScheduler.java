@@ -0,0 +1,170 @@
+package handwrittennumberidentifier;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Decides the order the training samples are used in each cycle, as a
+ * permutation of their indices, so the data set arrays are never copied or
+ * moved. Part of the samples can be kept aside as a validation data set, with
+ * the same share of every label as the whole data set.
+ * <p>
+ * The order of a cycle only depends on the random numbers passed to nextOrder,
+ * so a training seeded in the same way visits the samples in the same order,
+ * also after being resumed from a checkpoint. With stratified batches the
+ * labels are spread evenly along the order, so every batch has about the same
+ * share of each label as the whole data set.
+ * @author Pablo Alonso
+ */
+public final class EpochScheduler {
+
+    private final int[] trainingIndices;
+    private final int[] validationIndices;
+    //Training indices of each label, only with stratified batches
+    private final int[][] classIndices;
+    //The permutation of the last cycle, the same array is reused in every cycle
+    private final int[] order;
+    private final long[] keys;
+
+    /**
+     *
+     * @param labels The labels of the training data set
+     * @param validationFraction The fraction of the samples of each label kept
+     * aside for validation, from 0 to less than 1
+     * @param stratified true to spread the labels evenly along each cycle
+     * @param seed The seed of the random numbers used to choose the validation samples
+     */
+    public EpochScheduler(double[] labels, double validationFraction, boolean stratified, long seed){
+        if(validationFraction < 0 || validationFraction >= 1){
+            throw new RuntimeException("The validation fraction must be between 0 and 1");
+        }
+        int[][] labelIndices = indicesByLabel(labels);
+        Random random = new Random(seed);
+        int validationSize = 0;
+        int[] validationSizes = new int[labelIndices.length];
+        for (int c = 0; c < labelIndices.length; c++) {
+            shuffle(labelIndices[c], labelIndices[c].length, random);
+            validationSizes[c] = (int) Math.round(labelIndices[c].length * validationFraction);
+            validationSize += validationSizes[c];
+        }
+        trainingIndices = new int[labels.length - validationSize];
+        validationIndices = new int[validationSize];
+        classIndices = stratified ? new int[labelIndices.length][] : null;
+        int trainingPosition = 0;
+        int validationPosition = 0;
+        for (int c = 0; c < labelIndices.length; c++) {
+            int[] indices = labelIndices[c];
+            System.arraycopy(indices, 0, validationIndices, validationPosition, validationSizes[c]);
+            validationPosition += validationSizes[c];
+            int[] training = Arrays.copyOfRange(indices, validationSizes[c], indices.length);
+            Arrays.sort(training);
+            System.arraycopy(training, 0, trainingIndices, trainingPosition, training.length);
+            trainingPosition += training.length;
+            if (stratified) classIndices[c] = training;
+        }
+        Arrays.sort(trainingIndices);
+        Arrays.sort(validationIndices);
+        order = trainingIndices.clone();
+        keys = stratified ? new long[trainingIndices.length] : null;
+    }
+
+    /**
+     * Shuffles the training samples for a new cycle. The array returned is
+     * overwritten by the next call.
+     * @param random The random numbers of the cycle
+     * @return The indices of the training samples in the order they must be used
+     */
+    public int[] nextOrder(Random random){
+        if (classIndices == null) {
+            //Starting from the same array makes the order depend only on random
+            System.arraycopy(trainingIndices, 0, order, 0, order.length);
+            shuffle(order, order.length, random);
+            return order;
+        }
+        //Sample t of a label with n samples goes at (t + u) / n of the cycle,
+        //with u random for each label, so the labels are interleaved evenly
+        int position = 0;
+        for (int[] indices : classIndices) {
+            int size = indices.length;
+            if (size == 0) continue;
+            int start = position;
+            System.arraycopy(indices, 0, order, start, size);
+            shuffle(order, start, size, random);
+            double offset = random.nextDouble();
+            for (int t = 0; t < size; t++) {
+                long key = (long) ((t + offset) / size * (1L << 31));
+                keys[position++] = key << 32 | order[start + t];
+            }
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     *
+     * @return The indices of the samples used to train, in ascending order
+     */
+    public int[] getTrainingIndices(){
+        return trainingIndices.clone();
+    }
+
+    /**
+     *
+     * @return The indices of the samples kept aside for validation, in ascending order
+     */
+    public int[] getValidationIndices(){
+        return validationIndices.clone();
+    }
+
+    public int getTrainingSize(){
+        return trainingIndices.length;
+    }
+
+    public int getValidationSize(){
+        return validationIndices.length;
+    }
+
+    public boolean isStratified(){
+        return classIndices != null;
+    }
+
+    private static int[][] indicesByLabel(double[] labels){
+        int classes = 0;
+        for (double label : labels) {
+            classes = Math.max(classes, Evaluator.labelClass(label) + 1);
+        }
+        int[] counts = new int[classes];
+        for (double label : labels) {
+            counts[Evaluator.labelClass(label)]++;
+        }
+        int[][] indices = new int[classes][];
+        for (int c = 0; c < classes; c++) {
+            indices[c] = new int[counts[c]];
+        }
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < labels.length; i++) {
+            int c = Evaluator.labelClass(labels[i]);
+            indices[c][counts[c]++] = i;
+        }
+        return indices;
+    }
+
+    private static void shuffle(int[] array, int size, Random random){
+        shuffle(array, 0, size, random);
+    }
+
+    /**
+     * Fisher-Yates shuffle of array[start] to array[start + size - 1].
+     */
+    private static void shuffle(int[] array, int start, int size, Random random){
+        for (int i = size - 1; i > 0; i--) {
+            int chosen = random.nextInt(i + 1);
+            int swap = array[start + i];
+            array[start + i] = array[start + chosen];
+            array[start + chosen] = swap;
+        }
+    }
+}
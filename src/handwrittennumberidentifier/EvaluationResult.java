@@ -0,0 +1,85 @@
+package handwrittennumberidentifier;
+
+/**
+ * Results of spreading a data set through a model: how many samples were 
+ * guessed right, and the confusion matrix of the guessed digits.
+ * @author Pablo Alonso
+ */
+public final class EvaluationResult {
+    
+    private final int hits;
+    private final int samples;
+    //Rows are the expected class, columns the class chosen by the model
+    private final int[][] confusionMatrix;
+    
+    EvaluationResult(int hits, int samples, int[][] confusionMatrix){
+        this.hits = hits;
+        this.samples = samples;
+        this.confusionMatrix = confusionMatrix;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getSamples() {
+        return samples;
+    }
+    
+    /**
+     *
+     * @return The hits divided by the number of samples evaluated
+     */
+    public double getAccuracy() {
+        return samples == 0 ? 0 : (double) hits / samples;
+    }
+    
+    public int getNumberOfClasses() {
+        return confusionMatrix.length;
+    }
+    
+    /**
+     *
+     * @return A copy of the confusion matrix. Element [i][j] is the number of 
+     * samples of the class i that the model classified as j
+     */
+    public int[][] getConfusionMatrix() {
+        int[][] copy = new int[confusionMatrix.length][];
+        for (int i = 0; i < confusionMatrix.length; i++) {
+            copy[i] = confusionMatrix[i].clone();
+        }
+        return copy;
+    }
+    
+    /**
+     *
+     * @return For each class, the fraction of its samples that the model 
+     * classified as that class. Classes without samples have an accuracy of 0
+     */
+    public double[] getPerClassAccuracy() {
+        double[] accuracy = new double[confusionMatrix.length];
+        for (int i = 0; i < confusionMatrix.length; i++) {
+            int classSamples = 0;
+            for (int count : confusionMatrix[i]) {
+                classSamples += count;
+            }
+            accuracy[i] = classSamples == 0 ? 0 : (double) confusionMatrix[i][i] / classSamples;
+        }
+        return accuracy;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("Hits: ").append(hits).append("/").append(samples).append("\n");
+        double[] accuracy = getPerClassAccuracy();
+        for (int i = 0; i < confusionMatrix.length; i++) {
+            text.append(i).append(":");
+            for (int count : confusionMatrix[i]) {
+                text.append(" ").append(count);
+            }
+            text.append(String.format(" (%.4f)", accuracy[i])).append("\n");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,302 @@
+package handwrittennumberidentifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Spreads whole data sets through an InferenceModel in batches shared across a 
+ * pool of threads. The labels are the ones returned by DataManager, the digit 
+ * divided by 10.
+ * A model with a single output guesses right when the output is in the range
+ * [(label - errorRange), (label + errorRange)], and its class is the output 
+ * multiplied by 10 and rounded. A model with several outputs guesses the class 
+ * of its biggest output, and guesses right when that is the class of the label.
+ * @author Pablo Alonso
+ */
+public class Evaluator implements AutoCloseable {
+    
+    private static final int SAMPLES_PER_TASK = 512;
+    private static final int NUMBER_OF_DIGITS = 10;
+    //Samples spread at once through the fused layer of an ensemble
+    private static final int ENSEMBLE_BATCH_SIZE = 32;
+    
+    private final ExecutorService executor;
+    
+    /**
+     *
+     * @param threads The number of threads used to spread the data sets
+     */
+    public Evaluator(int threads){
+        if(threads < 1){
+            throw new RuntimeException("The number of threads must be at least 1");
+        }
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Evaluator-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     *
+     * @param model The model that will be evaluated
+     * @param inputs The data set, one row per sample
+     * @param labels The label of each sample
+     * @param errorRange The range of accepted output for single output models
+     * @return The hits and the confusion matrix of the whole data set
+     */
+    public EvaluationResult evaluate(InferenceModel model, double[][] inputs, double[] labels, double errorRange){
+        return evaluate(model, inputs, labels, null, errorRange);
+    }
+    
+    /**
+     *
+     * @param model The model that will be evaluated
+     * @param inputs The data set, one row per sample
+     * @param labels The label of each sample
+     * @param sampleIndices The indices of the samples that will be evaluated, or
+     * null to evaluate all of them
+     * @param errorRange The range of accepted output for single output models
+     * @return The hits and the confusion matrix of the chosen samples
+     */
+    public EvaluationResult evaluate(InferenceModel model, double[][] inputs, double[] labels, int[] sampleIndices, double errorRange){
+        return evaluate(model.getOutputSize(), inputs.length, labels, sampleIndices, errorRange, () -> {
+            InferenceWorkspace workspace = model.newWorkspace();
+            return (sample, outputs) -> model.predict(inputs[sample], outputs, workspace);
+        });
+    }
+    
+    /**
+     *
+     * @param perceptron The single precision perceptron that will be evaluated. 
+     * It must not be trained while it is evaluated
+     * @param inputs The data set, one row per sample
+     * @param labels The label of each sample
+     * @param sampleIndices The indices of the samples that will be evaluated, or
+     * null to evaluate all of them
+     * @param errorRange The range of accepted output for single output models
+     * @return The hits and the confusion matrix of the chosen samples
+     */
+    public EvaluationResult evaluate(FloatMultilayerPerceptron perceptron, float[][] inputs, double[] labels, int[] sampleIndices, double errorRange){
+        return evaluate(perceptron.getOutputSize(), inputs.length, labels, sampleIndices, errorRange, () -> {
+            float[] floatOutputs = new float[perceptron.getOutputSize()];
+            return (sample, outputs) -> {
+                perceptron.predict(inputs[sample], floatOutputs);
+                for (int i = 0; i < outputs.length; i++) {
+                    outputs[i] = floatOutputs[i];
+                }
+            };
+        });
+    }
+    
+    /**
+     *
+     * @param model The pruned model that will be evaluated
+     * @param inputs The data set, one row per sample
+     * @param labels The label of each sample
+     * @param sampleIndices The indices of the samples that will be evaluated, or
+     * null to evaluate all of them
+     * @param errorRange The range of accepted output for single output models
+     * @return The hits and the confusion matrix of the chosen samples
+     */
+    public EvaluationResult evaluate(SparseInferenceModel model, double[][] inputs, double[] labels, int[] sampleIndices, double errorRange){
+        return evaluate(model.getOutputSize(), inputs.length, labels, sampleIndices, errorRange, () -> {
+            InferenceWorkspace workspace = model.newWorkspace();
+            return (sample, outputs) -> model.predict(inputs[sample], outputs, workspace);
+        });
+    }
+    
+    /**
+     * Feeds the raw pixels of the IDX file to the model, without decoding them.
+     * @param model The quantized model that will be evaluated
+     * @param images The data set
+     * @param labels The label of each sample
+     * @param sampleIndices The indices of the samples that will be evaluated, or
+     * null to evaluate all of them
+     * @param errorRange The range of accepted output for single output models
+     * @return The hits and the confusion matrix of the chosen samples
+     */
+    public EvaluationResult evaluate(QuantizedModel model, IdxFile images, double[] labels, int[] sampleIndices, double errorRange){
+        return evaluate(model.getOutputSize(), images.getNumberOfSamples(), labels, sampleIndices, errorRange, 
+                () -> (sample, outputs) -> model.predict(images.getSampleBytes(sample), outputs));
+    }
+    
+    /**
+     * Spreads the samples through all the models of the ensemble at once, in
+     * batches, and counts the hits of the ensemble and of each of its models.
+     * @param ensemble The ensemble that will be evaluated
+     * @param inputs The data set, one row per sample
+     * @param labels The label of each sample
+     * @param sampleIndices The indices of the samples that will be evaluated, or
+     * null to evaluate all of them
+     * @param errorRange The range of accepted output for single output models
+     * @return The hits of the ensemble and its models, and how often the 
+     * models agree with each other
+     */
+    public EnsembleEvaluation evaluate(EnsembleModel ensemble, double[][] inputs, double[] labels, int[] sampleIndices, double errorRange){
+        if(inputs.length != labels.length){
+            throw new RuntimeException("The number of inputs passed as parameter is different "
+                    + "from the number of labels");
+        }
+        int samples = sampleIndices == null ? inputs.length : sampleIndices.length;
+        List<Callable<EnsembleEvaluation>> tasks = new ArrayList<>();
+        for (int start = 0; start < samples; start += SAMPLES_PER_TASK) {
+            final int from = start;
+            final int to = Math.min(start + SAMPLES_PER_TASK, samples);
+            tasks.add(() -> evaluateRange(ensemble, inputs, labels, sampleIndices, from, to, errorRange));
+        }
+        EnsembleEvaluation total = new EnsembleEvaluation(ensemble.getNumberOfModels(), 
+                ensemble.getOutputSize() > 1 ? ensemble.getOutputSize() : NUMBER_OF_DIGITS);
+        try {
+            for (Future<EnsembleEvaluation> future : executor.invokeAll(tasks)) {
+                total.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+        return total;
+    }
+    
+    private EvaluationResult evaluate(int outputSize, int numberOfInputs, double[] labels, int[] sampleIndices, double errorRange, Supplier<SamplePredictor> predictors){
+        if(numberOfInputs != labels.length){
+            throw new RuntimeException("The number of inputs passed as parameter is different "
+                    + "from the number of labels");
+        }
+        int samples = sampleIndices == null ? numberOfInputs : sampleIndices.length;
+        int numberOfClasses = outputSize > 1 ? outputSize : NUMBER_OF_DIGITS;
+        List<Callable<EvaluationResult>> tasks = new ArrayList<>();
+        for (int start = 0; start < samples; start += SAMPLES_PER_TASK) {
+            final int from = start;
+            final int to = Math.min(start + SAMPLES_PER_TASK, samples);
+            tasks.add(() -> evaluateRange(predictors.get(), outputSize, labels, sampleIndices, from, to, errorRange, numberOfClasses));
+        }
+        
+        int hits = 0;
+        int[][] confusionMatrix = new int[numberOfClasses][numberOfClasses];
+        try {
+            for (Future<EvaluationResult> future : executor.invokeAll(tasks)) {
+                EvaluationResult partial = future.get();
+                hits += partial.getHits();
+                int[][] partialMatrix = partial.getConfusionMatrix();
+                for (int i = 0; i < numberOfClasses; i++) {
+                    for (int j = 0; j < numberOfClasses; j++) {
+                        confusionMatrix[i][j] += partialMatrix[i][j];
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+        return new EvaluationResult(hits, samples, confusionMatrix);
+    }
+    
+    /**
+     * Stops the worker threads. The evaluator can't be used afterwards.
+     */
+    @Override
+    public void close(){
+        executor.shutdown();
+    }
+    
+    static int labelClass(double label){
+        return (int) Math.round(label * NUMBER_OF_DIGITS);
+    }
+    
+    static int outputClass(double[] outputs){
+        return outputClass(outputs, 0, outputs.length);
+    }
+    
+    /**
+     * Same as outputClass(outputs), with the outputs of one sample inside a 
+     * bigger array.
+     */
+    static int outputClass(double[] outputs, int offset, int size){
+        if(size == 1){
+            int digit = (int) Math.round(outputs[offset] * NUMBER_OF_DIGITS);
+            return Math.max(0, Math.min(NUMBER_OF_DIGITS - 1, digit));
+        }
+        int biggest = 0;
+        for (int i = 1; i < size; i++) {
+            if(outputs[offset + i] > outputs[offset + biggest]) biggest = i;
+        }
+        return biggest;
+    }
+    
+    /**
+     * The rule described at the top of the class for the outputs of one sample.
+     */
+    private static boolean isHit(double[] outputs, int offset, int size, double label, double errorRange){
+        if(size == 1){
+            return outputs[offset] >= label - errorRange && outputs[offset] <= label + errorRange;
+        }
+        return outputClass(outputs, offset, size) == labelClass(label);
+    }
+    
+    private static EvaluationResult evaluateRange(SamplePredictor predictor, int outputSize, double[] labels, int[] sampleIndices, 
+            int from, int to, double errorRange, int numberOfClasses){
+        double[] outputs = new double[outputSize];
+        int[][] confusionMatrix = new int[numberOfClasses][numberOfClasses];
+        int hits = 0;
+        for (int i = from; i < to; i++) {
+            int sample = sampleIndices == null ? i : sampleIndices[i];
+            predictor.predict(sample, outputs);
+            int expectedClass = labelClass(labels[sample]);
+            int guessedClass = outputClass(outputs);
+            if(isHit(outputs, 0, outputs.length, labels[sample], errorRange)) hits++;
+            confusionMatrix[expectedClass][guessedClass]++;
+        }
+        return new EvaluationResult(hits, to - from, confusionMatrix);
+    }
+    
+    private static EnsembleEvaluation evaluateRange(EnsembleModel ensemble, double[][] inputs, double[] labels, int[] sampleIndices, 
+            int from, int to, double errorRange){
+        int models = ensemble.getNumberOfModels();
+        int inputSize = ensemble.getInputSize();
+        int outputSize = ensemble.getOutputSize();
+        EnsembleEvaluation partial = new EnsembleEvaluation(models, outputSize > 1 ? outputSize : NUMBER_OF_DIGITS);
+        EnsembleWorkspace workspace = ensemble.newWorkspace(ENSEMBLE_BATCH_SIZE);
+        double[] batchInputs = new double[ENSEMBLE_BATCH_SIZE * inputSize];
+        double[] batchOutputs = new double[ENSEMBLE_BATCH_SIZE * outputSize];
+        boolean[] modelHits = new boolean[models];
+        int[] modelClasses = new int[models];
+        for (int start = from; start < to; start += ENSEMBLE_BATCH_SIZE) {
+            int rows = Math.min(ENSEMBLE_BATCH_SIZE, to - start);
+            for (int r = 0; r < rows; r++) {
+                int sample = sampleIndices == null ? start + r : sampleIndices[start + r];
+                System.arraycopy(inputs[sample], 0, batchInputs, r * inputSize, inputSize);
+            }
+            ensemble.predictBatch(batchInputs, batchOutputs, rows, workspace);
+            for (int r = 0; r < rows; r++) {
+                int sample = sampleIndices == null ? start + r : sampleIndices[start + r];
+                for (int m = 0; m < models; m++) {
+                    modelHits[m] = isHit(workspace.modelOutputs[m], r * outputSize, outputSize, labels[sample], errorRange);
+                    modelClasses[m] = outputClass(workspace.modelOutputs[m], r * outputSize, outputSize);
+                }
+                partial.addSample(labelClass(labels[sample]), outputClass(batchOutputs, r * outputSize, outputSize), 
+                        isHit(batchOutputs, r * outputSize, outputSize, labels[sample], errorRange), modelClasses, modelHits);
+            }
+        }
+        return partial;
+    }
+    
+    /**
+     * Writes the outputs of one sample of the data set, each task owns its own one.
+     */
+    private interface SamplePredictor {
+        void predict(int sample, double[] outputs);
+    }
+}
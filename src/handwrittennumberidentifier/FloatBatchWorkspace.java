@@ -0,0 +1,43 @@
+package handwrittennumberidentifier;
+
+/**
+ * Single precision version of BatchWorkspace, used by FloatMultilayerPerceptron.
+ * The expected outputs of the batch are copied here as well, so a batch can be
+ * spread and backpropagated without touching the data set again.
+ * @author Pablo Alonso
+ */
+final class FloatBatchWorkspace {
+
+    final int capacity;
+    //Offsets of each layer inside neurons, indexed by layer
+    final int[] neuronsOffsets;
+    //Offsets of each layer inside summations and neuronsDelta, starting at the first hidden layer
+    final int[] deltaOffsets;
+    final float[] neurons;
+    final float[] summations;
+    final float[] neuronsDelta;
+    final float[] expectedOutputs;
+    final float[] weightGradients;
+    final float[] thresholdGradients;
+
+    FloatBatchWorkspace(int[] layerSizes, int capacity, int weightsLength, int thresholdsLength){
+        if(capacity < 1){
+            throw new RuntimeException("The batch size must be at least 1");
+        }
+        this.capacity = capacity;
+        neuronsOffsets = new int[layerSizes.length + 1];
+        deltaOffsets = new int[layerSizes.length];
+        for (int i = 0; i < layerSizes.length; i++) {
+            neuronsOffsets[i + 1] = neuronsOffsets[i] + capacity * layerSizes[i];
+        }
+        for (int i = 1; i < layerSizes.length; i++) {
+            deltaOffsets[i] = deltaOffsets[i - 1] + capacity * layerSizes[i];
+        }
+        neurons = new float[neuronsOffsets[layerSizes.length]];
+        summations = new float[deltaOffsets[layerSizes.length - 1]];
+        neuronsDelta = new float[summations.length];
+        expectedOutputs = new float[capacity * layerSizes[layerSizes.length - 1]];
+        weightGradients = new float[weightsLength];
+        thresholdGradients = new float[thresholdsLength];
+    }
+}
@@ -0,0 +1,415 @@
+package handwrittennumberidentifier;
+
+import java.util.Random;
+
+/**
+ * Single precision version of MultilayerPerceptron. The weights, thresholds,
+ * neurons and deltas are stored as floats in the same flat layout, so they use
+ * half the memory and the weight loops move half the bytes. The activation and
+ * loss functions are the same ones used by MultilayerPerceptron.
+ * Every sample, alone or inside a batch, is spread through the net as a matrix
+ * of rows, so training with a single sample updates the perceptron the same way
+ * a batch of 1 does.
+ * @author Pablo Alonso
+ */
+public class FloatMultilayerPerceptron {
+
+    private final int[] layerSizes;
+    private final int[] weightsOffsets;
+    private final int[] thresholdsOffsets;
+    private final float[] weights;
+    private final float[] thresholds;
+    private final double alpha;
+    private double learningRateScale = 1;
+    //Activation function of each layer, starting at the first hidden layer
+    private final ActivationFunction[] activations;
+    private final LossFunction lossFunction;
+    private final int biggestLayerSize;
+    private final ThreadLocal<float[][]> predictionLayers;
+    private FloatBatchWorkspace batchWorkspace;
+    private TrainingCounters trainingCounters;
+
+    /**
+     * The weights are initialized with random values scaled by the size of the
+     * layers, and the thresholds with 0.
+     * @param inputSize the number of inputs this perceptron will have
+     * @param outputSize the number of outputs this percentron will have
+     * @param alpha the learning rate for the backpropagation phase
+     * @param hiddenActivation the activation function of every hidden layer.
+     * The output layer uses the sigmoid, unless the loss function replaces it
+     * @param lossFunction the way the output layer is compared with the expected outputs
+     * @param hiddenLayersSizes the number of neurons on each hidden layer
+     */
+    public FloatMultilayerPerceptron(int inputSize, int outputSize, double alpha, ActivationFunction hiddenActivation, LossFunction lossFunction, int...hiddenLayersSizes){
+        this(buildLayerSizes(inputSize, outputSize, hiddenLayersSizes), alpha, null, null, buildActivations(hiddenActivation, hiddenLayersSizes.length + 1), lossFunction);
+        initializeScaledWeights();
+    }
+
+    /**
+     * The arrays are used as they are, without copying them. If the weights
+     * and thresholds are null they are created filled with 0.
+     */
+    FloatMultilayerPerceptron(int[] layerSizes, double alpha, float[] weights, float[] thresholds, ActivationFunction[] activations, LossFunction lossFunction){
+        this.layerSizes = layerSizes.clone();
+        weightsOffsets = new int[layerSizes.length];
+        thresholdsOffsets = new int[layerSizes.length];
+        int biggest = 0;
+        for (int i = 1; i < layerSizes.length; i++) {
+            weightsOffsets[i] = weightsOffsets[i - 1] + layerSizes[i - 1] * layerSizes[i];
+            thresholdsOffsets[i] = thresholdsOffsets[i - 1] + layerSizes[i];
+            biggest = Math.max(biggest, layerSizes[i]);
+        }
+        this.weights = weights == null ? new float[weightsOffsets[layerSizes.length - 1]] : weights;
+        this.thresholds = thresholds == null ? new float[thresholdsOffsets[layerSizes.length - 1]] : thresholds;
+        if(this.weights.length != weightsOffsets[layerSizes.length - 1] || this.thresholds.length != thresholdsOffsets[layerSizes.length - 1]){
+            throw new RuntimeException("The size of the weights or thresholds doesn't match the layers sizes");
+        }
+        if(activations.length != layerSizes.length - 1){
+            throw new RuntimeException("There must be one activation function per layer besides the input layer");
+        }
+        this.activations = activations;
+        this.lossFunction = lossFunction;
+        this.alpha = alpha;
+        this.biggestLayerSize = biggest;
+        this.predictionLayers = ThreadLocal.withInitial(() -> new float[][]{new float[biggestLayerSize], new float[biggestLayerSize]});
+    }
+
+    /**
+     * Rounds the weights and thresholds of a perceptron to single precision.
+     * Training either perceptron afterwards won't modify the other one.
+     * @param perceptron The perceptron that will be copied
+     * @return A new single precision perceptron
+     */
+    public static FloatMultilayerPerceptron fromDouble(MultilayerPerceptron perceptron){
+        double[] doubleWeights = perceptron.getWeightsBuffer();
+        double[] doubleThresholds = perceptron.getThresholdsBuffer();
+        float[] floatWeights = new float[doubleWeights.length];
+        float[] floatThresholds = new float[doubleThresholds.length];
+        for (int i = 0; i < floatWeights.length; i++) {
+            floatWeights[i] = (float) doubleWeights[i];
+        }
+        for (int i = 0; i < floatThresholds.length; i++) {
+            floatThresholds[i] = (float) doubleThresholds[i];
+        }
+        return new FloatMultilayerPerceptron(perceptron.getAllLayersSize(), perceptron.getAlpha(), floatWeights, floatThresholds,
+                perceptron.getActivations(), perceptron.getLossFunction());
+    }
+
+    /**
+     * Copies this perceptron into a double precision one, which is the one that
+     * can be saved by DataManager.
+     * @return A new double precision perceptron with the same state as this one
+     */
+    public MultilayerPerceptron toDouble(){
+        double[] doubleWeights = new double[weights.length];
+        double[] doubleThresholds = new double[thresholds.length];
+        for (int i = 0; i < doubleWeights.length; i++) {
+            doubleWeights[i] = weights[i];
+        }
+        for (int i = 0; i < doubleThresholds.length; i++) {
+            doubleThresholds[i] = thresholds[i];
+        }
+        MultilayerPerceptron perceptron = new MultilayerPerceptron(layerSizes, alpha, doubleWeights, doubleThresholds);
+        for (int i = 0; i < activations.length; i++) {
+            perceptron.setActivation(i + 1, activations[i]);
+        }
+        perceptron.setLossFunction(lossFunction);
+        return perceptron;
+    }
+
+    /**
+     *
+     * @param inputs The inputs used in the training phase, it must be the same
+     * size as the input size established in the creation of this Pereptron
+     * @param expectedOutputs The outputs used in the training phase, it must be
+     * the same size as the output size established in the creation of this Pereptron
+     */
+    public void startTrainingCycle(float[] inputs, float[] expectedOutputs){
+        FloatBatchWorkspace workspace = getBatchWorkspace(1);
+        setRow(workspace, 0, inputs, expectedOutputs);
+        train(workspace, 1);
+    }
+
+    /**
+     * Trains this perceptron using mini-batches, the same way MultilayerPerceptron does.
+     * @param inputs The inputs used in the training phase, one row per sample
+     * @param expectedOutputs The outputs used in the training phase, one row per sample
+     * @param batchSize The number of samples used for each update
+     */
+    public void trainBatch(float[][] inputs, float[][] expectedOutputs, int batchSize){
+        if(inputs.length != expectedOutputs.length){
+            throw new RuntimeException("The number of inputs passed as parameter is different "
+                    + "from the number of expected outputs");
+        }
+        trainBatch(inputs, expectedOutputs, 0, inputs.length, batchSize);
+    }
+
+    /**
+     * Same as trainBatch, but only the samples in the range [from, to) are used.
+     * @param inputs The inputs used in the training phase, one row per sample
+     * @param expectedOutputs The outputs used in the training phase, one row per sample
+     * @param from The first sample used
+     * @param to The sample after the last one used
+     * @param batchSize The number of samples used for each update
+     */
+    public void trainBatch(float[][] inputs, float[][] expectedOutputs, int from, int to, int batchSize){
+        FloatBatchWorkspace workspace = getBatchWorkspace(batchSize);
+        for (int start = from; start < to; start += batchSize) {
+            int end = Math.min(start + batchSize, to);
+            for (int r = 0; r < end - start; r++) {
+                setRow(workspace, r, inputs[start + r], expectedOutputs[start + r]);
+            }
+            train(workspace, end - start);
+        }
+    }
+
+    /**
+     * Spreads the inputs without using the training state, so several threads
+     * can call it at the same time as long as the perceptron is not being
+     * trained meanwhile.
+     * @param inputs The inputs, it must be the same size as the input size of this perceptron
+     * @param outputs The array where the outputs will be written, it must be
+     * the same size as the output size of this perceptron
+     * @return The outputs array passed as parameter
+     */
+    public float[] predict(float[] inputs, float[] outputs){
+        if(inputs.length != layerSizes[0]){
+            throw new RuntimeException("The inputs passed as parameter is different in "
+                    + "size from the inputs size set in the creation of this perceptron");
+        }
+        if(outputs.length != layerSizes[layerSizes.length - 1]){
+            throw new RuntimeException("The output passed as parameter is different in "
+                    + "size from the output size set in the creation of this perceptron");
+        }
+        float[][] layers = predictionLayers.get();
+        float[] previousNeurons = inputs;
+        float[] currentNeurons = layers[0];
+        float[] spareNeurons = layers[1];
+        for (int i = 1; i < layerSizes.length; i++) {
+            if (i == layerSizes.length - 1) currentNeurons = outputs;
+            spreadLayer(i, previousNeurons, currentNeurons);
+            previousNeurons = currentNeurons;
+            currentNeurons = spareNeurons;
+            spareNeurons = previousNeurons;
+        }
+        return outputs;
+    }
+
+    /**
+     *
+     * @param inputs The inputs for this test, it must be the same size as the input size
+     * established in the creation of this Pereptron
+     * @return A new array with the outputs obtained after spread the inputs
+     */
+    public float[] testNeuralNet(float[] inputs){
+        return predict(inputs, new float[layerSizes[layerSizes.length - 1]]);
+    }
+
+    /**
+     *
+     * @return An Array with all the layers size. The first one will be the input
+     * size, and the last one will be the output size.
+     */
+    public int[] getAllLayersSize(){
+        return layerSizes.clone();
+    }
+
+    public int getOutputSize(){
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    /**
+     * Multiplies the learning rate, it is the way a LearningRateSchedule is
+     * applied between training cycles. The single precision perceptron is
+     * always trained with plain gradient descent.
+     * @param learningRateScale The factor alpha is multiplied by from now on
+     */
+    public void setLearningRateScale(double learningRateScale) {
+        this.learningRateScale = learningRateScale;
+    }
+
+    /**
+     *
+     * @return The activation function of every layer, the first one belongs to
+     * the first hidden layer and the last one to the output layer
+     */
+    public ActivationFunction[] getActivations() {
+        return activations.clone();
+    }
+
+    public LossFunction getLossFunction() {
+        return lossFunction;
+    }
+
+    /**
+     * From now on the time and loss of every training cycle and batch are added
+     * to the counters, or nothing is measured if they are null.
+     */
+    void setTrainingCounters(TrainingCounters trainingCounters){
+        this.trainingCounters = trainingCounters;
+    }
+
+    private void train(FloatBatchWorkspace workspace, int rows){
+        if (trainingCounters == null) {
+            spreadBatch(workspace, rows);
+            calculateGradients(workspace, rows);
+            applyGradients(workspace, rows);
+            return;
+        }
+        long start = System.nanoTime();
+        spreadBatch(workspace, rows);
+        long spread = System.nanoTime();
+        calculateGradients(workspace, rows);
+        long delta = System.nanoTime();
+        applyGradients(workspace, rows);
+        long update = System.nanoTime();
+        int outputLayer = layerSizes.length - 1;
+        int outputSize = layerSizes[outputLayer];
+        for (int r = 0; r < rows; r++) {
+            trainingCounters.lossSum += lossFunction.calculateLoss(workspace.neurons, workspace.neuronsOffsets[outputLayer] + r * outputSize, 
+                    workspace.expectedOutputs, r * outputSize, outputSize);
+        }
+        trainingCounters.samples += rows;
+        trainingCounters.forwardNanos += spread - start;
+        trainingCounters.deltaNanos += delta - spread;
+        trainingCounters.updateNanos += update - delta;
+    }
+
+    private FloatBatchWorkspace getBatchWorkspace(int batchSize){
+        if(batchWorkspace == null || batchWorkspace.capacity < batchSize){
+            batchWorkspace = new FloatBatchWorkspace(layerSizes, batchSize, weights.length, thresholds.length);
+        }
+        return batchWorkspace;
+    }
+
+    private void setRow(FloatBatchWorkspace workspace, int row, float[] inputs, float[] expectedOutputs){
+        if(inputs.length != layerSizes[0]){
+            throw new RuntimeException("The inputs passed as parameter is different in "
+                    + "size from the inputs size set in the creation of this perceptron");
+        }
+        int outputSize = layerSizes[layerSizes.length - 1];
+        if(expectedOutputs.length != outputSize){
+            throw new RuntimeException("The output passed as parameter is different in "
+                    + "size from the output size set in the creation of this perceptron");
+        }
+        System.arraycopy(inputs, 0, workspace.neurons, row * layerSizes[0], layerSizes[0]);
+        System.arraycopy(expectedOutputs, 0, workspace.expectedOutputs, row * outputSize, outputSize);
+    }
+
+    private void spreadBatch(FloatBatchWorkspace workspace, int rows){
+        int outputLayer = layerSizes.length - 1;
+        //Z(i) = A(i-1) * W(i) + T(i)
+        for (int i = 1; i < layerSizes.length; i++) {
+            int currentNeuronsLength = layerSizes[i];
+            int summationsOffset = workspace.deltaOffsets[i - 1];
+            int currentNeuronsOffset = workspace.neuronsOffsets[i];
+            int thresholdsOffset = thresholdsOffsets[i - 1];
+            MatrixOperations.multiply(workspace.neurons, workspace.neuronsOffsets[i - 1], weights, weightsOffsets[i - 1],
+                    workspace.summations, summationsOffset, rows, layerSizes[i - 1], currentNeuronsLength);
+            ActivationFunction activation = activations[i - 1];
+            for (int r = 0; r < rows; r++) {
+                int row = r * currentNeuronsLength;
+                for (int j = 0; j < currentNeuronsLength; j++) {
+                    float summation = workspace.summations[summationsOffset + row + j] + thresholds[thresholdsOffset + j];
+                    workspace.summations[summationsOffset + row + j] = summation;
+                    if (i < outputLayer) workspace.neurons[currentNeuronsOffset + row + j] = (float) activation.activate(summation);
+                }
+                if (i == outputLayer) {
+                    lossFunction.activateOutputs(workspace.summations, summationsOffset + row, workspace.neurons, currentNeuronsOffset + row, currentNeuronsLength, activation);
+                }
+            }
+        }
+    }
+
+    private void calculateGradients(FloatBatchWorkspace workspace, int rows){
+        int outputLayer = layerSizes.length - 1;
+
+        //Output layer delta
+        int outputSize = layerSizes[outputLayer];
+        for (int r = 0; r < rows; r++) {
+            lossFunction.calculateOutputsDelta(workspace.neurons, workspace.neuronsOffsets[outputLayer] + r * outputSize, workspace.expectedOutputs, r * outputSize,
+                    workspace.neuronsDelta, workspace.deltaOffsets[outputLayer - 1] + r * outputSize, outputSize, activations[outputLayer - 1]);
+        }
+
+        //Hidden layers delta, D(i) = D(i+1) * W(i)^T scaled by the derivative
+        for (int i = outputLayer - 1; i >= 1; i--) {
+            int deltaOffset = workspace.deltaOffsets[i - 1];
+            int neuronsOffset = workspace.neuronsOffsets[i];
+            ActivationFunction activation = activations[i - 1];
+            MatrixOperations.multiplyTransposedB(workspace.neuronsDelta, workspace.deltaOffsets[i], weights, weightsOffsets[i],
+                    workspace.neuronsDelta, deltaOffset, rows, layerSizes[i + 1], layerSizes[i]);
+            for (int j = 0; j < rows * layerSizes[i]; j++) {
+                workspace.neuronsDelta[deltaOffset + j] *= (float) activation.derivative(workspace.neurons[neuronsOffset + j]);
+            }
+        }
+
+        //Gradients, G(i) = A(i-1)^T * D(i)
+        for (int i = 1; i <= outputLayer; i++) {
+            MatrixOperations.multiplyTransposedA(workspace.neurons, workspace.neuronsOffsets[i - 1], workspace.neuronsDelta, workspace.deltaOffsets[i - 1],
+                    workspace.weightGradients, weightsOffsets[i - 1], layerSizes[i - 1], rows, layerSizes[i]);
+            MatrixOperations.sumRows(workspace.neuronsDelta, workspace.deltaOffsets[i - 1],
+                    workspace.thresholdGradients, thresholdsOffsets[i - 1], rows, layerSizes[i]);
+        }
+    }
+
+    private void applyGradients(FloatBatchWorkspace workspace, int rows){
+        //Mean gradient of the batch
+        float factor = (float) (alpha * learningRateScale / rows);
+        Kernels.axpy(-factor, workspace.weightGradients, 0, weights, 0, weights.length);
+        Kernels.axpy(-factor, workspace.thresholdGradients, 0, thresholds, 0, thresholds.length);
+    }
+
+    private void spreadLayer(int layer, float[] previousNeurons, float[] currentNeurons){
+        int weightsOffset = weightsOffsets[layer - 1];
+        int thresholdsOffset = thresholdsOffsets[layer - 1];
+        int previousNeuronsLength = layerSizes[layer - 1];
+        int currentNeuronsLength = layerSizes[layer];
+        ActivationFunction activation = activations[layer - 1];
+        //Row k of the weights feeds every neuron from neuron k, so it is read in order
+        System.arraycopy(thresholds, thresholdsOffset, currentNeurons, 0, currentNeuronsLength);
+        for (int k = 0; k < previousNeuronsLength; k++) {
+            Kernels.axpy(previousNeurons[k], weights, weightsOffset + currentNeuronsLength * k, currentNeurons, 0, currentNeuronsLength);
+        }
+        if (layer == layerSizes.length - 1) {
+            lossFunction.activateOutputs(currentNeurons, 0, currentNeurons, 0, currentNeuronsLength, activation);
+        } else {
+            for (int j = 0; j < currentNeuronsLength; j++) {
+                currentNeurons[j] = (float) activation.activate(currentNeurons[j]);
+            }
+        }
+    }
+
+    private static int[] buildLayerSizes(int inputSize, int outputSize, int[] hiddenLayersSizes){
+        int[] sizes = new int[hiddenLayersSizes.length + 2];
+        sizes[0] = inputSize;
+        System.arraycopy(hiddenLayersSizes, 0, sizes, 1, hiddenLayersSizes.length);
+        sizes[sizes.length - 1] = outputSize;
+        return sizes;
+    }
+
+    private static ActivationFunction[] buildActivations(ActivationFunction hiddenActivation, int numberOfActivations){
+        ActivationFunction[] layersActivations = new ActivationFunction[numberOfActivations];
+        for (int i = 0; i < layersActivations.length - 1; i++) {
+            layersActivations[i] = hiddenActivation;
+        }
+        layersActivations[layersActivations.length - 1] = SigmoidPrecision.EXACT;
+        return layersActivations;
+    }
+
+    private void initializeScaledWeights() {
+        //Uniform in [-limit, limit], He initialization for the rectifiers and Glorot for the rest
+        Random random = new Random();
+        for (int i = 1; i < layerSizes.length; i++) {
+            ActivationFunction activation = activations[i-1];
+            boolean rectifier = activation == Activation.RELU || activation == Activation.LEAKY_RELU;
+            double limit = rectifier ? Math.sqrt(6.0 / layerSizes[i-1]) : Math.sqrt(6.0 / (layerSizes[i-1] + layerSizes[i]));
+            for (int j = weightsOffsets[i-1]; j < weightsOffsets[i]; j++) {
+                weights[j] = (float) ((random.nextDouble() * 2 - 1) * limit);
+            }
+        }
+    }
+}
@@ -10,7 +10,17 @@ public class HandwrittenNumberIdentifier {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        
+
+        /*
+        With arguments, the command they name is run instead of this method:
+        train, evaluate, convert-model, benchmark or serve. Run it with a wrong
+        command to see every option.
+        */
+        if (args.length > 0) {
+            CommandLine.run(args);
+            return;
+        }
+
         /*
         Loading a Perceptron data from a file. If you want to load a different 
         one, change the name to the one you want to load.
@@ -22,17 +32,92 @@ public class HandwrittenNumberIdentifier {
         /*
         To create a new Multilayer Perceptron uncomment the next lines and feel 
         free to change the alpha constant, the number of hidden layer and their 
-        size, but have in mind that the class NeuralWorker use just one neuron 
-        for the output. If you want to modify the output size, you should write 
-        a new test and training method. 
+        size. This one has a single sigmoid output, the digit divided by 10; 
+        the ones below have one output per digit.
         */
         //NeuralNetWorker nnworker = new NeuralNetWorker(0.2, 10, 20, 10);
         //nnworker.trainNeuralNet(100);
         /*
+        A perceptron with one output per digit, a softmax output layer and the
+        activation function of your choice for the hidden layers can be created 
+        this way instead. ReLU networks need far fewer cycles than the sigmoid ones.
+        */
+        //NeuralNetWorker nnworker = new NeuralNetWorker(0.05, Activation.RELU, 100);
+        //nnworker.trainNeuralNet(10);
+        /*
+        The same perceptron can store its weights and the data sets as floats,
+        which takes half the memory and trains faster.
+        */
+        //NeuralNetWorker nnworker = new NeuralNetWorker(Precision.FLOAT, 0.05, Activation.RELU, 100);
+        //nnworker.trainNeuralNet(10, 32);
+        /*
+        Momentum and Adam reach the same hits in fewer cycles than the plain
+        gradient descent. Adam needs a much smaller alpha constant, and the
+        learning rate can decrease along the training with a schedule.
+        */
+        //nnworker.setOptimizer(Optimizer.adam());
+        //nnworker.setLearningRateSchedule(LearningRateSchedule.cosine(10, 0.05));
+        /*
+        Instead of trying alpha constants and hidden layers one by one, many 
+        perceptrons can be trained at the same time, dropping the ones that 
+        fall behind. The best two are saved with names starting with "Sweep".
+        */
+        //HyperparameterSweep sweep = new HyperparameterSweep();
+        //sweep.run(SearchSpace.grid(new double[]{0.01, 0.05, 0.1}, new int[]{100}, new int[]{200, 50}), 10, 2, "Sweep");
+        /*
+        The samples can be shuffled in every cycle, keeping a tenth of them aside
+        to stop the training when their hits don't improve for 3 cycles.
+        */
+        //nnworker.setSeed(42);
+        //nnworker.setEpochScheduling(0.1, true);
+        //nnworker.setEarlyStopping(3, 0.001);
+        //nnworker.trainNeuralNet(100, 32);
+        /*
+        Long trainings can write a checkpoint every few cycles, and go on from
+        the newest one if they are interrupted.
+        */
+        //nnworker.enableCheckpoints("checkpoints", 5, 2);
+        //NeuralNetWorker nnworker = NeuralNetWorker.resume("checkpoints", 5, 2, Precision.DOUBLE);
+        //nnworker.trainNeuralNet(100 - nnworker.getCompletedCycles());
+        /*
+        The time, loss and hits of every cycle can be written to a CSV or JSON 
+        file, and watched live with JConsole registering a TrainingMonitor.
+        */
+        //nnworker.addMetricsListener(new MetricsFileWriter(java.nio.file.Paths.get("metrics.csv"), MetricsFileWriter.Format.CSV, 100));
+        //TrainingMonitor monitor = new TrainingMonitor();
+        //monitor.register();
+        //nnworker.addMetricsListener(monitor);
+        /*
+        A trained perceptron can be quantized to 8 bit integers, which compares 
+        the hits of both versions on the test data set.
+        */
+        //QuantizedModel quantizedModel = nnworker.calibrateQuantization(1000);
+        /*
+        It can also be pruned, removing 90% of the weights of the hidden layers
+        and training it one more cycle. This compares the hits and the time per
+        sample of both versions on the test data set.
+        */
+        //SparseInferenceModel sparseModel = nnworker.pruneWeights(0.9, 1, 32);
+        //DataManager.saveSparseModel(sparseModel, "pruned.model");
+        /*
         If you want to save your perceptron, uncomment the next line and choose 
         a new name for your perceptron
         */
         //String name = ;
         //nnworker.saveNeuralNet(name);
+        /*
+        A saved perceptron can be served over HTTP: POST the 784 raw pixels of
+        an image to /predict and look at the latencies in /metrics. The 
+        LoadGenerator class sends the test images to it from many clients. 
+        Start this program with -Dsun.net.httpserver.nodelay=true, or every
+        answer waits about 40 ms for the delayed ACKs.
+        */
+        //InferenceServer server = InferenceServer.forPerceptron(name, 8080, 64, 1000);
+        //server.start();
+        /*
+        Several saved perceptrons with the same outputs can vote or average 
+        their outputs. This prints the hits of the ensemble and of each one.
+        */
+        //NeuralNetWorker.testEnsemble(EnsembleModel.Combination.VOTE, "First", "Second", "Third");
     }
 }
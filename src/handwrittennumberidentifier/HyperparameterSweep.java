@@ -0,0 +1,387 @@
+package handwrittennumberidentifier;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Trains many perceptrons with different alpha constants and hidden layers at
+ * the same time, and saves the best ones. All the candidates read the same
+ * data sets, which are loaded once.
+ * <p>
+ * The candidates are trained a few cycles at a time and then measured on a
+ * validation split of the training data set. A candidate whose accuracy is
+ * below the best ones measured after the same number of cycles is pruned
+ * right away and its memory is released, so the time is spent on the
+ * promising ones. Since the candidates don't wait for each other, which ones
+ * are pruned can depend on the order they finish in.
+ * <p>
+ * A new candidate starts when a thread is free and its perceptron and
+ * training buffers fit in the free heap, so big topologies don't run the
+ * program out of memory.
+ * @author Pablo Alonso
+ */
+public class HyperparameterSweep {
+
+    private static final double ERROR_RANGE = 0.03;
+    //Share of the free heap the candidates can take
+    private static final double HEAP_FRACTION = 0.75;
+
+    private final double[][] trainDataSet;
+    private final double[] trainLabels;
+    private final double[][] testDataSet;
+    private final double[] testLabels;
+    private final double[][] expectedOutputs;
+    private final int outputSize;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = 32;
+    private double validationFraction = 0.1;
+    private int cyclesPerRound = 1;
+    private double survivorsFraction = 0.5;
+    private ActivationFunction hiddenActivation = Activation.RELU;
+    private Optimizer optimizer = Optimizer.sgd();
+    private long seed = new Random().nextLong();
+
+    /**
+     * Loads the training and test data sets of DataManager once for all the candidates.
+     */
+    public HyperparameterSweep(){
+        this(DataManager.loadTrainData(), DataManager.loadTrainLabels(), DataManager.loadTestData(), DataManager.loadTestLabels());
+    }
+
+    /**
+     * The data sets are used as they are, without copying them, and they are
+     * never modified.
+     * @param trainDataSet The training data set, one row per sample
+     * @param trainLabels The labels of the training data set, as DataManager returns them
+     * @param testDataSet The test data set, one row per sample
+     * @param testLabels The labels of the test data set
+     */
+    public HyperparameterSweep(double[][] trainDataSet, double[] trainLabels, double[][] testDataSet, double[] testLabels){
+        if(trainDataSet.length != trainLabels.length || testDataSet.length != testLabels.length){
+            throw new RuntimeException("The number of samples is different from the number of labels");
+        }
+        this.trainDataSet = trainDataSet;
+        this.trainLabels = trainLabels;
+        this.testDataSet = testDataSet;
+        this.testLabels = testLabels;
+        int classes = 0;
+        for (double label : trainLabels) {
+            classes = Math.max(classes, Evaluator.labelClass(label) + 1);
+        }
+        outputSize = Math.max(classes, 10);
+        expectedOutputs = new double[trainLabels.length][outputSize];
+        for (int i = 0; i < trainLabels.length; i++) {
+            expectedOutputs[i][Evaluator.labelClass(trainLabels[i])] = 1;
+        }
+    }
+
+    /**
+     *
+     * @param threads The number of candidates trained at the same time, at most
+     */
+    public void setThreads(int threads){
+        if(threads < 1){
+            throw new RuntimeException("The number of threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     *
+     * @param batchSize The number of samples used for each update of the
+     * perceptrons. With 1 they are updated after every sample
+     */
+    public void setBatchSize(int batchSize){
+        if(batchSize < 1){
+            throw new RuntimeException("The batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     *
+     * @param validationFraction The fraction of the samples of each digit kept
+     * aside to compare the candidates, above 0 and below 1
+     */
+    public void setValidationFraction(double validationFraction){
+        if(validationFraction <= 0 || validationFraction >= 1){
+            throw new RuntimeException("The validation fraction must be between 0 and 1");
+        }
+        this.validationFraction = validationFraction;
+    }
+
+    /**
+     *
+     * @param cyclesPerRound The number of cycles trained between two
+     * measurements of the validation accuracy
+     * @param survivorsFraction The fraction of the candidates measured after
+     * the same number of cycles that go on training, for instance 0.5. The
+     * candidates are only pruned while there are more left than winners
+     */
+    public void setPruning(int cyclesPerRound, double survivorsFraction){
+        if(cyclesPerRound < 1){
+            throw new RuntimeException("The number of cycles per round must be at least 1");
+        }
+        if(survivorsFraction <= 0 || survivorsFraction > 1){
+            throw new RuntimeException("The fraction of survivors must be above 0 and at most 1");
+        }
+        this.cyclesPerRound = cyclesPerRound;
+        this.survivorsFraction = survivorsFraction;
+    }
+
+    /**
+     *
+     * @param hiddenActivation The activation function of the hidden layers of
+     * every candidate. The output layer is a softmax
+     */
+    public void setHiddenActivation(ActivationFunction hiddenActivation){
+        this.hiddenActivation = hiddenActivation;
+    }
+
+    /**
+     *
+     * @param optimizer The optimizer of every candidate
+     */
+    public void setOptimizer(Optimizer optimizer){
+        this.optimizer = optimizer;
+    }
+
+    /**
+     *
+     * @param seed The seed of the validation split and the order of the samples
+     */
+    public void setSeed(long seed){
+        this.seed = seed;
+    }
+
+    /**
+     * Trains the candidates, pruning the ones that fall behind, and saves the
+     * best ones that finished every cycle through DataManager.savePercepron.
+     * @param searchSpace The candidates
+     * @param numberOfCycles The number of cycles of the candidates that aren't pruned
+     * @param winners The number of candidates saved
+     * @param namePrefix The beginning of the names of the saved perceptrons,
+     * which go on with the hyperparameters, or null to save nothing
+     * @return The results of every candidate, the winners first and then the
+     * rest from the best validation accuracy to the worst
+     */
+    public List<SweepResult> run(SearchSpace searchSpace, int numberOfCycles, int winners, String namePrefix){
+        if(numberOfCycles < 1){
+            throw new RuntimeException("The number of cycles must be at least 1");
+        }
+        int[] validationIndices = new EpochScheduler(trainLabels, validationFraction, false, seed).getValidationIndices();
+        List<Trial> trials = new ArrayList<>();
+        for (SweepCandidate candidate : searchSpace.getCandidates()) {
+            trials.add(new Trial(trials.size(), candidate, estimateBytes(candidate)));
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long budget = (long) ((runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory())) * HEAP_FRACTION);
+        for (Trial trial : trials) {
+            if (trial.bytes > budget) {
+                throw new RuntimeException("The candidate " + trial.candidate + " needs " + trial.bytes / (1 << 20)
+                        + " MB and there are only " + budget / (1 << 20) + " MB free");
+            }
+        }
+
+        List<Trial> finished = new ArrayList<>();
+        List<List<Double>> roundAccuracies = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Sweep-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (Evaluator evaluator = new Evaluator(threads)) {
+            CompletionService<Trial> completion = new ExecutorCompletionService<>(executor);
+            ArrayDeque<Trial> pending = new ArrayDeque<>(trials);
+            //Candidates that go on training, they already hold their memory
+            ArrayDeque<Trial> promoted = new ArrayDeque<>();
+            long reservedBytes = 0;
+            int running = 0;
+            int prunedTrials = 0;
+            while (true) {
+                while (running < threads) {
+                    Trial next = promoted.poll();
+                    if (next == null && !pending.isEmpty() && (running == 0 || reservedBytes + pending.peek().bytes <= budget)) {
+                        next = pending.poll();
+                        reservedBytes += next.bytes;
+                    }
+                    if (next == null) break;
+                    Trial trial = next;
+                    int cycles = Math.min(cyclesPerRound, numberOfCycles - trial.completedCycles);
+                    completion.submit(() -> trainRound(trial, cycles, validationIndices, evaluator));
+                    running++;
+                }
+                if (running == 0) break;
+                Trial trial = completion.take().get();
+                running--;
+                int round = trial.accuracies.size() - 1;
+                if (roundAccuracies.size() <= round) roundAccuracies.add(new ArrayList<>());
+                roundAccuracies.get(round).add(trial.getValidationAccuracy());
+                System.out.println("Candidate: " + trial.candidate + ", Cycle: " + (trial.completedCycles - 1)
+                        + String.format(", Validation Accuracy: %.4f", trial.getValidationAccuracy()));
+                if (trial.completedCycles >= numberOfCycles) {
+                    //The copy keeps the weights without the training buffers
+                    trial.perceptron = trial.perceptron.copy();
+                    trial.scheduler = null;
+                    finished.add(trial);
+                    finished.sort(Comparator.comparingDouble(Trial::getValidationAccuracy).reversed());
+                    long kept = 8 * trial.candidate.getParameters(trainDataSet[0].length, outputSize);
+                    reservedBytes -= trial.bytes - kept;
+                    trial.bytes = kept;
+                    //Only the winners are kept in memory
+                    while (finished.size() > winners) {
+                        Trial loser = finished.remove(finished.size() - 1);
+                        loser.perceptron = null;
+                        reservedBytes -= loser.bytes;
+                    }
+                } else if (trials.size() - prunedTrials > winners && isBehind(trial.getValidationAccuracy(), roundAccuracies.get(round))) {
+                    //Enough candidates are left to choose the winners from
+                    prunedTrials++;
+                    trial.pruned = true;
+                    trial.perceptron = null;
+                    trial.scheduler = null;
+                    reservedBytes -= trial.bytes;
+                    System.out.println("Candidate: " + trial.candidate + ", Pruned");
+                } else {
+                    promoted.add(trial);
+                }
+            }
+            return results(trials, finished, namePrefix, evaluator);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Trial trainRound(Trial trial, int cycles, int[] validationIndices, Evaluator evaluator){
+        if (trial.perceptron == null) {
+            trial.perceptron = new MultilayerPerceptron(trainDataSet[0].length, outputSize, trial.candidate.getAlpha(),
+                    hiddenActivation, LossFunction.SOFTMAX_CROSS_ENTROPY, trial.candidate.getHiddenLayersSizes());
+            trial.perceptron.setOptimizer(optimizer);
+            trial.scheduler = new EpochScheduler(trainLabels, validationFraction, false, seed);
+        }
+        Random random = new Random();
+        int trainingSize = trial.scheduler.getTrainingSize();
+        for (int c = 0; c < cycles; c++) {
+            //Every candidate visits the samples in its own order
+            random.setSeed(seed + 31L * trial.index + ((long) trial.completedCycles << 32));
+            int[] order = trial.scheduler.nextOrder(random);
+            if (batchSize > 1) {
+                trial.perceptron.trainBatch(trainDataSet, expectedOutputs, order, 0, trainingSize, batchSize);
+            } else {
+                for (int j = 0; j < trainingSize; j++) {
+                    trial.perceptron.startTrainingCycle(trainDataSet[order[j]], expectedOutputs[order[j]]);
+                }
+            }
+            trial.completedCycles++;
+        }
+        EvaluationResult validation = evaluator.evaluate(trial.perceptron.toInferenceModel(), trainDataSet, trainLabels, validationIndices, ERROR_RANGE);
+        trial.accuracies.add(validation.getAccuracy());
+        return trial;
+    }
+
+    /**
+     *
+     * @param accuracy The validation accuracy of a candidate
+     * @param roundAccuracies The validation accuracies measured so far after
+     * the same number of cycles, including this one
+     * @return true if the candidate isn't among the survivors of the round
+     */
+    private boolean isBehind(double accuracy, List<Double> roundAccuracies){
+        int better = 0;
+        for (double other : roundAccuracies) {
+            if (other > accuracy) better++;
+        }
+        return better >= Math.ceil(roundAccuracies.size() * survivorsFraction);
+    }
+
+    private List<SweepResult> results(List<Trial> trials, List<Trial> winners, String namePrefix, Evaluator evaluator){
+        List<SweepResult> results = new ArrayList<>();
+        for (Trial winner : winners) {
+            InferenceModel model = winner.perceptron.toInferenceModel();
+            int testDataHits = evaluator.evaluate(model, testDataSet, testLabels, ERROR_RANGE).getHits();
+            int trainingDataHits = evaluator.evaluate(model, trainDataSet, trainLabels, ERROR_RANGE).getHits();
+            String name = null;
+            if (namePrefix != null) {
+                name = namePrefix + " " + winner.candidate;
+                if (!DataManager.savePercepron(winner.perceptron, name, testDataHits, trainingDataHits)) {
+                    System.out.println("THE PERCEPTRON " + name + " COULDN'T BE SAVED");
+                    name = null;
+                }
+            }
+            results.add(winner.toResult(name, testDataHits, trainingDataHits));
+        }
+        List<Trial> rest = new ArrayList<>(trials);
+        rest.removeAll(winners);
+        rest.sort(Comparator.comparingInt((Trial trial) -> trial.completedCycles)
+                .thenComparingDouble(Trial::getValidationAccuracy).reversed());
+        for (Trial trial : rest) {
+            results.add(trial.toResult(null, -1, -1));
+        }
+        for (SweepResult result : results) {
+            System.out.println(result);
+        }
+        return results;
+    }
+
+    /**
+     * The memory taken by a candidate while it trains: the weights and
+     * thresholds with the values of the optimizer, a copy of them for the
+     * evaluations, the batch buffers and the order of the samples.
+     */
+    private long estimateBytes(SweepCandidate candidate){
+        long parameters = candidate.getParameters(trainDataSet[0].length, outputSize);
+        long neurons = trainDataSet[0].length + outputSize;
+        for (int size : candidate.getHiddenLayersSizes()) {
+            neurons += size;
+        }
+        long parameterCopies = 3 + optimizer.getStateNames().length;
+        return 8 * (parameters * parameterCopies + neurons * (3L * batchSize + 4)) + 12L * trainDataSet.length;
+    }
+
+    /**
+     * A candidate along the sweep. It is only modified by one thread at a time.
+     */
+    private static final class Trial {
+
+        final int index;
+        final SweepCandidate candidate;
+        final List<Double> accuracies = new ArrayList<>();
+        long bytes;
+        MultilayerPerceptron perceptron;
+        EpochScheduler scheduler;
+        int completedCycles;
+        boolean pruned;
+
+        Trial(int index, SweepCandidate candidate, long bytes){
+            this.index = index;
+            this.candidate = candidate;
+            this.bytes = bytes;
+        }
+
+        double getValidationAccuracy(){
+            return accuracies.isEmpty() ? 0 : accuracies.get(accuracies.size() - 1);
+        }
+
+        SweepResult toResult(String savedName, int testDataHits, int trainingDataHits){
+            double[] history = new double[accuracies.size()];
+            for (int i = 0; i < history.length; i++) {
+                history[i] = accuracies.get(i);
+            }
+            return new SweepResult(candidate, history, completedCycles, pruned, savedName, testDataHits, trainingDataHits);
+        }
+    }
+}
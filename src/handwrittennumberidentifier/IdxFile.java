@@ -0,0 +1,221 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * Memory mapped reader of the IDX files used by the MNIST data sets. The number
+ * of samples and their dimensions are read from the header, and the samples are
+ * decoded only when they are requested, so opening a file doesn't copy it into
+ * the heap. Only files of unsigned bytes are supported.
+ * Files bigger than 2GB are mapped in several regions, each one holding a whole
+ * number of samples.
+ * An IdxFile can be read from any number of threads at the same time.
+ * @author Pablo Alonso
+ */
+public final class IdxFile {
+    
+    private static final int UNSIGNED_BYTE_TYPE = 0x08;
+    
+    private final Path path;
+    private final int[] dimensions;
+    private final int sampleSize;
+    private final int samplesPerRegion;
+    private final ByteBuffer[] regions;
+    
+    private IdxFile(Path path, int[] dimensions, ByteBuffer[] regions, int samplesPerRegion){
+        this.path = path;
+        this.dimensions = dimensions;
+        this.regions = regions;
+        this.samplesPerRegion = samplesPerRegion;
+        int size = 1;
+        for (int i = 1; i < dimensions.length; i++) {
+            size *= dimensions[i];
+        }
+        this.sampleSize = size;
+    }
+    
+    /**
+     *
+     * @param path The IDX file
+     * @return The file mapped in memory, with its header already parsed
+     * @throws IOException If the file can't be read or its header is not valid
+     */
+    public static IdxFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            readFully(channel, magic, 0, path);
+            //The magic number is two zero bytes, the type of the values and the number of dimensions
+            if (magic.get(0) != 0 || magic.get(1) != 0) {
+                throw new IOException(path + " is not an IDX file");
+            }
+            if (magic.get(2) != UNSIGNED_BYTE_TYPE) {
+                throw new IOException(path + " doesn't contain unsigned bytes, type " + magic.get(2) + " is not supported");
+            }
+            int[] dimensions = new int[magic.get(3) & 0xFF];
+            if (dimensions.length == 0) {
+                throw new IOException(path + " has no dimensions");
+            }
+            ByteBuffer header = ByteBuffer.allocate(4 * dimensions.length).order(ByteOrder.BIG_ENDIAN);
+            readFully(channel, header, 4, path);
+            long sampleSize = 1;
+            for (int i = 0; i < dimensions.length; i++) {
+                dimensions[i] = header.getInt(4 * i);
+                //Counts over 2^31 come out negative
+                if (dimensions[i] <= 0) {
+                    throw new IOException(path + " has a dimension of size " + (dimensions[i] & 0xFFFFFFFFL));
+                }
+                if (i > 0) sampleSize *= dimensions[i];
+                if (sampleSize > Integer.MAX_VALUE) {
+                    throw new IOException("The samples of " + path + " are too big");
+                }
+            }
+            long headerLength = 4 + 4L * dimensions.length;
+            long expectedLength = headerLength + sampleSize * dimensions[0];
+            if (channel.size() < expectedLength) {
+                throw new IOException(path + " is truncated, it should be " + expectedLength + " bytes long");
+            }
+            
+            int samplesPerRegion = (int) Math.max(1, Math.min(dimensions[0], Integer.MAX_VALUE / sampleSize));
+            int numberOfRegions = (int) ((dimensions[0] + (long) samplesPerRegion - 1) / samplesPerRegion);
+            ByteBuffer[] regions = new ByteBuffer[numberOfRegions];
+            for (int i = 0; i < numberOfRegions; i++) {
+                long firstSample = (long) i * samplesPerRegion;
+                long samples = Math.min(samplesPerRegion, dimensions[0] - firstSample);
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, headerLength + firstSample * sampleSize, samples * sampleSize);
+                regions[i] = region;
+            }
+            return new IdxFile(path, dimensions, regions, samplesPerRegion);
+        }
+    }
+    
+    public Path getPath(){
+        return path;
+    }
+    
+    /**
+     *
+     * @return The size of every dimension, the first one is the number of samples
+     */
+    public int[] getDimensions(){
+        return dimensions.clone();
+    }
+    
+    public int getNumberOfSamples(){
+        return dimensions[0];
+    }
+    
+    /**
+     *
+     * @return The number of values of each sample, 784 for the MNIST images and 
+     * 1 for the labels
+     */
+    public int getSampleSize(){
+        return sampleSize;
+    }
+    
+    /**
+     *
+     * @param sample The index of the sample
+     * @return A read-only view of the bytes of the sample, nothing is copied
+     */
+    public ByteBuffer getSampleBytes(int sample){
+        ByteBuffer region = regions[sample / samplesPerRegion].duplicate();
+        int start = (sample % samplesPerRegion) * sampleSize;
+        region.limit(start + sampleSize);
+        region.position(start);
+        return region.slice().asReadOnlyBuffer();
+    }
+    
+    /**
+     *
+     * @param sample The index of the sample
+     * @param position The position of the value inside the sample
+     * @return The value, from 0 to 255
+     */
+    public int getValue(int sample, int position){
+        return regions[sample / samplesPerRegion].get((sample % samplesPerRegion) * sampleSize + position) & 0xFF;
+    }
+    
+    /**
+     * Used with the label files, where each sample is a single value.
+     * @param sample The index of the sample
+     * @return The label of the sample
+     */
+    public int getLabel(int sample){
+        return getValue(sample, 0);
+    }
+    
+    /**
+     * Decodes a sample scaling its values from 0 to 1; 0 = 0, 255 = 1.
+     * @param sample The index of the sample
+     * @param row The array where the sample is written, it must have the sample size
+     * @return The row passed as parameter
+     */
+    public double[] readSample(int sample, double[] row){
+        checkRowSize(row.length);
+        ByteBuffer region = regions[sample / samplesPerRegion];
+        int start = (sample % samplesPerRegion) * sampleSize;
+        for (int i = 0; i < sampleSize; i++) {
+            row[i] = (region.get(start + i) & 0xFF) / 255.0;
+        }
+        return row;
+    }
+    
+    /**
+     * Decodes a sample scaling its values from 0 to 1; 0 = 0, 255 = 1.
+     * @param sample The index of the sample
+     * @param row The array where the sample is written, it must have the sample size
+     * @return The row passed as parameter
+     */
+    public float[] readSample(int sample, float[] row){
+        checkRowSize(row.length);
+        ByteBuffer region = regions[sample / samplesPerRegion];
+        int start = (sample % samplesPerRegion) * sampleSize;
+        for (int i = 0; i < sampleSize; i++) {
+            row[i] = (region.get(start + i) & 0xFF) / 255f;
+        }
+        return row;
+    }
+    
+    /**
+     *
+     * @return A read-only list of the samples scaled from 0 to 1. Each sample is
+     * decoded from the file when it is requested, into a new array
+     */
+    public List<double[]> asDoubleRows(){
+        return new AbstractList<double[]>() {
+            @Override
+            public double[] get(int index) {
+                return readSample(index, new double[sampleSize]);
+            }
+
+            @Override
+            public int size() {
+                return dimensions[0];
+            }
+        };
+    }
+    
+    private void checkRowSize(int length){
+        if (length != sampleSize) {
+            throw new RuntimeException("The row passed as parameter is different in "
+                    + "size from the samples of " + path);
+        }
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path path) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException(path + " is truncated");
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package handwrittennumberidentifier;
+
+/**
+ * Reads the samples of a pair of IDX files, images and labels, in order. The 
+ * labels are scaled the same way DataManager does, the digit divided by 10.
+ * @author Pablo Alonso
+ */
+public class IdxSampleSource implements SampleSource {
+    
+    private final IdxFile images;
+    private final IdxFile labels;
+    private int nextSample = 0;
+    
+    /**
+     *
+     * @param images The IDX file with the images
+     * @param labels The IDX file with the label of each image
+     */
+    public IdxSampleSource(IdxFile images, IdxFile labels){
+        if(images.getNumberOfSamples() != labels.getNumberOfSamples()){
+            throw new RuntimeException("The number of images is different from the number of labels");
+        }
+        this.images = images;
+        this.labels = labels;
+    }
+
+    @Override
+    public int getInputSize() {
+        return images.getSampleSize();
+    }
+
+    @Override
+    public int read(double[][] inputs, double[] labelsBuffer, int maxSamples) {
+        int read = Math.min(maxSamples, images.getNumberOfSamples() - nextSample);
+        for (int i = 0; i < read; i++) {
+            images.readSample(nextSample, inputs[i]);
+            labelsBuffer[i] = labels.getLabel(nextSample) / 10.0;
+            nextSample++;
+        }
+        return read;
+    }
+
+    @Override
+    public void reset() {
+        nextSample = 0;
+    }
+}
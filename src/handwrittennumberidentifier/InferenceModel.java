@@ -0,0 +1,276 @@
+package handwrittennumberidentifier;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Read-only version of a MultilayerPerceptron that can only be used to spread
+ * inputs. The model never changes once it is created, so a single instance can
+ * be shared by any number of threads. Each thread spreads the inputs on its own
+ * InferenceWorkspace, so no memory is allocated once the workspace exists.
+ * @author Pablo Alonso
+ */
+public final class InferenceModel {
+    
+    private final int[] layerSizes;
+    private final int[] weightsOffsets;
+    private final int[] thresholdsOffsets;
+    private final DoubleBuffer weights;
+    private final DoubleBuffer thresholds;
+    private final ActivationFunction[] activations;
+    private final LossFunction lossFunction;
+    private final int biggestLayerSize;
+    private final ThreadLocal<InferenceWorkspace> workspaces;
+    
+    /**
+     * The buffers are used as they are, they must not be modified after the
+     * creation of the model.
+     */
+    InferenceModel(int[] layerSizes, DoubleBuffer weights, DoubleBuffer thresholds, ActivationFunction[] activations, LossFunction lossFunction){
+        this.layerSizes = layerSizes.clone();
+        this.weightsOffsets = new int[layerSizes.length];
+        this.thresholdsOffsets = new int[layerSizes.length];
+        int biggest = 0;
+        for (int i = 1; i < layerSizes.length; i++) {
+            weightsOffsets[i] = weightsOffsets[i - 1] + layerSizes[i - 1] * layerSizes[i];
+            thresholdsOffsets[i] = thresholdsOffsets[i - 1] + layerSizes[i];
+            biggest = Math.max(biggest, layerSizes[i]);
+        }
+        if(weights.remaining() != weightsOffsets[layerSizes.length - 1] || thresholds.remaining() != thresholdsOffsets[layerSizes.length - 1]){
+            throw new RuntimeException("The size of the weights or thresholds doesn't match the layers sizes");
+        }
+        this.weights = weights.slice();
+        this.thresholds = thresholds.slice();
+        if(activations.length != layerSizes.length - 1){
+            throw new RuntimeException("There must be one activation function per layer besides the input layer");
+        }
+        this.activations = activations.clone();
+        this.lossFunction = lossFunction;
+        this.biggestLayerSize = biggest;
+        this.workspaces = ThreadLocal.withInitial(this::newWorkspace);
+    }
+    
+    /**
+     *
+     * @param perceptron The perceptron whose weights and thresholds will be 
+     * copied. Training the perceptron afterwards won't modify this model
+     * @return A new read-only model
+     */
+    public static InferenceModel of(MultilayerPerceptron perceptron){
+        return perceptron.toInferenceModel();
+    }
+    
+    /**
+     *
+     * @return A new workspace for this model, to be used by a single thread
+     */
+    public InferenceWorkspace newWorkspace(){
+        return new InferenceWorkspace(biggestLayerSize);
+    }
+    
+    /**
+     *
+     * @param batchCapacity The biggest number of samples spread at once with predictBatch
+     * @return A new workspace for this model, to be used by a single thread
+     */
+    public InferenceWorkspace newWorkspace(int batchCapacity){
+        if(batchCapacity < 1){
+            throw new RuntimeException("The batch capacity must be at least 1");
+        }
+        return new InferenceWorkspace(biggestLayerSize * batchCapacity);
+    }
+    
+    /**
+     * Spreads the inputs using a workspace owned by the calling thread.
+     * @param inputs The inputs, it must be the same size as the input size of this model
+     * @param outputs The array where the outputs will be written, it must be 
+     * the same size as the output size of this model
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(double[] inputs, double[] outputs){
+        return predict(inputs, outputs, workspaces.get());
+    }
+    
+    /**
+     *
+     * @param inputs The inputs, it must be the same size as the input size of this model
+     * @param outputs The array where the outputs will be written, it must be 
+     * the same size as the output size of this model
+     * @param workspace A workspace created by this model, not used by any other 
+     * thread at the same time
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(double[] inputs, double[] outputs, InferenceWorkspace workspace){
+        if(inputs.length != layerSizes[0]){
+            throw new RuntimeException("The inputs passed as parameter is different in "
+                    + "size from the inputs size of this model");
+        }
+        if(outputs.length != layerSizes[layerSizes.length - 1]){
+            throw new RuntimeException("The output passed as parameter is different in "
+                    + "size from the output size of this model");
+        }
+        if(workspace.currentLayer.length < biggestLayerSize){
+            throw new RuntimeException("The workspace passed as parameter wasn't created by this model");
+        }
+        double[] previousNeurons = inputs;
+        double[] currentNeurons = workspace.currentLayer;
+        double[] spareNeurons = workspace.nextLayer;
+        for (int i = 1; i < layerSizes.length; i++) {
+            if (i == layerSizes.length - 1) currentNeurons = outputs;
+            spreadLayer(i, previousNeurons, currentNeurons);
+            previousNeurons = currentNeurons;
+            currentNeurons = spareNeurons;
+            spareNeurons = previousNeurons;
+        }
+        return outputs;
+    }
+    
+    /**
+     * Spreads several samples at once. Every row of the weights is read once
+     * for the whole batch instead of once per sample, which is what makes 
+     * serving many small requests together faster than one by one.
+     * @param inputs The inputs of every sample, one after another
+     * @param outputs The array where the outputs of every sample will be 
+     * written, one after another
+     * @param rows The number of samples
+     * @param workspace A workspace created by this model with newWorkspace(batchCapacity)
+     * for at least rows samples, not used by any other thread at the same time
+     * @return The outputs array passed as parameter
+     */
+    public double[] predictBatch(double[] inputs, double[] outputs, int rows, InferenceWorkspace workspace){
+        if(inputs.length < rows * layerSizes[0]){
+            throw new RuntimeException("The inputs passed as parameter are smaller than the batch");
+        }
+        if(outputs.length < rows * layerSizes[layerSizes.length - 1]){
+            throw new RuntimeException("The outputs passed as parameter are smaller than the batch");
+        }
+        if(workspace.currentLayer.length < rows * biggestLayerSize){
+            throw new RuntimeException("The workspace passed as parameter is too small for the batch");
+        }
+        double[] previousNeurons = inputs;
+        double[] currentNeurons = workspace.currentLayer;
+        double[] spareNeurons = workspace.nextLayer;
+        for (int i = 1; i < layerSizes.length; i++) {
+            if (i == layerSizes.length - 1) currentNeurons = outputs;
+            spreadLayer(i, previousNeurons, currentNeurons, rows);
+            previousNeurons = currentNeurons;
+            currentNeurons = spareNeurons;
+            spareNeurons = previousNeurons;
+        }
+        return outputs;
+    }
+    
+    /**
+     *
+     * @return An Array with all the layers size. The first one will be the input
+     * size, and the last one will be the output size.
+     */
+    public int[] getAllLayersSize(){
+        return layerSizes.clone();
+    }
+    
+    public int getInputSize(){
+        return layerSizes[0];
+    }
+    
+    public int getOutputSize(){
+        return layerSizes[layerSizes.length - 1];
+    }
+    
+    /**
+     *
+     * @return The activation function of every layer, the first one belongs to
+     * the first hidden layer and the last one to the output layer
+     */
+    public ActivationFunction[] getActivations(){
+        return activations.clone();
+    }
+    
+    public LossFunction getLossFunction(){
+        return lossFunction;
+    }
+    
+    /**
+     * The weights of every layer one after another, as they are stored in the
+     * model. The buffer returned has its own position, but it must not be modified.
+     */
+    DoubleBuffer getWeights(){
+        return weights.duplicate();
+    }
+    
+    /**
+     * The thresholds of every layer one after another, see getWeights.
+     */
+    DoubleBuffer getThresholds(){
+        return thresholds.duplicate();
+    }
+    
+    private void spreadLayer(int layer, double[] previousNeurons, double[] currentNeurons){
+        int weightsOffset = weightsOffsets[layer - 1];
+        int thresholdsOffset = thresholdsOffsets[layer - 1];
+        int previousNeuronsLength = layerSizes[layer - 1];
+        int currentNeuronsLength = layerSizes[layer];
+        ActivationFunction activation = activations[layer - 1];
+        for (int j = 0; j < currentNeuronsLength; j++) {
+            currentNeurons[j] = thresholds.get(thresholdsOffset + j);
+        }
+        //Row k of the weights holds the weights leaving neuron k, so every row is added with unit stride
+        for (int k = 0; k < previousNeuronsLength; k++) {
+            double neuron = previousNeurons[k];
+            //Most pixels and many ReLU neurons are 0, their rows add nothing
+            if (neuron == 0) continue;
+            int row = weightsOffset + currentNeuronsLength * k;
+            if (weights.hasArray()) {
+                Kernels.axpy(neuron, weights.array(), weights.arrayOffset() + row, currentNeurons, 0, currentNeuronsLength);
+            } else {
+                for (int j = 0; j < currentNeuronsLength; j++) {
+                    currentNeurons[j] += weights.get(row + j) * neuron;
+                }
+            }
+        }
+        if (layer == layerSizes.length - 1) {
+            lossFunction.activateOutputs(currentNeurons, 0, currentNeurons, 0, currentNeuronsLength, activation);
+        } else {
+            for (int j = 0; j < currentNeuronsLength; j++) {
+                currentNeurons[j] = activation.activate(currentNeurons[j]);
+            }
+        }
+    }
+    
+    private void spreadLayer(int layer, double[] previousNeurons, double[] currentNeurons, int rows){
+        int weightsOffset = weightsOffsets[layer - 1];
+        int thresholdsOffset = thresholdsOffsets[layer - 1];
+        int previousNeuronsLength = layerSizes[layer - 1];
+        int currentNeuronsLength = layerSizes[layer];
+        ActivationFunction activation = activations[layer - 1];
+        for (int r = 0; r < rows; r++) {
+            for (int j = 0; j < currentNeuronsLength; j++) {
+                currentNeurons[r * currentNeuronsLength + j] = thresholds.get(thresholdsOffset + j);
+            }
+        }
+        //Row k of the weights is added to every sample while it is still in the cache
+        for (int k = 0; k < previousNeuronsLength; k++) {
+            int row = weightsOffset + currentNeuronsLength * k;
+            for (int r = 0; r < rows; r++) {
+                double neuron = previousNeurons[r * previousNeuronsLength + k];
+                if (neuron == 0) continue;
+                if (weights.hasArray()) {
+                    Kernels.axpy(neuron, weights.array(), weights.arrayOffset() + row, currentNeurons, r * currentNeuronsLength, currentNeuronsLength);
+                } else {
+                    for (int j = 0; j < currentNeuronsLength; j++) {
+                        currentNeurons[r * currentNeuronsLength + j] += weights.get(row + j) * neuron;
+                    }
+                }
+            }
+        }
+        for (int r = 0; r < rows; r++) {
+            int offset = r * currentNeuronsLength;
+            if (layer == layerSizes.length - 1) {
+                lossFunction.activateOutputs(currentNeurons, offset, currentNeurons, offset, currentNeuronsLength, activation);
+            } else {
+                for (int j = offset; j < offset + currentNeuronsLength; j++) {
+                    currentNeurons[j] = activation.activate(currentNeurons[j]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package handwrittennumberidentifier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP server that spreads the images it receives through an InferenceModel.
+ * Each request is handled on its own virtual thread when the JVM has them, or
+ * on a pool of threads otherwise. The handlers don't spread the images
+ * themselves: they queue them and wait, and a few batching threads take every
+ * image that arrives within the latency budget of the oldest one, up to the
+ * batch size, and spread them together with InferenceModel.predictBatch.
+ * <pre>
+ * POST /predict   the 784 raw pixels of a 28x28 image as the body, one byte
+ *                 per pixel from 0 to 255. The answer is a JSON object with
+ *                 the digit and the outputs of the model
+ * GET  /metrics   requests, batches, throughput and latency percentiles, as JSON
+ * </pre>
+ * The latency of a request goes from the moment its handler starts until its
+ * answer is written. The headers and the body of an answer are written 
+ * separately, so without -Dsun.net.httpserver.nodelay=true the delayed ACKs
+ * add about 40 ms to every request. The JDK reads that property once, before
+ * the first HttpServer of the process is created; the serve command of 
+ * HandwrittenNumberIdentifier sets it.
+ * @author Pablo Alonso
+ */
+public class InferenceServer implements AutoCloseable {
+
+    private static final int MAX_PIXEL = 255;
+
+    private final InferenceModel model;
+    private final int maxBatchSize;
+    private final long latencyBudgetNanos;
+    private final HttpServer server;
+    private final ExecutorService requestExecutor;
+    private final List<Thread> batchers = new ArrayList<>();
+    private final BlockingQueue<PendingRequest> queue = new LinkedBlockingQueue<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile boolean running;
+    private long startTime;
+
+    /**
+     *
+     * @param model The model used to answer the requests
+     * @param port The port the server listens to, 0 to choose any free one
+     * @param maxBatchSize The biggest number of images spread together
+     * @param latencyBudgetMicros How long an image can wait for others to
+     * arrive before its batch is spread, 0 to spread whatever is waiting right away
+     * @param batchThreads The number of threads spreading batches
+     * @throws IOException If the port can't be opened
+     */
+    public InferenceServer(InferenceModel model, int port, int maxBatchSize, long latencyBudgetMicros, int batchThreads) throws IOException {
+        if(maxBatchSize < 1 || batchThreads < 1){
+            throw new RuntimeException("The batch size and the number of batch threads must be at least 1");
+        }
+        if(latencyBudgetMicros < 0){
+            throw new RuntimeException("The latency budget can't be negative");
+        }
+        this.model = model;
+        this.maxBatchSize = maxBatchSize;
+        this.latencyBudgetNanos = TimeUnit.MICROSECONDS.toNanos(latencyBudgetMicros);
+        this.requestExecutor = newRequestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/predict", this::handlePredict);
+        server.createContext("/metrics", this::handleMetrics);
+        server.setExecutor(requestExecutor);
+        for (int i = 0; i < batchThreads; i++) {
+            Thread batcher = new Thread(this::batchLoop, "Inference batcher " + i);
+            batcher.setDaemon(true);
+            batchers.add(batcher);
+        }
+    }
+
+    /**
+     * Loads a perceptron saved in the DataBase and serves it.
+     * @param perceptronName The name of the perceptron saved in the DataBase
+     * @param port The port the server listens to, 0 to choose any free one
+     * @param maxBatchSize The biggest number of images spread together
+     * @param latencyBudgetMicros How long an image can wait for others to arrive
+     * @return A new server, not started yet
+     * @throws IOException If the port can't be opened
+     */
+    public static InferenceServer forPerceptron(String perceptronName, int port, int maxBatchSize, long latencyBudgetMicros) throws IOException {
+        MultilayerPerceptron perceptron = DataManager.loadPerceptron(perceptronName);
+        if (perceptron == null) {
+            throw new RuntimeException("The file of the perceptron " + perceptronName + " doesn't exist");
+        }
+        return new InferenceServer(perceptron.toInferenceModel(), port, maxBatchSize, latencyBudgetMicros,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public void start(){
+        running = true;
+        startTime = System.nanoTime();
+        for (Thread batcher : batchers) {
+            batcher.start();
+        }
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, answers the ones already queued and stops the threads.
+     */
+    @Override
+    public void close(){
+        server.stop(0);
+        running = false;
+        for (Thread batcher : batchers) {
+            try {
+                batcher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        PendingRequest request;
+        while ((request = queue.poll()) != null) {
+            request.outputs.completeExceptionally(new RuntimeException("The server is stopping"));
+        }
+        requestExecutor.shutdown();
+    }
+
+    /**
+     *
+     * @return The port the server listens to
+     */
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    public long getRequests(){
+        return latencies.getCount();
+    }
+
+    public long getBatches(){
+        return batches.get();
+    }
+
+    /**
+     *
+     * @return The requests answered per second since the server started
+     */
+    public double getRequestsPerSecond(){
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return seconds > 0 ? latencies.getCount() / seconds : 0;
+    }
+
+    /**
+     *
+     * @param percentile From 0 to 100
+     * @return The latency of that percentile of the answered requests, in microseconds
+     */
+    public double getLatencyPercentile(double percentile){
+        return latencies.getPercentile(percentile) / 1e3;
+    }
+
+    private void handlePredict(HttpExchange exchange) throws IOException {
+        long arrival = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "{\"error\":\"Use POST with the raw pixels of the image as the body\"}");
+                return;
+            }
+            byte[] pixels = readBody(exchange.getRequestBody(), model.getInputSize() + 1);
+            if (pixels.length != model.getInputSize()) {
+                send(exchange, 400, "{\"error\":\"The body must have " + model.getInputSize() + " bytes, one per pixel\"}");
+                return;
+            }
+            PendingRequest request = new PendingRequest(pixels, arrival);
+            queue.add(request);
+            //If the server stopped meanwhile, nobody may take the request
+            if (!running && queue.remove(request)) {
+                rejected.incrementAndGet();
+                send(exchange, 503, "{\"error\":\"The server is stopping\"}");
+                return;
+            }
+            double[] outputs;
+            try {
+                outputs = request.outputs.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "{\"error\":\"The server is stopping\"}");
+                return;
+            } catch (ExecutionException ex) {
+                send(exchange, 500, "{\"error\":\"" + jsonEscape(String.valueOf(ex.getCause())) + "\"}");
+                return;
+            }
+            StringBuilder answer = new StringBuilder("{\"digit\":").append(Evaluator.outputClass(outputs)).append(",\"outputs\":[");
+            for (int i = 0; i < outputs.length; i++) {
+                if (i > 0) answer.append(',');
+                answer.append(outputs[i]);
+            }
+            send(exchange, 200, answer.append("]}").toString());
+            latencies.record(System.nanoTime() - arrival);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            long requests = latencies.getCount();
+            long batchCount = batches.get();
+            String metrics = "{\"requests\":" + requests
+                    + ",\"batches\":" + batchCount
+                    + ",\"rejected\":" + rejected.get()
+                    + ",\"queued\":" + queue.size()
+                    + ",\"meanBatchSize\":" + (batchCount == 0 ? 0 : requests / (double) batchCount)
+                    + ",\"requestsPerSecond\":" + getRequestsPerSecond()
+                    + ",\"latencyMicros\":{\"mean\":" + latencies.getMean() / 1e3
+                    + ",\"p50\":" + getLatencyPercentile(50)
+                    + ",\"p90\":" + getLatencyPercentile(90)
+                    + ",\"p99\":" + getLatencyPercentile(99)
+                    + ",\"p999\":" + getLatencyPercentile(99.9)
+                    + ",\"max\":" + latencies.getMax() / 1e3 + "}}";
+            send(exchange, 200, metrics);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Takes the oldest image, waits for more until its latency budget runs out
+     * or the batch is full, and spreads them all at once.
+     */
+    private void batchLoop(){
+        int inputSize = model.getInputSize();
+        int outputSize = model.getOutputSize();
+        InferenceWorkspace workspace = model.newWorkspace(maxBatchSize);
+        double[] inputs = new double[maxBatchSize * inputSize];
+        double[] outputs = new double[maxBatchSize * outputSize];
+        List<PendingRequest> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRequest first = queue.poll(50, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = first.arrival + latencyBudgetNanos;
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) break;
+                    PendingRequest next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (batch.isEmpty()) continue;
+
+            try {
+                int rows = batch.size();
+                for (int r = 0; r < rows; r++) {
+                    byte[] pixels = batch.get(r).pixels;
+                    //Scaling the pixels from 0 to 1 as the training data; 0 = 0, 255 = 1
+                    for (int k = 0; k < inputSize; k++) {
+                        inputs[r * inputSize + k] = (pixels[k] & 0xFF) / (double) MAX_PIXEL;
+                    }
+                }
+                model.predictBatch(inputs, outputs, rows, workspace);
+                batches.incrementAndGet();
+                for (int r = 0; r < rows; r++) {
+                    double[] sampleOutputs = new double[outputSize];
+                    System.arraycopy(outputs, r * outputSize, sampleOutputs, 0, outputSize);
+                    batch.get(r).outputs.complete(sampleOutputs);
+                }
+            } catch (RuntimeException ex) {
+                for (PendingRequest request : batch) {
+                    request.outputs.completeExceptionally(ex);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Virtual threads are created through reflection, so the server still
+     * compiles and runs on the JVMs that don't have them.
+     * @return An executor that runs every request on a new virtual thread, or
+     * a pool of daemon threads if the JVM doesn't have them
+     */
+    static ExecutorService newRequestExecutor(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            //Older JVM, or virtual threads still disabled as a preview feature
+        }
+        AtomicLong threads = new AtomicLong();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Inference request " + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static byte[] readBody(InputStream body, int limit) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = body.read(buffer)) >= 0) {
+            if (bytes.size() < limit) bytes.write(buffer, 0, Math.min(read, limit - bytes.size()));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    private static String jsonEscape(String text){
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static final class PendingRequest {
+
+        final byte[] pixels;
+        final long arrival;
+        final CompletableFuture<double[]> outputs = new CompletableFuture<>();
+
+        PendingRequest(byte[] pixels, long arrival){
+            this.pixels = pixels;
+            this.arrival = arrival;
+        }
+    }
+}
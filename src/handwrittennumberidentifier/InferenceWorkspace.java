@@ -0,0 +1,18 @@
+package handwrittennumberidentifier;
+
+/**
+ * Scratch memory used by an InferenceModel to spread one input. A workspace 
+ * must be used by just one thread at a time, but it can be reused for any 
+ * number of predictions of the model it was created for.
+ * @author Pablo Alonso
+ */
+public final class InferenceWorkspace {
+    
+    final double[] currentLayer;
+    final double[] nextLayer;
+    
+    InferenceWorkspace(int biggestLayerSize){
+        currentLayer = new double[biggestLayerSize];
+        nextLayer = new double[biggestLayerSize];
+    }
+}
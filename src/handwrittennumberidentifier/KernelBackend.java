@@ -0,0 +1,30 @@
+package handwrittennumberidentifier;
+
+/**
+ * The implementation of the loops used by Kernels. Every vector is stored 
+ * inside a flat array, starting at the given offset, and is read with unit stride.
+ * @author Pablo Alonso
+ */
+interface KernelBackend {
+    
+    /**
+     *
+     * @return The sum of a[i] * b[i] for every i in [0, length)
+     */
+    double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+    
+    /**
+     * y[i] = y[i] + alpha * x[i] for every i in [0, length)
+     */
+    void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length);
+    
+    /**
+     * Single precision version of dot.
+     */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+    
+    /**
+     * Single precision version of axpy.
+     */
+    void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length);
+}
@@ -0,0 +1,72 @@
+package handwrittennumberidentifier;
+
+/**
+ * The innermost loops of the perceptrons: the dot products of the forward and 
+ * backward phases and the axpy of the weights update. They are run by the 
+ * scalar backend unless the JVM is started with
+ * -Dhandwrittennumberidentifier.kernels=vector and --add-modules jdk.incubator.vector,
+ * in which case the backend built on the Vector API is used. That backend is 
+ * only compiled when the build is run with -Dvector.api=true on a JDK 16 or later,
+ * so the scalar backend is used as well when it is missing.
+ * @author Pablo Alonso
+ */
+final class Kernels {
+    
+    static final String KERNELS_PROPERTY = "handwrittennumberidentifier.kernels";
+    private static final String VECTOR_BACKEND = "handwrittennumberidentifier.VectorKernelBackend";
+    private static final KernelBackend BACKEND = loadBackend();
+    
+    private Kernels(){
+    }
+    
+    /**
+     *
+     * @return The sum of a[i] * b[i] for every i in [0, length)
+     */
+    static double dot(double[] a, int aOffset, double[] b, int bOffset, int length){
+        return BACKEND.dot(a, aOffset, b, bOffset, length);
+    }
+    
+    /**
+     * y[i] = y[i] + alpha * x[i] for every i in [0, length)
+     */
+    static void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length){
+        BACKEND.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+    
+    /**
+     * Single precision version of dot.
+     */
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int length){
+        return BACKEND.dot(a, aOffset, b, bOffset, length);
+    }
+    
+    /**
+     * Single precision version of axpy.
+     */
+    static void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length){
+        BACKEND.axpy(alpha, x, xOffset, y, yOffset, length);
+    }
+    
+    /**
+     *
+     * @return The simple name of the backend in use
+     */
+    static String getBackendName(){
+        return BACKEND.getClass().getSimpleName();
+    }
+    
+    private static KernelBackend loadBackend(){
+        if (!"vector".equals(System.getProperty(KERNELS_PROPERTY))) {
+            return new ScalarKernelBackend();
+        }
+        try {
+            return (KernelBackend) Class.forName(VECTOR_BACKEND).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            //The class wasn't compiled or the jdk.incubator.vector module wasn't added
+            System.out.println("THE VECTOR KERNELS AREN'T AVAILABLE, USING THE SCALAR ONES");
+            System.out.println(ex);
+            return new ScalarKernelBackend();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package handwrittennumberidentifier;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in logarithmic buckets, so any percentile can be estimated
+ * with an error below 3% using a fixed amount of memory. Values below 64
+ * nanoseconds are exact; above that, every power of two is split in 32
+ * buckets. Latencies can be recorded by any number of threads at once.
+ * @author Pablo Alonso
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Values below this are counted one by one
+    private static final int EXACT_VALUES = 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     *
+     * @param nanos The latency, negative values are counted as 0
+     */
+    void record(long nanos){
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long getCount(){
+        return count.get();
+    }
+
+    long getMax(){
+        return max.get();
+    }
+
+    double getMean(){
+        long samples = count.get();
+        return samples == 0 ? 0 : sum.get() / (double) samples;
+    }
+
+    /**
+     *
+     * @param percentile From 0 to 100
+     * @return The latency below which that percentage of the samples are, in
+     * nanoseconds. It is the upper end of the bucket, so it is never lower than
+     * the real one
+     */
+    long getPercentile(double percentile){
+        long samples = count.get();
+        if (samples == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+        long accumulated = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            accumulated += counts.get(i);
+            if (accumulated >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long value){
+        if (value < EXACT_VALUES) return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return EXACT_VALUES + (magnitude - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index){
+        if (index < EXACT_VALUES) return index;
+        int magnitude = (index - EXACT_VALUES) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - EXACT_VALUES) % SUB_BUCKETS;
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,74 @@
+package handwrittennumberidentifier;
+
+/**
+ * How the learning rate changes along the training. The schedule gives the
+ * factor the alpha constant of the perceptron is multiplied by in each cycle.
+ * @author Pablo Alonso
+ */
+public interface LearningRateSchedule {
+
+    /**
+     *
+     * @param cycle The number of cycles already trained, starting at 0
+     * @return The factor of the learning rate during that cycle
+     */
+    double getFactor(int cycle);
+
+    /**
+     *
+     * @return A schedule that always uses the alpha constant
+     */
+    static LearningRateSchedule constant(){
+        return cycle -> 1;
+    }
+
+    /**
+     *
+     * @param cycles The number of cycles between each drop
+     * @param factor The factor applied in each drop, for instance 0.5
+     * @return A schedule that multiplies the learning rate by factor every cycles cycles
+     */
+    static LearningRateSchedule stepDecay(int cycles, double factor){
+        if(cycles < 1){
+            throw new RuntimeException("The number of cycles between drops must be at least 1");
+        }
+        return cycle -> Math.pow(factor, cycle / cycles);
+    }
+
+    /**
+     *
+     * @param decay The factor applied after each cycle, for instance 0.95
+     * @return A schedule that multiplies the learning rate by decay after every cycle
+     */
+    static LearningRateSchedule exponential(double decay){
+        return cycle -> Math.pow(decay, cycle);
+    }
+
+    /**
+     * The learning rate goes from alpha down to minimumFactor * alpha following
+     * half a cosine, and stays there after the last cycle.
+     * @param totalCycles The number of cycles of the whole training
+     * @param minimumFactor The factor of the last cycle
+     * @return A new schedule
+     */
+    static LearningRateSchedule cosine(int totalCycles, double minimumFactor){
+        if(totalCycles < 1){
+            throw new RuntimeException("The number of cycles must be at least 1");
+        }
+        return cycle -> {
+            double progress = Math.min(1, cycle / (double) totalCycles);
+            return minimumFactor + (1 - minimumFactor) * (1 + Math.cos(Math.PI * progress)) / 2;
+        };
+    }
+
+    /**
+     * The learning rate grows linearly during the first cycles, and then
+     * follows another schedule, which starts counting after the warm up.
+     * @param cycles The number of warm up cycles
+     * @param schedule The schedule used afterwards
+     * @return A new schedule
+     */
+    static LearningRateSchedule warmUp(int cycles, LearningRateSchedule schedule){
+        return cycle -> cycle < cycles ? (cycle + 1) / (double) (cycles + 1) : schedule.getFactor(cycle - cycles);
+    }
+}
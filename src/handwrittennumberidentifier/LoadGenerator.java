@@ -0,0 +1,126 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the images of an IDX file to an InferenceServer from several threads,
+ * each one waiting for its answer before sending the next image, and measures
+ * the throughput and the latencies seen by the clients. It can be run on its
+ * own:
+ * <pre>
+ * java handwrittennumberidentifier.LoadGenerator http://localhost:8080 t10k-images.idx3-ubyte 32 100000
+ * </pre>
+ * @author Pablo Alonso
+ */
+public class LoadGenerator {
+
+    private final URL predictUrl;
+    private final byte[][] images;
+
+    /**
+     *
+     * @param serverUrl The address of the server, for instance http://localhost:8080
+     * @param images The images that will be sent, in order and starting again
+     * when they run out
+     * @throws IOException If the address is malformed
+     */
+    public LoadGenerator(String serverUrl, IdxFile images) throws IOException {
+        this.predictUrl = new URL(serverUrl.replaceAll("/+$", "") + "/predict");
+        this.images = new byte[images.getNumberOfSamples()][images.getSampleSize()];
+        for (int i = 0; i < this.images.length; i++) {
+            images.getSampleBytes(i).duplicate().get(this.images[i]);
+        }
+    }
+
+    /**
+     * Sends the requests and waits for all the answers.
+     * @param clients The number of threads sending requests at the same time
+     * @param requests The total number of requests
+     * @return A summary of the throughput and latencies
+     */
+    public String run(int clients, int requests){
+        LatencyHistogram latencies = new LatencyHistogram();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong sent = new AtomicLong();
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int t = 0; t < clients; t++) {
+            threads[t] = new Thread(() -> {
+                long request;
+                while ((request = sent.getAndIncrement()) < requests) {
+                    long requestStart = System.nanoTime();
+                    if (send(images[(int) (request % images.length)])) {
+                        latencies.record(System.nanoTime() - requestStart);
+                    } else {
+                        errors.incrementAndGet();
+                    }
+                }
+            }, "Load generator " + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return String.format("Requests: %d, Errors: %d, Clients: %d, Requests per second: %.1f, "
+                + "Latency (us) mean: %.1f, p50: %.1f, p90: %.1f, p99: %.1f, p99.9: %.1f, max: %.1f",
+                latencies.getCount(), errors.get(), clients, latencies.getCount() / seconds,
+                latencies.getMean() / 1e3, latencies.getPercentile(50) / 1e3, latencies.getPercentile(90) / 1e3,
+                latencies.getPercentile(99) / 1e3, latencies.getPercentile(99.9) / 1e3, latencies.getMax() / 1e3);
+    }
+
+    /**
+     *
+     * @return true if the server answered the image
+     */
+    private boolean send(byte[] image){
+        try {
+            HttpURLConnection connection = (HttpURLConnection) predictUrl.openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(image.length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            try (OutputStream body = connection.getOutputStream()) {
+                body.write(image);
+            }
+            int status = connection.getResponseCode();
+            //The answer is read to the end so the connection can be reused
+            try (InputStream answer = status == 200 ? connection.getInputStream() : connection.getErrorStream()) {
+                if (answer != null) {
+                    byte[] buffer = new byte[1024];
+                    while (answer.read(buffer) >= 0) {
+                    }
+                }
+            }
+            return status == 200;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param args The address of the server, the IDX file with the images, the
+     * number of clients and the number of requests
+     * @throws IOException If the images can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.out.println("Usage: LoadGenerator <server url> <images file> <clients> <requests>");
+            System.exit(1);
+        }
+        LoadGenerator generator = new LoadGenerator(args[0], IdxFile.open(Paths.get(args[1])));
+        System.out.println(generator.run(Integer.parseInt(args[2]), Integer.parseInt(args[3])));
+    }
+}
@@ -0,0 +1,174 @@
+package handwrittennumberidentifier;
+
+/**
+ * The way the output layer is activated and compared with the expected outputs
+ * during the training.
+ * @author Pablo Alonso
+ */
+public enum LossFunction {
+    
+    /**
+     * Each output neuron uses the activation function of the output layer, and
+     * the error is the sum of (expected - output)^2 / 2.
+     */
+    SQUARED_ERROR {
+        @Override
+        void activateOutputs(double[] summations, int summationsOffset, double[] outputs, int outputsOffset, int size, ActivationFunction activation) {
+            for (int i = 0; i < size; i++) {
+                outputs[outputsOffset + i] = activation.activate(summations[summationsOffset + i]);
+            }
+        }
+
+        @Override
+        void calculateOutputsDelta(double[] outputs, int outputsOffset, double[] expectedOutputs, double[] delta, int deltaOffset, int size, ActivationFunction activation) {
+            for (int i = 0; i < size; i++) {
+                double output = outputs[outputsOffset + i];
+                delta[deltaOffset + i] = -(expectedOutputs[i] - output) * activation.derivative(output);
+            }
+        }
+
+        @Override
+        void activateOutputs(float[] summations, int summationsOffset, float[] outputs, int outputsOffset, int size, ActivationFunction activation) {
+            for (int i = 0; i < size; i++) {
+                outputs[outputsOffset + i] = (float) activation.activate(summations[summationsOffset + i]);
+            }
+        }
+
+        @Override
+        void calculateOutputsDelta(float[] outputs, int outputsOffset, float[] expectedOutputs, int expectedOffset, float[] delta, int deltaOffset, int size, ActivationFunction activation) {
+            for (int i = 0; i < size; i++) {
+                float output = outputs[outputsOffset + i];
+                delta[deltaOffset + i] = (float) (-(expectedOutputs[expectedOffset + i] - output) * activation.derivative(output));
+            }
+        }
+
+        @Override
+        double calculateLoss(double[] outputs, int outputsOffset, double[] expectedOutputs, int size) {
+            double loss = 0;
+            for (int i = 0; i < size; i++) {
+                double error = expectedOutputs[i] - outputs[outputsOffset + i];
+                loss += error * error;
+            }
+            return loss / 2;
+        }
+
+        @Override
+        double calculateLoss(float[] outputs, int outputsOffset, float[] expectedOutputs, int expectedOffset, int size) {
+            double loss = 0;
+            for (int i = 0; i < size; i++) {
+                double error = expectedOutputs[expectedOffset + i] - outputs[outputsOffset + i];
+                loss += error * error;
+            }
+            return loss / 2;
+        }
+    },
+    
+    /**
+     * The output layer is a softmax, so the outputs are the probabilities of
+     * each class and add up to 1. The activation function of the output layer 
+     * is ignored. The error is the cross-entropy, -sum(expected * log(output)).
+     */
+    SOFTMAX_CROSS_ENTROPY {
+        @Override
+        void activateOutputs(double[] summations, int summationsOffset, double[] outputs, int outputsOffset, int size, ActivationFunction activation) {
+            double biggest = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                biggest = Math.max(biggest, summations[summationsOffset + i]);
+            }
+            double total = 0;
+            for (int i = 0; i < size; i++) {
+                double exponential = Math.exp(summations[summationsOffset + i] - biggest);
+                outputs[outputsOffset + i] = exponential;
+                total += exponential;
+            }
+            for (int i = 0; i < size; i++) {
+                outputs[outputsOffset + i] /= total;
+            }
+        }
+
+        @Override
+        void calculateOutputsDelta(double[] outputs, int outputsOffset, double[] expectedOutputs, double[] delta, int deltaOffset, int size, ActivationFunction activation) {
+            //The derivative of the softmax and the cross-entropy cancel out
+            for (int i = 0; i < size; i++) {
+                delta[deltaOffset + i] = outputs[outputsOffset + i] - expectedOutputs[i];
+            }
+        }
+
+        @Override
+        void activateOutputs(float[] summations, int summationsOffset, float[] outputs, int outputsOffset, int size, ActivationFunction activation) {
+            float biggest = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < size; i++) {
+                biggest = Math.max(biggest, summations[summationsOffset + i]);
+            }
+            float total = 0;
+            for (int i = 0; i < size; i++) {
+                float exponential = (float) Math.exp(summations[summationsOffset + i] - biggest);
+                outputs[outputsOffset + i] = exponential;
+                total += exponential;
+            }
+            for (int i = 0; i < size; i++) {
+                outputs[outputsOffset + i] /= total;
+            }
+        }
+
+        @Override
+        void calculateOutputsDelta(float[] outputs, int outputsOffset, float[] expectedOutputs, int expectedOffset, float[] delta, int deltaOffset, int size, ActivationFunction activation) {
+            for (int i = 0; i < size; i++) {
+                delta[deltaOffset + i] = outputs[outputsOffset + i] - expectedOutputs[expectedOffset + i];
+            }
+        }
+
+        @Override
+        double calculateLoss(double[] outputs, int outputsOffset, double[] expectedOutputs, int size) {
+            double loss = 0;
+            for (int i = 0; i < size; i++) {
+                if (expectedOutputs[i] != 0) {
+                    loss -= expectedOutputs[i] * Math.log(Math.max(outputs[outputsOffset + i], MIN_PROBABILITY));
+                }
+            }
+            return loss;
+        }
+
+        @Override
+        double calculateLoss(float[] outputs, int outputsOffset, float[] expectedOutputs, int expectedOffset, int size) {
+            double loss = 0;
+            for (int i = 0; i < size; i++) {
+                if (expectedOutputs[expectedOffset + i] != 0) {
+                    loss -= expectedOutputs[expectedOffset + i] * Math.log(Math.max(outputs[outputsOffset + i], MIN_PROBABILITY));
+                }
+            }
+            return loss;
+        }
+    };
+    
+    private static final double MIN_PROBABILITY = 1e-300;
+    
+    /**
+     * Calculates the outputs of the output layer from its summations. The 
+     * summations and the outputs can be the same array.
+     */
+    abstract void activateOutputs(double[] summations, int summationsOffset, double[] outputs, int outputsOffset, int size, ActivationFunction activation);
+    
+    /**
+     * Calculates the delta of the output layer, the derivative of the loss with
+     * respect to the summation of each output neuron.
+     */
+    abstract void calculateOutputsDelta(double[] outputs, int outputsOffset, double[] expectedOutputs, double[] delta, int deltaOffset, int size, ActivationFunction activation);
+    
+    /**
+     * Single precision version of activateOutputs.
+     */
+    abstract void activateOutputs(float[] summations, int summationsOffset, float[] outputs, int outputsOffset, int size, ActivationFunction activation);
+    
+    /**
+     * Single precision version of calculateOutputsDelta, the expected outputs start at expectedOffset.
+     */
+    abstract void calculateOutputsDelta(float[] outputs, int outputsOffset, float[] expectedOutputs, int expectedOffset, float[] delta, int deltaOffset, int size, ActivationFunction activation);
+    
+    abstract double calculateLoss(double[] outputs, int outputsOffset, double[] expectedOutputs, int size);
+    
+    /**
+     * Single precision version of calculateLoss, the expected outputs start at expectedOffset.
+     */
+    abstract double calculateLoss(float[] outputs, int outputsOffset, float[] expectedOutputs, int expectedOffset, int size);
+}
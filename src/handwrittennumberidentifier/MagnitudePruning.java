@@ -0,0 +1,93 @@
+package handwrittennumberidentifier;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the weights of a perceptron that are removed: in each layer, the
+ * given fraction of the weights with the smallest absolute value. The pruned
+ * weights are the indices of the flat weights buffer of the perceptron.
+ * @author Pablo Alonso
+ */
+final class MagnitudePruning {
+
+    private MagnitudePruning(){
+    }
+
+    /**
+     *
+     * @param perceptron The perceptron whose weights are pruned
+     * @param layerSparsities The fraction of the weights removed in each layer,
+     * starting at the first hidden layer, from 0 to 1
+     * @return The indices of the pruned weights, in ascending order
+     */
+    static int[] prunedWeights(MultilayerPerceptron perceptron, double[] layerSparsities){
+        int[] layerSizes = perceptron.getAllLayersSize();
+        if(layerSparsities.length != layerSizes.length - 1){
+            throw new RuntimeException("There must be one sparsity per layer besides the input layer");
+        }
+        double[] weights = perceptron.getWeightsBuffer();
+        int[] pruned = new int[weights.length];
+        int prunedLength = 0;
+        int offset = 0;
+        for (int i = 1; i < layerSizes.length; i++) {
+            int length = layerSizes[i - 1] * layerSizes[i];
+            double sparsity = layerSparsities[i - 1];
+            if(sparsity < 0 || sparsity > 1){
+                throw new RuntimeException("The sparsity of each layer must be between 0 and 1");
+            }
+            int removed = (int) Math.round(sparsity * length);
+            if (removed > 0) {
+                double[] magnitudes = new double[length];
+                for (int j = 0; j < length; j++) {
+                    magnitudes[j] = Math.abs(weights[offset + j]);
+                }
+                Arrays.sort(magnitudes);
+                double threshold = magnitudes[removed - 1];
+                //Weights tied with the threshold are only removed until there are enough
+                int tiesRemoved = removed - lowerCount(magnitudes, threshold);
+                for (int j = 0; j < length; j++) {
+                    double magnitude = Math.abs(weights[offset + j]);
+                    if (magnitude < threshold || (magnitude == threshold && tiesRemoved-- > 0)) {
+                        pruned[prunedLength++] = offset + j;
+                    }
+                }
+            }
+            offset += length;
+        }
+        return Arrays.copyOf(pruned, prunedLength);
+    }
+
+    /**
+     * Sets the pruned weights to 0.
+     */
+    static void apply(double[] weights, int[] prunedWeights){
+        for (int index : prunedWeights) {
+            weights[index] = 0;
+        }
+    }
+
+    /**
+     *
+     * @param layers The number of layers of the perceptron, the input one included
+     * @param sparsity The fraction of the weights removed in the hidden layers
+     * @return The sparsity of each layer, with the output layer left dense
+     * because it is small and every weight of it matters. Without hidden 
+     * layers the output layer is pruned
+     */
+    static double[] hiddenLayersSparsities(int layers, double sparsity){
+        double[] sparsities = new double[layers - 1];
+        Arrays.fill(sparsities, 0, Math.max(1, sparsities.length - 1), sparsity);
+        return sparsities;
+    }
+
+    /**
+     *
+     * @return The number of values of the sorted array below value
+     */
+    private static int lowerCount(double[] sorted, double value){
+        int index = Arrays.binarySearch(sorted, value);
+        if (index < 0) return -index - 1;
+        while (index > 0 && sorted[index - 1] == value) index--;
+        return index;
+    }
+}
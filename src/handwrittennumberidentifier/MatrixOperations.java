@@ -0,0 +1,197 @@
+package handwrittennumberidentifier;
+
+/**
+ * Cache blocked matrix products used by the mini-batch training. Every matrix 
+ * is stored row-major inside a flat array, starting at the given offset.
+ * @author Pablo Alonso
+ */
+final class MatrixOperations {
+    
+    //Tile size chosen so three tiles of doubles fit comfortably in a L2 cache
+    static final int BLOCK_SIZE = 64;
+    
+    private MatrixOperations(){
+    }
+    
+    /**
+     * C = A * B, where A is [rows x shared], B is [shared x columns] and C is
+     * [rows x columns]. The previous content of C is overwritten.
+     */
+    static void multiply(double[] a, int aOffset, double[] b, int bOffset, double[] c, int cOffset, int rows, int shared, int columns){
+        fill(c, cOffset, rows * columns, 0);
+        for (int ii = 0; ii < rows; ii += BLOCK_SIZE) {
+            int iEnd = Math.min(ii + BLOCK_SIZE, rows);
+            for (int kk = 0; kk < shared; kk += BLOCK_SIZE) {
+                int kEnd = Math.min(kk + BLOCK_SIZE, shared);
+                for (int jj = 0; jj < columns; jj += BLOCK_SIZE) {
+                    int jEnd = Math.min(jj + BLOCK_SIZE, columns);
+                    for (int i = ii; i < iEnd; i++) {
+                        int cRow = cOffset + i * columns;
+                        int aRow = aOffset + i * shared;
+                        for (int k = kk; k < kEnd; k++) {
+                            double aValue = a[aRow + k];
+                            if (aValue == 0) continue;
+                            Kernels.axpy(aValue, b, bOffset + k * columns + jj, c, cRow + jj, jEnd - jj);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * C = A * B^T, where A is [rows x shared], B is [columns x shared] and C is
+     * [rows x columns]. The previous content of C is overwritten.
+     */
+    static void multiplyTransposedB(double[] a, int aOffset, double[] b, int bOffset, double[] c, int cOffset, int rows, int shared, int columns){
+        fill(c, cOffset, rows * columns, 0);
+        for (int ii = 0; ii < rows; ii += BLOCK_SIZE) {
+            int iEnd = Math.min(ii + BLOCK_SIZE, rows);
+            for (int jj = 0; jj < columns; jj += BLOCK_SIZE) {
+                int jEnd = Math.min(jj + BLOCK_SIZE, columns);
+                for (int kk = 0; kk < shared; kk += BLOCK_SIZE) {
+                    int kEnd = Math.min(kk + BLOCK_SIZE, shared);
+                    for (int i = ii; i < iEnd; i++) {
+                        int aRow = aOffset + i * shared;
+                        int cRow = cOffset + i * columns;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += Kernels.dot(a, aRow + kk, b, bOffset + j * shared + kk, kEnd - kk);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * C = A^T * B, where A is [shared x rows], B is [shared x columns] and C is
+     * [rows x columns]. The previous content of C is overwritten.
+     */
+    static void multiplyTransposedA(double[] a, int aOffset, double[] b, int bOffset, double[] c, int cOffset, int rows, int shared, int columns){
+        fill(c, cOffset, rows * columns, 0);
+        for (int ii = 0; ii < rows; ii += BLOCK_SIZE) {
+            int iEnd = Math.min(ii + BLOCK_SIZE, rows);
+            for (int jj = 0; jj < columns; jj += BLOCK_SIZE) {
+                int jEnd = Math.min(jj + BLOCK_SIZE, columns);
+                for (int k = 0; k < shared; k++) {
+                    int aRow = aOffset + k * rows;
+                    int bRow = bOffset + k * columns;
+                    for (int i = ii; i < iEnd; i++) {
+                        double aValue = a[aRow + i];
+                        if (aValue == 0) continue;
+                        Kernels.axpy(aValue, b, bRow + jj, c, cOffset + i * columns + jj, jEnd - jj);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Adds every row of the [rows x columns] matrix A into the vector C.
+     * The previous content of C is overwritten.
+     */
+    static void sumRows(double[] a, int aOffset, double[] c, int cOffset, int rows, int columns){
+        fill(c, cOffset, columns, 0);
+        for (int i = 0; i < rows; i++) {
+            int aRow = aOffset + i * columns;
+            for (int j = 0; j < columns; j++) {
+                c[cOffset + j] += a[aRow + j];
+            }
+        }
+    }
+    
+    static void fill(double[] a, int offset, int length, double value){
+        for (int i = offset; i < offset + length; i++) {
+            a[i] = value;
+        }
+    }
+    
+    /**
+     * Single precision version of multiply.
+     */
+    static void multiply(float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset, int rows, int shared, int columns){
+        fill(c, cOffset, rows * columns, 0);
+        for (int ii = 0; ii < rows; ii += BLOCK_SIZE) {
+            int iEnd = Math.min(ii + BLOCK_SIZE, rows);
+            for (int kk = 0; kk < shared; kk += BLOCK_SIZE) {
+                int kEnd = Math.min(kk + BLOCK_SIZE, shared);
+                for (int jj = 0; jj < columns; jj += BLOCK_SIZE) {
+                    int jEnd = Math.min(jj + BLOCK_SIZE, columns);
+                    for (int i = ii; i < iEnd; i++) {
+                        int cRow = cOffset + i * columns;
+                        int aRow = aOffset + i * shared;
+                        for (int k = kk; k < kEnd; k++) {
+                            float aValue = a[aRow + k];
+                            if (aValue == 0) continue;
+                            Kernels.axpy(aValue, b, bOffset + k * columns + jj, c, cRow + jj, jEnd - jj);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Single precision version of multiplyTransposedB.
+     */
+    static void multiplyTransposedB(float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset, int rows, int shared, int columns){
+        fill(c, cOffset, rows * columns, 0);
+        for (int ii = 0; ii < rows; ii += BLOCK_SIZE) {
+            int iEnd = Math.min(ii + BLOCK_SIZE, rows);
+            for (int jj = 0; jj < columns; jj += BLOCK_SIZE) {
+                int jEnd = Math.min(jj + BLOCK_SIZE, columns);
+                for (int kk = 0; kk < shared; kk += BLOCK_SIZE) {
+                    int kEnd = Math.min(kk + BLOCK_SIZE, shared);
+                    for (int i = ii; i < iEnd; i++) {
+                        int aRow = aOffset + i * shared;
+                        int cRow = cOffset + i * columns;
+                        for (int j = jj; j < jEnd; j++) {
+                            c[cRow + j] += Kernels.dot(a, aRow + kk, b, bOffset + j * shared + kk, kEnd - kk);
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Single precision version of multiplyTransposedA.
+     */
+    static void multiplyTransposedA(float[] a, int aOffset, float[] b, int bOffset, float[] c, int cOffset, int rows, int shared, int columns){
+        fill(c, cOffset, rows * columns, 0);
+        for (int ii = 0; ii < rows; ii += BLOCK_SIZE) {
+            int iEnd = Math.min(ii + BLOCK_SIZE, rows);
+            for (int jj = 0; jj < columns; jj += BLOCK_SIZE) {
+                int jEnd = Math.min(jj + BLOCK_SIZE, columns);
+                for (int k = 0; k < shared; k++) {
+                    int aRow = aOffset + k * rows;
+                    int bRow = bOffset + k * columns;
+                    for (int i = ii; i < iEnd; i++) {
+                        float aValue = a[aRow + i];
+                        if (aValue == 0) continue;
+                        Kernels.axpy(aValue, b, bRow + jj, c, cOffset + i * columns + jj, jEnd - jj);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Single precision version of sumRows.
+     */
+    static void sumRows(float[] a, int aOffset, float[] c, int cOffset, int rows, int columns){
+        fill(c, cOffset, columns, 0);
+        for (int i = 0; i < rows; i++) {
+            int aRow = aOffset + i * columns;
+            for (int j = 0; j < columns; j++) {
+                c[cOffset + j] += a[aRow + j];
+            }
+        }
+    }
+    
+    static void fill(float[] a, int offset, int length, float value){
+        for (int i = offset; i < offset + length; i++) {
+            a[i] = value;
+        }
+    }
+}
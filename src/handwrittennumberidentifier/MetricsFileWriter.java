@@ -0,0 +1,107 @@
+package handwrittennumberidentifier;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes the metrics of the training to a file, one line per cycle and, if 
+ * asked for, one line every few batches. The CSV lines of both kinds share the
+ * same columns, the ones that don't apply to a batch are left empty. The JSON
+ * lines are objects with the same fields, whose record field tells them apart.
+ * @author Pablo Alonso
+ */
+public class MetricsFileWriter implements MetricsListener, AutoCloseable {
+    
+    public enum Format {
+        CSV,
+        JSON
+    }
+    
+    private static final String[] COLUMNS = {"record", "cycle", "batch", "samples", "nanos", "forward_nanos", "delta_nanos", 
+        "update_nanos", "evaluation_nanos", "samples_per_second", "loss", "training_accuracy", "test_accuracy", 
+        "allocated_bytes", "gc_count", "gc_millis"};
+    
+    private final BufferedWriter writer;
+    private final Format format;
+    private final int batchInterval;
+    
+    /**
+     *
+     * @param file The file where the metrics will be written, it is overwritten if it exists
+     * @param format The format of the lines
+     * @param batchInterval A batch line is written every batchInterval batches,
+     * or none if it is 0
+     * @throws IOException If the file can't be created
+     */
+    public MetricsFileWriter(Path file, Format format, int batchInterval) throws IOException {
+        if(batchInterval < 0){
+            throw new RuntimeException("The batch interval can't be negative");
+        }
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        this.format = format;
+        this.batchInterval = batchInterval;
+        if (format == Format.CSV) {
+            writer.write(String.join(",", COLUMNS));
+            writer.newLine();
+        }
+    }
+    
+    @Override
+    public void batchFinished(BatchMetrics metrics){
+        if (batchInterval == 0 || metrics.getBatch() % batchInterval != 0) return;
+        write(new Object[]{"batch", metrics.getCycle(), metrics.getBatch(), metrics.getSamples(), metrics.getNanos(), 
+            metrics.getForwardNanos(), metrics.getDeltaNanos(), metrics.getUpdateNanos(), null, metrics.getSamplesPerSecond(), 
+            metrics.getLoss(), null, null, null, null, null});
+    }
+    
+    @Override
+    public void cycleFinished(CycleMetrics metrics){
+        write(new Object[]{"cycle", metrics.getCycle(), null, metrics.getSamples(), metrics.getTrainingNanos(), 
+            metrics.getForwardNanos(), metrics.getDeltaNanos(), metrics.getUpdateNanos(), metrics.getEvaluationNanos(), 
+            metrics.getSamplesPerSecond(), metrics.getLoss(), metrics.getTrainingAccuracy(), metrics.getTestAccuracy(), 
+            metrics.getAllocatedBytes(), metrics.getGarbageCollections(), metrics.getGarbageCollectionMillis()});
+        try {
+            writer.flush();
+        } catch (IOException ex) {
+            System.out.println(ex);
+        }
+    }
+    
+    @Override
+    public void close(){
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            System.out.println(ex);
+        }
+    }
+    
+    private void write(Object[] values){
+        StringBuilder line = new StringBuilder(format == Format.JSON ? "{" : "");
+        boolean first = true;
+        for (int i = 0; i < values.length; i++) {
+            //Missing values are empty in CSV and left out in JSON, NaN can't be written in JSON
+            boolean missing = values[i] == null || (values[i] instanceof Double && ((Double) values[i]).isNaN());
+            if (format == Format.JSON) {
+                if (missing) continue;
+                if (!first) line.append(',');
+                line.append('"').append(COLUMNS[i]).append("\":");
+                line.append(values[i] instanceof String ? "\"" + values[i] + "\"" : values[i]);
+            } else {
+                if (!first) line.append(',');
+                if (!missing) line.append(values[i]);
+            }
+            first = false;
+        }
+        if (format == Format.JSON) line.append('}');
+        try {
+            writer.write(line.toString());
+            writer.newLine();
+        } catch (IOException ex) {
+            System.out.println(ex);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package handwrittennumberidentifier;
+
+/**
+ * Receives the metrics of the training while it runs. The methods are called 
+ * by the training thread, so they should return quickly.
+ * @author Pablo Alonso
+ */
+public interface MetricsListener {
+    
+    /**
+     * Called after every update of the perceptron, that is after every sample
+     * when the perceptron is trained without batches.
+     * @param metrics The metrics of the batch
+     */
+    default void batchFinished(BatchMetrics metrics){
+    }
+    
+    /**
+     * Called after every training cycle, once the data sets have been evaluated.
+     * @param metrics The metrics of the cycle
+     */
+    default void cycleFinished(CycleMetrics metrics){
+    }
+}
@@ -0,0 +1,83 @@
+package handwrittennumberidentifier;
+
+import java.util.Arrays;
+
+/**
+ * What the model registry knows about a saved perceptron without reading its
+ * file. Perceptrons saved before the registry kept this information only have
+ * their name, their file and the time the file was last modified; the rest
+ * of the values are unknown.
+ * @author Pablo Alonso
+ */
+public final class ModelInfo {
+
+    static final int UNKNOWN = -1;
+
+    private final String name;
+    private final String fileName;
+    private final int[] layerSizes;
+    private final int testDataRightGuessed;
+    private final int trainingDataRightGuessed;
+    private final long savedAt;
+
+    ModelInfo(String name, String fileName, int[] layerSizes, int testDataRightGuessed, int trainingDataRightGuessed, long savedAt){
+        this.name = name;
+        this.fileName = fileName;
+        this.layerSizes = layerSizes.clone();
+        this.testDataRightGuessed = testDataRightGuessed;
+        this.trainingDataRightGuessed = trainingDataRightGuessed;
+        this.savedAt = savedAt;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    /**
+     *
+     * @return The file of the perceptron, relative to the directory of the registry
+     */
+    public String getFileName(){
+        return fileName;
+    }
+
+    /**
+     *
+     * @return An Array with all the layers size, empty if they are unknown
+     */
+    public int[] getLayerSizes(){
+        return layerSizes.clone();
+    }
+
+    /**
+     *
+     * @return The hits of the perceptron in the test data set when it was
+     * saved, or -1 if they are unknown
+     */
+    public int getTestDataRightGuessed(){
+        return testDataRightGuessed;
+    }
+
+    /**
+     *
+     * @return The hits of the perceptron in the training data set when it was
+     * saved, or -1 if they are unknown
+     */
+    public int getTrainingDataRightGuessed(){
+        return trainingDataRightGuessed;
+    }
+
+    /**
+     *
+     * @return The time the perceptron was saved, in milliseconds since the epoch
+     */
+    public long getSavedAt(){
+        return savedAt;
+    }
+
+    @Override
+    public String toString(){
+        return name + " " + Arrays.toString(layerSizes) + " test hits: " + testDataRightGuessed
+                + " training hits: " + trainingDataRightGuessed;
+    }
+}
@@ -0,0 +1,351 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The saved perceptrons of a directory. The index file is read once, when the
+ * registry is created, and kept in memory, so looking a perceptron up doesn't
+ * touch the disk. Every change rewrites the whole index with a temporary name
+ * and renames it, so a crash leaves either the old index or the new one. The
+ * index has one line per perceptron with its name, its file, its layers size,
+ * its hits and the time it was saved, separated by tabs; lines with only a
+ * name come from the old index, whose files were named as the perceptron.
+ * New perceptrons are saved in the binary format in the Perceptrons directory.
+ * The perceptrons loaded lately are kept in memory, so loading them again
+ * doesn't read their files. The cached perceptrons are never handed out, only
+ * copies of them, so training a loaded perceptron doesn't change the cache.
+ * @author Pablo Alonso
+ */
+public final class ModelRegistry {
+
+    public static final int DEFAULT_CACHE_SIZE = 16;
+    private static final String INDEX_FILE = "PerceptronIndex";
+    private static final String MODELS_DIRECTORY = "Perceptrons";
+    private static final String MODEL_EXTENSION = ".model";
+    private static final String TEMPORARY_EXTENSION = ".tmp";
+    private static ModelRegistry defaultRegistry;
+
+    private final Path directory;
+    private final Path index;
+    private final Map<String, ModelInfo> models;
+    private final LinkedHashMap<String, MultilayerPerceptron> cache;
+    private int cacheSize;
+
+    /**
+     *
+     * @param directory The directory of the index file; the files of the
+     * perceptrons are relative to it
+     * @param cacheSize The number of perceptrons kept in memory, 0 to disable
+     * the cache
+     */
+    public ModelRegistry(Path directory, int cacheSize){
+        if(cacheSize < 0){
+            throw new RuntimeException("The cache size can't be negative");
+        }
+        this.directory = directory;
+        this.index = directory.resolve(INDEX_FILE);
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        try {
+            this.models = readIndex();
+        } catch (IOException ex) {
+            throw new RuntimeException("The index file " + index + " can't be read", ex);
+        }
+    }
+
+    /**
+     *
+     * @return The registry of the working directory, used by DataManager
+     */
+    public static synchronized ModelRegistry getDefault(){
+        if (defaultRegistry == null) {
+            defaultRegistry = new ModelRegistry(Paths.get(""), DEFAULT_CACHE_SIZE);
+        }
+        return defaultRegistry;
+    }
+
+    /**
+     * Saves a perceptron in a new file and adds it to the index.
+     * @param perceptron The perceptron that will be saved, it is copied into
+     * the cache
+     * @param perceptronName The name of the perceptron, it can't contain tabs
+     * or line breaks
+     * @param testDataRightGuessed The hits of the perceptron in the test data set
+     * @param trainingDataRightGuessed The hits of the perceptron in the training data set
+     * @return false if there is already a perceptron with that name
+     * @throws IOException If the files can't be written
+     */
+    public synchronized boolean save(MultilayerPerceptron perceptron, String perceptronName, int testDataRightGuessed, int trainingDataRightGuessed) throws IOException {
+        if (perceptronName.isEmpty() || perceptronName.indexOf('\t') >= 0 || perceptronName.indexOf('\n') >= 0 || perceptronName.indexOf('\r') >= 0) {
+            throw new RuntimeException("The name of a perceptron can't be empty or contain tabs or line breaks");
+        }
+        if (models.containsKey(perceptronName)) return false;
+
+        //Data File, written first so the index never points to a missing file
+        String fileName = newFileName(perceptronName);
+        Path file = directory.resolve(fileName);
+        Path temporaryFile = directory.resolve(fileName + TEMPORARY_EXTENSION);
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(temporaryFile);
+        BinaryModelFormat.write(perceptron, testDataRightGuessed, trainingDataRightGuessed, temporaryFile);
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        //Index File
+        ModelInfo info = new ModelInfo(perceptronName, fileName, perceptron.getAllLayersSize(),
+                testDataRightGuessed, trainingDataRightGuessed, System.currentTimeMillis());
+        models.put(perceptronName, info);
+        try {
+            writeIndex();
+        } catch (IOException ex) {
+            models.remove(perceptronName);
+            throw ex;
+        }
+        cache(perceptronName, perceptron.copy());
+        return true;
+    }
+
+    /**
+     *
+     * @param perceptronName The name of the perceptron
+     * @return A copy of the saved perceptron that can be trained, or null if
+     * its file doesn't exist
+     */
+    public MultilayerPerceptron load(String perceptronName){
+        MultilayerPerceptron perceptron = loadShared(perceptronName);
+        return perceptron == null ? null : perceptron.copy();
+    }
+
+    /**
+     * Loads a perceptron as a read-only model. Perceptrons saved in the binary
+     * format are memory mapped, and the model reads the weights straight from
+     * the file without copying them.
+     * @param perceptronName The name of the perceptron
+     * @return The saved perceptron, ready to be shared between threads, or null
+     * if its file doesn't exist
+     */
+    public InferenceModel loadInferenceModel(String perceptronName){
+        Path file = getFile(perceptronName);
+        try {
+            if (Files.exists(file) && BinaryModelFormat.isBinaryModel(file)) {
+                return BinaryModelFormat.mapInferenceModel(file);
+            }
+        } catch (IOException ex) {
+            System.out.println(ex);
+        }
+        MultilayerPerceptron perceptron = loadShared(perceptronName);
+        return perceptron == null ? null : perceptron.toInferenceModel();
+    }
+
+    /**
+     * Loads several perceptrons as read-only models and fuses them in an 
+     * ensemble. They must all have the same input and output sizes.
+     * @param combination How the outputs of the perceptrons are combined
+     * @param perceptronNames The names of the perceptrons
+     * @return A new ensemble, ready to be shared between threads
+     */
+    public EnsembleModel loadEnsemble(EnsembleModel.Combination combination, String... perceptronNames){
+        InferenceModel[] models = new InferenceModel[perceptronNames.length];
+        for (int i = 0; i < perceptronNames.length; i++) {
+            models[i] = loadInferenceModel(perceptronNames[i]);
+            if (models[i] == null) {
+                throw new RuntimeException("The perceptron " + perceptronNames[i] + " can't be loaded");
+            }
+        }
+        return EnsembleModel.of(combination, models);
+    }
+
+    /**
+     * Removes a perceptron from the index and deletes its file.
+     * @param perceptronName The name of the perceptron
+     * @return false if there was no perceptron with that name
+     * @throws IOException If the index can't be written
+     */
+    public synchronized boolean remove(String perceptronName) throws IOException {
+        ModelInfo info = models.remove(perceptronName);
+        if (info == null) return false;
+        try {
+            writeIndex();
+        } catch (IOException ex) {
+            models.put(perceptronName, info);
+            throw ex;
+        }
+        cache.remove(perceptronName);
+        Files.deleteIfExists(directory.resolve(info.getFileName()));
+        return true;
+    }
+
+    public synchronized boolean contains(String perceptronName){
+        return models.containsKey(perceptronName);
+    }
+
+    /**
+     *
+     * @param perceptronName The name of the perceptron
+     * @return What the registry knows about the perceptron, or null if there
+     * is no perceptron with that name
+     */
+    public synchronized ModelInfo getInfo(String perceptronName){
+        return models.get(perceptronName);
+    }
+
+    /**
+     *
+     * @return Every saved perceptron, in the order they were saved
+     */
+    public synchronized List<ModelInfo> getModels(){
+        return new ArrayList<>(models.values());
+    }
+
+    /**
+     *
+     * @param cacheSize The number of perceptrons kept in memory, 0 to disable
+     * the cache. The least recently used ones are dropped first
+     */
+    public synchronized void setCacheSize(int cacheSize){
+        if(cacheSize < 0){
+            throw new RuntimeException("The cache size can't be negative");
+        }
+        this.cacheSize = cacheSize;
+        trimCache();
+    }
+
+    /**
+     *
+     * @return The file of a perceptron of the index
+     */
+    synchronized Path getFile(String perceptronName){
+        ModelInfo info = models.get(perceptronName);
+        if (info == null) {
+            throw new RuntimeException("Perceptron not found in the PerceptronIndex file");
+        }
+        return directory.resolve(info.getFileName());
+    }
+
+    /**
+     *
+     * @return The cached perceptron, it must not be modified
+     */
+    private MultilayerPerceptron loadShared(String perceptronName){
+        Path file;
+        synchronized (this) {
+            MultilayerPerceptron cached = cache.get(perceptronName);
+            if (cached != null) return cached;
+            file = getFile(perceptronName);
+        }
+        //The file is parsed without holding the lock, so other perceptrons can be loaded meanwhile
+        MultilayerPerceptron perceptron = DataManager.loadPerceptronData(file);
+        if (perceptron == null) return null;
+        synchronized (this) {
+            MultilayerPerceptron cached = cache.get(perceptronName);
+            if (cached != null) return cached;
+            if (models.containsKey(perceptronName)) {
+                cache(perceptronName, perceptron);
+            }
+        }
+        return perceptron;
+    }
+
+    private void cache(String perceptronName, MultilayerPerceptron perceptron){
+        if (cacheSize == 0) return;
+        cache.put(perceptronName, perceptron);
+        trimCache();
+    }
+
+    private void trimCache(){
+        while (cache.size() > cacheSize) {
+            cache.remove(cache.keySet().iterator().next());
+        }
+    }
+
+    /**
+     *
+     * @return A file name derived from the perceptron name that no other
+     * perceptron of the index uses
+     */
+    private String newFileName(String perceptronName){
+        StringBuilder base = new StringBuilder(MODELS_DIRECTORY).append('/');
+        for (int i = 0; i < perceptronName.length() && i < 100; i++) {
+            char character = perceptronName.charAt(i);
+            boolean safe = (character >= 'a' && character <= 'z') || (character >= 'A' && character <= 'Z')
+                    || (character >= '0' && character <= '9') || character == '-' || character == '_' || character == '.';
+            base.append(safe ? character : '_');
+        }
+        Set<String> used = new HashSet<>();
+        for (ModelInfo info : models.values()) {
+            used.add(info.getFileName());
+        }
+        String fileName = base + MODEL_EXTENSION;
+        for (int i = 2; used.contains(fileName); i++) {
+            fileName = base + "-" + i + MODEL_EXTENSION;
+        }
+        return fileName;
+    }
+
+    private Map<String, ModelInfo> readIndex() throws IOException {
+        Map<String, ModelInfo> index = new LinkedHashMap<>();
+        if (!Files.exists(this.index)) return index;
+        for (String line : Files.readAllLines(this.index, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) continue;
+            String[] fields = line.split("\t");
+            ModelInfo info;
+            if (fields.length == 1) {
+                //Perceptron of the old index, saved with its own name
+                String name = line.trim();
+                Path file = directory.resolve(name);
+                long savedAt = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+                info = new ModelInfo(name, name, new int[0], ModelInfo.UNKNOWN, ModelInfo.UNKNOWN, savedAt);
+            } else if (fields.length == 6) {
+                String[] sizes = fields[2].isEmpty() ? new String[0] : fields[2].split(",");
+                int[] layerSizes = new int[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    layerSizes[i] = Integer.parseInt(sizes[i]);
+                }
+                info = new ModelInfo(fields[0], fields[1], layerSizes, Integer.parseInt(fields[3]),
+                        Integer.parseInt(fields[4]), Long.parseLong(fields[5]));
+            } else {
+                throw new IOException("Malformed line in " + this.index + ": " + line);
+            }
+            index.put(info.getName(), info);
+        }
+        return index;
+    }
+
+    private void writeIndex() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (ModelInfo info : models.values()) {
+            text.append(info.getName()).append('\t').append(info.getFileName()).append('\t');
+            int[] layerSizes = info.getLayerSizes();
+            for (int i = 0; i < layerSizes.length; i++) {
+                if (i > 0) text.append(',');
+                text.append(layerSizes[i]);
+            }
+            text.append('\t').append(info.getTestDataRightGuessed())
+                    .append('\t').append(info.getTrainingDataRightGuessed())
+                    .append('\t').append(info.getSavedAt()).append('\n');
+        }
+        Path temporaryIndex = directory.resolve(INDEX_FILE + TEMPORARY_EXTENSION);
+        try (FileChannel channel = FileChannel.open(temporaryIndex, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporaryIndex, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,6 +1,10 @@
 package handwrittennumberidentifier;
 
+import java.nio.DoubleBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Random;
 
 /**
@@ -9,12 +13,45 @@ import java.util.Random;
  */
 public class MultilayerPerceptron {
     
-    private final LinkedList<double[]> neurons;
-    private final LinkedList<double[]> weights;
-    private final LinkedList<double[]> thresholds;
-    private final LinkedList<double[]> summations;
-    private final LinkedList<double[]> neuronsDelta;
+    //Below this fraction of non-zero inputs, the first layer only visits the non-zero ones
+    private static final double SPARSE_INPUTS_DENSITY = 0.5;
+    
+    /*
+    Every kind of parameter lives in a single flat buffer. The values of one
+    layer are found starting at the offset stored for that layer, so any layer
+    can be reached in constant time without walking a list.
+    Weights and thresholds offsets are indexed by the layer they feed, starting
+    at 0 for the first hidden layer. Summations and neuronsDelta share the
+    thresholds offsets.
+    */
+    private final int[] layerSizes;
+    private final int[] neuronsOffsets;
+    private final int[] weightsOffsets;
+    private final int[] thresholdsOffsets;
+    private final double[] neurons;
+    private final double[] weights;
+    private final double[] thresholds;
+    private final double[] summations;
+    private final double[] neuronsDelta;
     private final double alpha;
+    //Activation function of each layer, starting at the first hidden layer
+    private final ActivationFunction[] activations;
+    private SigmoidPrecision sigmoidPrecision = SigmoidPrecision.EXACT;
+    private LossFunction lossFunction = LossFunction.SQUARED_ERROR;
+    private BatchWorkspace batchWorkspace;
+    private TrainingCounters trainingCounters;
+    private Optimizer optimizer = Optimizer.sgd();
+    //Buffers of the optimizer, each one laid out like the weights or the thresholds
+    private double[][] weightsState = new double[0][];
+    private double[][] thresholdsState = new double[0][];
+    private long optimizerSteps;
+    //Factor of the learning rate of each layer, starting at the first hidden layer
+    private double[] learningRateFactors;
+    private double learningRateScale = 1;
+    //Positions of the inputs that aren't 0, filled every time the inputs are set
+    private int[] nonZeroInputs;
+    private int nonZeroInputsLength;
+    private boolean sparseInputs;
     
     /**
      *
@@ -24,24 +61,19 @@ public class MultilayerPerceptron {
      * @param hiddenLayersSizes the number of neurons on each hidden layer
      */
     public MultilayerPerceptron(int inputSize, int outputSize, double alpha, int...hiddenLayersSizes){
-        neurons = new LinkedList<>();
-        weights = new LinkedList<>();
-        thresholds = new LinkedList<>();
-        summations = new LinkedList<>();
-        neuronsDelta = new LinkedList<>();
-        
-        neurons.add(new double[inputSize]);
-        for (int hiddenLayersSize : hiddenLayersSizes) {
-            neurons.add(new double[hiddenLayersSize]);
-        }
-        neurons.add(new double[outputSize]);
+        layerSizes = buildLayerSizes(inputSize, outputSize, hiddenLayersSizes);
+        neuronsOffsets = new int[layerSizes.length + 1];
+        weightsOffsets = new int[layerSizes.length];
+        thresholdsOffsets = new int[layerSizes.length];
+        buildOffsets();
         
-        for (int i = 1; i < neurons.size(); i++) {
-            weights.add(new double[neurons.get(i-1).length * neurons.get(i).length]);
-            thresholds.add(new double[neurons.get(i).length]);
-            summations.add(new double[neurons.get(i).length]);
-            neuronsDelta.add(new double[neurons.get(i).length]);
-        }
+        neurons = new double[neuronsOffsets[layerSizes.length]];
+        weights = new double[weightsOffsets[layerSizes.length - 1]];
+        thresholds = new double[thresholdsOffsets[layerSizes.length - 1]];
+        summations = new double[thresholds.length];
+        neuronsDelta = new double[thresholds.length];
+        activations = buildActivations(layerSizes.length);
+        learningRateFactors = buildLearningRateFactors(layerSizes.length);
         
         this.alpha = alpha;
         
@@ -49,35 +81,79 @@ public class MultilayerPerceptron {
         initializeThresholds(); 
     }
     
+    /**
+     * The weights are initialized with random values scaled by the size of the
+     * layers, as these activation functions need, and the thresholds with 0.
+     * @param inputSize the number of inputs this perceptron will have
+     * @param outputSize the number of outputs this percentron will have
+     * @param alpha the learning rate for the backpropagation phase
+     * @param hiddenActivation the activation function of every hidden layer. 
+     * The output layer uses the sigmoid, unless the loss function replaces it
+     * @param lossFunction the way the output layer is compared with the expected outputs
+     * @param hiddenLayersSizes the number of neurons on each hidden layer
+     */
+    public MultilayerPerceptron(int inputSize, int outputSize, double alpha, ActivationFunction hiddenActivation, LossFunction lossFunction, int...hiddenLayersSizes){
+        this(inputSize, outputSize, alpha, hiddenLayersSizes);
+        for (int i = 0; i < activations.length - 1; i++) {
+            activations[i] = hiddenActivation;
+        }
+        this.lossFunction = lossFunction;
+        initializeScaledWeights();
+    }
+    
     /**
      *
      * @param inputSize the number of inputs this perceptron will have
      * @param outputSize the number of outputs this percentron will have
      * @param alpha the learning rate for the backpropagation phase
      * @param hiddenLayersSizes the number of neurons on each hidden layer
-     * @param weights the weights of this perceptron. The array of double inside
-     * the LinkedList will be modified if the programmer decide to train this perceptron
-     * @param thresholds the thresholds of this perceptron. The array of double 
-     * inside the LinkedList will be modified if the programmer decide to train this perceptron
+     * @param weights the weights of this perceptron, one array per layer. The 
+     * values are copied, so training this perceptron won't modify them
+     * @param thresholds the thresholds of this perceptron, one array per layer. 
+     * The values are copied, so training this perceptron won't modify them
      */
     public MultilayerPerceptron(int inputSize, int outputSize, double alpha, int[] hiddenLayersSizes, LinkedList<double[]> weights, LinkedList<double[]> thresholds){
-        neurons = new LinkedList<>();
-        this.weights = weights;
-        this.thresholds = thresholds;
-        summations = new LinkedList<>();
-        neuronsDelta = new LinkedList<>();
-        this.alpha = alpha;
+        layerSizes = buildLayerSizes(inputSize, outputSize, hiddenLayersSizes);
+        neuronsOffsets = new int[layerSizes.length + 1];
+        weightsOffsets = new int[layerSizes.length];
+        thresholdsOffsets = new int[layerSizes.length];
+        buildOffsets();
         
-        neurons.add(new double[inputSize]);
-        for (int hiddenLayersSize : hiddenLayersSizes) {
-            neurons.add(new double[hiddenLayersSize]);
+        neurons = new double[neuronsOffsets[layerSizes.length]];
+        this.weights = flatten(weights, weightsOffsets, "weights");
+        this.thresholds = flatten(thresholds, thresholdsOffsets, "thresholds");
+        summations = new double[this.thresholds.length];
+        neuronsDelta = new double[this.thresholds.length];
+        activations = buildActivations(layerSizes.length);
+        learningRateFactors = buildLearningRateFactors(layerSizes.length);
+        this.alpha = alpha;
+    }
+    
+    /**
+     * The arrays are used as they are, without copying them.
+     * @param layerSizes the size of every layer, from the input to the output layer
+     * @param alpha the learning rate for the backpropagation phase
+     * @param weights the weights of every layer, one after another
+     * @param thresholds the thresholds of every layer, one after another
+     */
+    MultilayerPerceptron(int[] layerSizes, double alpha, double[] weights, double[] thresholds){
+        this.layerSizes = layerSizes.clone();
+        neuronsOffsets = new int[layerSizes.length + 1];
+        weightsOffsets = new int[layerSizes.length];
+        thresholdsOffsets = new int[layerSizes.length];
+        buildOffsets();
+        if(weights.length != weightsOffsets[layerSizes.length - 1] || thresholds.length != thresholdsOffsets[layerSizes.length - 1]){
+            throw new RuntimeException("The size of the weights or thresholds doesn't match the layers sizes");
         }
-        neurons.add(new double[outputSize]);
         
-        for (int i = 1; i < neurons.size(); i++) {
-            summations.add(new double[neurons.get(i).length]);
-            neuronsDelta.add(new double[neurons.get(i).length]);
-        }
+        neurons = new double[neuronsOffsets[layerSizes.length]];
+        this.weights = weights;
+        this.thresholds = thresholds;
+        summations = new double[thresholds.length];
+        neuronsDelta = new double[thresholds.length];
+        activations = buildActivations(layerSizes.length);
+        learningRateFactors = buildLearningRateFactors(layerSizes.length);
+        this.alpha = alpha;
     }
     
     /**
@@ -90,11 +166,125 @@ public class MultilayerPerceptron {
     public void startTrainingCycle(double[] inputs, double[] expectedOutputs){
         setInputs(inputs);
         checkOutputSize(expectedOutputs);
-
+        trainLoadedSample(expectedOutputs);
+    }
+    
+    /**
+     * Same as startTrainingCycle(inputs, expectedOutputs), reading the inputs
+     * from a sparse data set, so the pixels that are 0 aren't even visited.
+     * @param inputs The data set with the inputs used in the training phase. 
+     * Its samples must be the same size as the input size established in the 
+     * creation of this Pereptron
+     * @param sample The index of the sample of the data set
+     * @param expectedOutputs The outputs used in the training phase, it must be 
+     * the same size as the output size established in the creation of this Pereptron
+     */
+    public void startTrainingCycle(SparseDataSet inputs, int sample, double[] expectedOutputs){
+        if(inputs.getSampleSize() != layerSizes[0]){
+            throw new RuntimeException("The inputs passed as parameter is different in "
+                    + "size from the inputs size set in the creation of this perceptron");
+        }
+        checkOutputSize(expectedOutputs);
+        int start = inputs.getRowStart(sample);
+        int length = inputs.getNonZeros(sample);
+        int[] columns = inputs.getColumns();
+        double[] values = inputs.getValues();
+        if (nonZeroInputs == null) nonZeroInputs = new int[layerSizes[0]];
+        MatrixOperations.fill(neurons, 0, layerSizes[0], 0);
+        for (int i = 0; i < length; i++) {
+            neurons[columns[start + i]] = values[start + i];
+        }
+        System.arraycopy(columns, start, nonZeroInputs, 0, length);
+        nonZeroInputsLength = length;
+        sparseInputs = length < SPARSE_INPUTS_DENSITY * layerSizes[0];
+        trainLoadedSample(expectedOutputs);
+    }
+    
+    private void trainLoadedSample(double[] expectedOutputs){
+        if (trainingCounters == null) {
+            spreadInput();
+            calculateOutputLayerNeuronsDelta(expectedOutputs);
+            calculateHiddenLayersNeuronsDelta();
+            updateWeigthsAndThresholds();
+            return;
+        }
+        long start = System.nanoTime();
         spreadInput();
+        long spread = System.nanoTime();
         calculateOutputLayerNeuronsDelta(expectedOutputs);
         calculateHiddenLayersNeuronsDelta();
+        long delta = System.nanoTime();
         updateWeigthsAndThresholds();
+        long update = System.nanoTime();
+        int outputLayer = layerSizes.length - 1;
+        trainingCounters.samples++;
+        trainingCounters.forwardNanos += spread - start;
+        trainingCounters.deltaNanos += delta - spread;
+        trainingCounters.updateNanos += update - delta;
+        trainingCounters.lossSum += lossFunction.calculateLoss(neurons, neuronsOffsets[outputLayer], expectedOutputs, layerSizes[outputLayer]);
+    }
+    
+    /**
+     * Trains this perceptron using mini-batches. The samples are taken in order
+     * in groups of batchSize, each group is spread through the net as a whole 
+     * matrix, and the weights and thresholds are updated once per group with 
+     * the mean gradient of its samples.
+     * @param inputs The inputs used in the training phase, one row per sample. 
+     * Each row must be the same size as the input size established in the 
+     * creation of this Pereptron
+     * @param expectedOutputs The outputs used in the training phase, one row per 
+     * sample. Each row must be the same size as the output size established in 
+     * the creation of this Pereptron
+     * @param batchSize The number of samples used for each update
+     */
+    public void trainBatch(double[][] inputs, double[][] expectedOutputs, int batchSize){
+        if(inputs.length != expectedOutputs.length){
+            throw new RuntimeException("The number of inputs passed as parameter is different "
+                    + "from the number of expected outputs");
+        }
+        trainBatch(inputs, expectedOutputs, 0, inputs.length, batchSize);
+    }
+    
+    /**
+     * Same as trainBatch, but only the samples in the range [from, to) are used.
+     * @param inputs The inputs used in the training phase, one row per sample
+     * @param expectedOutputs The outputs used in the training phase, one row per sample
+     * @param from The first sample used
+     * @param to The sample after the last one used
+     * @param batchSize The number of samples used for each update
+     */
+    public void trainBatch(double[][] inputs, double[][] expectedOutputs, int from, int to, int batchSize){
+        trainBatch(inputs, expectedOutputs, null, from, to, batchSize);
+    }
+    
+    /**
+     * Same as trainBatch, but the samples are taken in the order given by an
+     * array of indices, so the data set can be shuffled without copying it.
+     * @param inputs The inputs used in the training phase, one row per sample
+     * @param expectedOutputs The outputs used in the training phase, one row per sample
+     * @param order The indices of the samples in the order they are used, or
+     * null to use them in the order of the arrays
+     * @param from The first position of order used
+     * @param to The position after the last one used
+     * @param batchSize The number of samples used for each update
+     */
+    public void trainBatch(double[][] inputs, double[][] expectedOutputs, int[] order, int from, int to, int batchSize){
+        if(batchWorkspace == null || batchWorkspace.capacity < batchSize){
+            batchWorkspace = createBatchWorkspace(batchSize);
+        }
+        for (int start = from; start < to; start += batchSize) {
+            int end = Math.min(start + batchSize, to);
+            calculateBatchGradients(batchWorkspace, inputs, expectedOutputs, order, start, end);
+            long update = System.nanoTime();
+            applyGradients(batchWorkspace.weightGradients, batchWorkspace.thresholdGradients, 1.0 / (end - start));
+            if (trainingCounters != null) {
+                trainingCounters.samples += end - start;
+                trainingCounters.forwardNanos += batchWorkspace.forwardNanos;
+                trainingCounters.deltaNanos += batchWorkspace.deltaNanos;
+                trainingCounters.updateNanos += System.nanoTime() - update;
+                trainingCounters.lossSum += batchWorkspace.lossSum;
+            }
+        }
     }
     
     /**
@@ -103,25 +293,140 @@ public class MultilayerPerceptron {
      * size, and the last one will be the output size.
      */
     public int[] getAllLayersSize(){
-        int[] sizes = new int[neurons.size()];
-        for (int i = 0; i < neurons.size(); i++) {
-            sizes[i] = neurons.get(i).length;
-        }
-        return sizes;
+        return layerSizes.clone();
     }
 
+    /**
+     *
+     * @return A copy of the weights of this perceptron, one array per layer. 
+     * Modifying the returned arrays won't affect this perceptron.
+     */
     public LinkedList<double[]> getWeights() {
-        return weights;
+        return split(weights, weightsOffsets);
     }
 
+    /**
+     *
+     * @return A copy of the thresholds of this perceptron, one array per layer. 
+     * Modifying the returned arrays won't affect this perceptron.
+     */
     public LinkedList<double[]> getThresholds() {
-        return thresholds;
+        return split(thresholds, thresholdsOffsets);
     }
 
     public double getAlpha() {
         return alpha;
     }
     
+    /**
+     * Chooses how the sigmoid of the neurons is calculated. It can be changed
+     * at any moment, even between training cycles.
+     * @param sigmoidPrecision The sigmoid implementation used from now on
+     */
+    public void setSigmoidPrecision(SigmoidPrecision sigmoidPrecision) {
+        for (int i = 0; i < activations.length; i++) {
+            if (activations[i] instanceof SigmoidPrecision) activations[i] = sigmoidPrecision;
+        }
+        this.sigmoidPrecision = sigmoidPrecision;
+    }
+
+    public SigmoidPrecision getSigmoidPrecision() {
+        return sigmoidPrecision;
+    }
+    
+    /**
+     *
+     * @param layer The layer, from 1 for the first hidden layer to the output layer
+     * @param activation The activation function used by the neurons of that layer
+     */
+    public void setActivation(int layer, ActivationFunction activation) {
+        if (layer < 1 || layer >= layerSizes.length) {
+            throw new RuntimeException("The layer " + layer + " doesn't exist or has no activation function");
+        }
+        activations[layer - 1] = activation;
+    }
+    
+    /**
+     *
+     * @param layer The layer, from 1 for the first hidden layer to the output layer
+     * @return The activation function used by the neurons of that layer
+     */
+    public ActivationFunction getActivation(int layer) {
+        if (layer < 1 || layer >= layerSizes.length) {
+            throw new RuntimeException("The layer " + layer + " doesn't exist or has no activation function");
+        }
+        return activations[layer - 1];
+    }
+    
+    /**
+     *
+     * @return The activation function of every layer, the first one belongs to
+     * the first hidden layer and the last one to the output layer
+     */
+    public ActivationFunction[] getActivations() {
+        return activations.clone();
+    }
+
+    public void setLossFunction(LossFunction lossFunction) {
+        this.lossFunction = lossFunction;
+    }
+
+    public LossFunction getLossFunction() {
+        return lossFunction;
+    }
+    
+    /**
+     * Chooses how the weights and thresholds are updated. The values the 
+     * previous optimizer remembered are discarded, so it should be chosen 
+     * before the training starts.
+     * @param optimizer The optimizer used from now on
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        int buffers = optimizer.getStateNames().length;
+        this.optimizer = optimizer;
+        weightsState = new double[buffers][weights.length];
+        thresholdsState = new double[buffers][thresholds.length];
+        optimizerSteps = 0;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+    
+    /**
+     * The learning rate of a layer is alpha multiplied by its factor and by 
+     * the scale of the learning rate.
+     * @param layer The layer, from 1 for the first hidden layer to the output layer
+     * @param factor The factor of the learning rate of the weights and 
+     * thresholds that feed that layer
+     */
+    public void setLearningRateFactor(int layer, double factor) {
+        if (layer < 1 || layer >= layerSizes.length) {
+            throw new RuntimeException("The layer " + layer + " doesn't exist or has no weights");
+        }
+        learningRateFactors[layer - 1] = factor;
+    }
+    
+    public double getLearningRateFactor(int layer) {
+        if (layer < 1 || layer >= layerSizes.length) {
+            throw new RuntimeException("The layer " + layer + " doesn't exist or has no weights");
+        }
+        return learningRateFactors[layer - 1];
+    }
+    
+    /**
+     * Multiplies the learning rate of every layer, it is the way a 
+     * LearningRateSchedule is applied between training cycles.
+     * @param learningRateScale The factor alpha is multiplied by from now on
+     */
+    public void setLearningRateScale(double learningRateScale) {
+        this.learningRateScale = learningRateScale;
+    }
+
+    public double getLearningRateScale() {
+        return learningRateScale;
+    }
+    
     /**
      *
      * @param inputs The inputs for this test, it must be the same size as the input size
@@ -135,35 +440,329 @@ public class MultilayerPerceptron {
         setInputs(inputs);
         checkOutputSize(expectedOutputs);
         spreadInput();
-        for (int i = 0; i < neurons.get(neurons.size() - 1).length; i++) {
-            if(neurons.get(neurons.size() - 1)[i] < (expectedOutputs[i] - errorRange) || neurons.get(neurons.size() - 1)[i] > (expectedOutputs[i] + errorRange)) return false;
+        int outputOffset = neuronsOffsets[layerSizes.length - 1];
+        for (int i = 0; i < layerSizes[layerSizes.length - 1]; i++) {
+            double output = neurons[outputOffset + i];
+            if(output < (expectedOutputs[i] - errorRange) || output > (expectedOutputs[i] + errorRange)) return false;
         }
         
         return true;
     }
     
     /**
-     *
+     * Copies the current weights and thresholds into a read-only model that can
+     * be shared between threads. Training this perceptron afterwards won't
+     * modify the model.
+     * @return A new read-only model with the state of this perceptron
+     */
+    public InferenceModel toInferenceModel(){
+        return new InferenceModel(layerSizes, DoubleBuffer.wrap(weights.clone()), DoubleBuffer.wrap(thresholds.clone()), activations.clone(), lossFunction);
+    }
+    
+    /**
+     * 
+     * @return A new perceptron with a copy of the weights, thresholds, 
+     * functions and optimizer of this one. Training either of them won't 
+     * modify the other one. The optimizer of the copy starts from scratch, the
+     * values remembered by this one aren't copied
+     */
+    public MultilayerPerceptron copy(){
+        MultilayerPerceptron copy = new MultilayerPerceptron(layerSizes, alpha, weights.clone(), thresholds.clone());
+        System.arraycopy(activations, 0, copy.activations, 0, activations.length);
+        System.arraycopy(learningRateFactors, 0, copy.learningRateFactors, 0, learningRateFactors.length);
+        copy.sigmoidPrecision = sigmoidPrecision;
+        copy.lossFunction = lossFunction;
+        copy.learningRateScale = learningRateScale;
+        if (optimizer != Optimizer.sgd()) copy.setOptimizer(optimizer);
+        return copy;
+    }
+    
+    /**
+     * This method uses the state of the perceptron, so it must not be called by
+     * several threads at the same time. Use toInferenceModel for that.
      * @param inputs The inputs for this test, it must be the same size as the input size
      * established in the creation of this Pereptron
-     * @return The outputs obtained after spread the inputs
+     * @return A new array with the outputs obtained after spread the inputs
      */
     public double[] testNeuralNet(double[] inputs){
         setInputs(inputs);
         spreadInput();
-        return neurons.get(neurons.size()-1);
+        double[] outputs = new double[layerSizes[layerSizes.length - 1]];
+        System.arraycopy(neurons, neuronsOffsets[layerSizes.length - 1], outputs, 0, outputs.length);
+        return outputs;
+    }
+    
+    /**
+     * Copies the weights and thresholds of another perceptron with the same 
+     * layers into this one. The optimizer and the functions don't change.
+     */
+    void setParameters(MultilayerPerceptron perceptron){
+        if(perceptron.weights.length != weights.length || perceptron.thresholds.length != thresholds.length){
+            throw new RuntimeException("The perceptron passed as parameter has different layers");
+        }
+        System.arraycopy(perceptron.weights, 0, weights, 0, weights.length);
+        System.arraycopy(perceptron.thresholds, 0, thresholds, 0, thresholds.length);
+    }
+    
+    /**
+     * The weights of every layer one after another. The array is the one used
+     * by this perceptron, it must not be modified.
+     */
+    double[] getWeightsBuffer(){
+        return weights;
+    }
+    
+    /**
+     * The thresholds of every layer one after another. The array is the one 
+     * used by this perceptron, it must not be modified.
+     */
+    double[] getThresholdsBuffer(){
+        return thresholds;
+    }
+    
+    /**
+     * The buffers of the optimizer by name, plus the number of updates done
+     * under the name "steps". They are the arrays used by this perceptron. The
+     * map is empty if the optimizer doesn't keep anything between updates.
+     */
+    Map<String, double[]> getOptimizerState(){
+        String[] names = optimizer.getStateNames();
+        if (names.length == 0) return Collections.emptyMap();
+        Map<String, double[]> state = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            state.put("weights." + names[i], weightsState[i]);
+            state.put("thresholds." + names[i], thresholdsState[i]);
+        }
+        state.put("steps", new double[]{optimizerSteps});
+        return state;
+    }
+    
+    /**
+     * Copies the buffers returned by getOptimizerState of a perceptron with the
+     * same layers and optimizer into this one.
+     */
+    void setOptimizerState(Map<String, double[]> state){
+        String[] names = optimizer.getStateNames();
+        if (names.length == 0 && state.isEmpty()) return;
+        if (state.size() != 2 * names.length + 1 || !state.containsKey("steps")) {
+            throw new RuntimeException("The optimizer state doesn't belong to the optimizer " + optimizer);
+        }
+        for (int i = 0; i < names.length; i++) {
+            copyState(state.get("weights." + names[i]), weightsState[i]);
+            copyState(state.get("thresholds." + names[i]), thresholdsState[i]);
+        }
+        optimizerSteps = (long) state.get("steps")[0];
+    }
+    
+    /**
+     * From now on the time and loss of every training cycle and batch are added
+     * to the counters, or nothing is measured if they are null.
+     */
+    void setTrainingCounters(TrainingCounters trainingCounters){
+        this.trainingCounters = trainingCounters;
+    }
+    
+    BatchWorkspace createBatchWorkspace(int capacity){
+        return new BatchWorkspace(layerSizes, capacity, weights.length, thresholds.length);
+    }
+    
+    /**
+     * Spreads the samples [from, to) through the net and leaves the summed 
+     * gradients of all of them in the workspace, along with the time spent and
+     * the loss of the batch. The perceptron is not modified.
+     */
+    void calculateBatchGradients(BatchWorkspace workspace, double[][] inputs, double[][] expectedOutputs, int from, int to){
+        calculateBatchGradients(workspace, inputs, expectedOutputs, null, from, to);
+    }
+    
+    /**
+     * Same as calculateBatchGradients, with the samples at the positions 
+     * [from, to) of order, or of the arrays if order is null.
+     */
+    void calculateBatchGradients(BatchWorkspace workspace, double[][] inputs, double[][] expectedOutputs, int[] order, int from, int to){
+        int rows = to - from;
+        if(rows > workspace.capacity){
+            throw new RuntimeException("The batch is bigger than the workspace capacity");
+        }
+        long start = System.nanoTime();
+        int outputLayer = layerSizes.length - 1;
+        for (int r = 0; r < rows; r++) {
+            int sample = order == null ? from + r : order[from + r];
+            double[] sampleInputs = inputs[sample];
+            if(sampleInputs.length != layerSizes[0]){
+                throw new RuntimeException("The inputs passed as parameter is different in "
+                        + "size from the inputs size set in the creation of this perceptron");
+            }
+            checkOutputSize(expectedOutputs[sample]);
+            System.arraycopy(sampleInputs, 0, workspace.neurons, r * layerSizes[0], layerSizes[0]);
+        }
+        
+        spreadBatch(workspace, rows);
+        long spread = System.nanoTime();
+        
+        //Output layer delta
+        int outputSize = layerSizes[outputLayer];
+        int outputDeltaOffset = workspace.deltaOffsets[outputLayer - 1];
+        int outputNeuronsOffset = workspace.neuronsOffsets[outputLayer];
+        ActivationFunction outputActivation = activations[outputLayer - 1];
+        workspace.lossSum = 0;
+        for (int r = 0; r < rows; r++) {
+            double[] sampleExpectedOutputs = expectedOutputs[order == null ? from + r : order[from + r]];
+            workspace.lossSum += lossFunction.calculateLoss(workspace.neurons, outputNeuronsOffset + r * outputSize, sampleExpectedOutputs, outputSize);
+            lossFunction.calculateOutputsDelta(workspace.neurons, outputNeuronsOffset + r * outputSize, sampleExpectedOutputs, 
+                    workspace.neuronsDelta, outputDeltaOffset + r * outputSize, outputSize, outputActivation);
+        }
+        
+        //Hidden layers delta, D(i) = D(i+1) * W(i)^T scaled by the derivative
+        for (int i = outputLayer - 1; i >= 1; i--) {
+            int deltaOffset = workspace.deltaOffsets[i - 1];
+            int neuronsOffset = workspace.neuronsOffsets[i];
+            ActivationFunction activation = activations[i - 1];
+            MatrixOperations.multiplyTransposedB(workspace.neuronsDelta, workspace.deltaOffsets[i], weights, weightsOffsets[i], 
+                    workspace.neuronsDelta, deltaOffset, rows, layerSizes[i + 1], layerSizes[i]);
+            for (int j = 0; j < rows * layerSizes[i]; j++) {
+                workspace.neuronsDelta[deltaOffset + j] *= activation.derivative(workspace.neurons[neuronsOffset + j]);
+            }
+        }
+        
+        //Gradients, G(i) = A(i-1)^T * D(i)
+        for (int i = 1; i <= outputLayer; i++) {
+            MatrixOperations.multiplyTransposedA(workspace.neurons, workspace.neuronsOffsets[i - 1], workspace.neuronsDelta, workspace.deltaOffsets[i - 1], 
+                    workspace.weightGradients, weightsOffsets[i - 1], layerSizes[i - 1], rows, layerSizes[i]);
+            MatrixOperations.sumRows(workspace.neuronsDelta, workspace.deltaOffsets[i - 1], 
+                    workspace.thresholdGradients, thresholdsOffsets[i - 1], rows, layerSizes[i]);
+        }
+        workspace.forwardNanos = spread - start;
+        workspace.deltaNanos = System.nanoTime() - spread;
+    }
+    
+    /**
+     * Updates the weights and thresholds of this perceptron with the optimizer,
+     * using the gradients multiplied by scale.
+     */
+    void applyGradients(double[] weightGradients, double[] thresholdGradients, double scale){
+        double learningRate = optimizer.stepLearningRate(alpha * learningRateScale, ++optimizerSteps);
+        for (int i = 1; i < layerSizes.length; i++) {
+            double layerLearningRate = learningRate * learningRateFactors[i - 1];
+            int weightsOffset = weightsOffsets[i - 1];
+            int thresholdsOffset = thresholdsOffsets[i - 1];
+            optimizer.update(weights, weightsOffset, weightGradients, weightsOffset, scale, 
+                    layerSizes[i - 1] * layerSizes[i], weightsState, layerLearningRate);
+            optimizer.update(thresholds, thresholdsOffset, thresholdGradients, thresholdsOffset, scale, 
+                    layerSizes[i], thresholdsState, layerLearningRate);
+        }
+    }
+    
+    private void spreadBatch(BatchWorkspace workspace, int rows){
+        for (int i = 1; i < layerSizes.length; i++) {
+            int currentNeuronsLength = layerSizes[i];
+            int summationsOffset = workspace.deltaOffsets[i - 1];
+            int currentNeuronsOffset = workspace.neuronsOffsets[i];
+            int thresholdsOffset = thresholdsOffsets[i - 1];
+            MatrixOperations.multiply(workspace.neurons, workspace.neuronsOffsets[i - 1], weights, weightsOffsets[i - 1], 
+                    workspace.summations, summationsOffset, rows, layerSizes[i - 1], currentNeuronsLength);
+            ActivationFunction activation = activations[i - 1];
+            boolean outputLayer = i == layerSizes.length - 1;
+            for (int r = 0; r < rows; r++) {
+                int row = r * currentNeuronsLength;
+                for (int j = 0; j < currentNeuronsLength; j++) {
+                    double summation = workspace.summations[summationsOffset + row + j] + thresholds[thresholdsOffset + j];
+                    workspace.summations[summationsOffset + row + j] = summation;
+                    if (!outputLayer) workspace.neurons[currentNeuronsOffset + row + j] = activation.activate(summation);
+                }
+                if (outputLayer) {
+                    lossFunction.activateOutputs(workspace.summations, summationsOffset + row, workspace.neurons, currentNeuronsOffset + row, currentNeuronsLength, activation);
+                }
+            }
+        }
+    }
+    
+    private static ActivationFunction[] buildActivations(int numberOfLayers){
+        ActivationFunction[] layersActivations = new ActivationFunction[numberOfLayers - 1];
+        for (int i = 0; i < layersActivations.length; i++) {
+            layersActivations[i] = SigmoidPrecision.EXACT;
+        }
+        return layersActivations;
+    }
+    
+    private static double[] buildLearningRateFactors(int numberOfLayers){
+        double[] factors = new double[numberOfLayers - 1];
+        for (int i = 0; i < factors.length; i++) {
+            factors[i] = 1;
+        }
+        return factors;
+    }
+    
+    private static void copyState(double[] source, double[] destination){
+        if (source == null || source.length != destination.length) {
+            throw new RuntimeException("The optimizer state doesn't match the size of this perceptron");
+        }
+        System.arraycopy(source, 0, destination, 0, destination.length);
+    }
+    
+    private static int[] buildLayerSizes(int inputSize, int outputSize, int[] hiddenLayersSizes){
+        int[] sizes = new int[hiddenLayersSizes.length + 2];
+        sizes[0] = inputSize;
+        System.arraycopy(hiddenLayersSizes, 0, sizes, 1, hiddenLayersSizes.length);
+        sizes[sizes.length - 1] = outputSize;
+        return sizes;
+    }
+    
+    private void buildOffsets(){
+        for (int i = 0; i < layerSizes.length; i++) {
+            neuronsOffsets[i + 1] = neuronsOffsets[i] + layerSizes[i];
+        }
+        for (int i = 1; i < layerSizes.length; i++) {
+            weightsOffsets[i] = weightsOffsets[i - 1] + layerSizes[i - 1] * layerSizes[i];
+            thresholdsOffsets[i] = thresholdsOffsets[i - 1] + layerSizes[i];
+        }
+    }
+    
+    private static double[] flatten(LinkedList<double[]> layers, int[] offsets, String name){
+        if(layers.size() != offsets.length - 1){
+            throw new RuntimeException("The number of " + name + " layers passed as parameter "
+                    + "doesn't match the number of layers of this perceptron");
+        }
+        double[] buffer = new double[offsets[offsets.length - 1]];
+        int layer = 0;
+        for (double[] values : layers) {
+            if(values.length != offsets[layer + 1] - offsets[layer]){
+                throw new RuntimeException("The size of the " + name + " of the layer " + (layer + 1)
+                        + " is different from the size expected by this perceptron");
+            }
+            System.arraycopy(values, 0, buffer, offsets[layer], values.length);
+            layer++;
+        }
+        return buffer;
+    }
+    
+    private static LinkedList<double[]> split(double[] buffer, int[] offsets){
+        LinkedList<double[]> layers = new LinkedList<>();
+        for (int i = 0; i < offsets.length - 1; i++) {
+            double[] values = new double[offsets[i + 1] - offsets[i]];
+            System.arraycopy(buffer, offsets[i], values, 0, values.length);
+            layers.add(values);
+        }
+        return layers;
     }
     
     private void setInputs(double[] inputs){
-        if(inputs.length != neurons.get(0).length){
+        if(inputs.length != layerSizes[0]){
             throw new RuntimeException("The inputs passed as parameter is different in "
                     + "size from the inputs size set in the creation of this perceptron");
         }
-        System.arraycopy(inputs, 0, neurons.get(0), 0, inputs.length);
+        System.arraycopy(inputs, 0, neurons, 0, inputs.length);
+        if (nonZeroInputs == null) nonZeroInputs = new int[layerSizes[0]];
+        int length = 0;
+        for (int k = 0; k < inputs.length; k++) {
+            if (inputs[k] != 0) nonZeroInputs[length++] = k;
+        }
+        nonZeroInputsLength = length;
+        sparseInputs = length < SPARSE_INPUTS_DENSITY * inputs.length;
     }
     
     private void checkOutputSize(double[] expectedOutputs){
-        if(expectedOutputs.length != neurons.get(neurons.size() - 1).length){
+        if(expectedOutputs.length != layerSizes[layerSizes.length - 1]){
             throw new RuntimeException("The output passed as parameter is different in "
                     + "size from the output size set in the creation of this perceptron");
         }
@@ -172,118 +771,140 @@ public class MultilayerPerceptron {
     private void initializeWeights() {
         //Initialize all the weights with random values between -1 and 1
         Random random = new Random();
-        for (double[] weight : weights) {
-            for (int i = 0; i < weight.length; i++) {
-                weight[i] = random.nextDouble() * 2 -1;
-            }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = random.nextDouble() * 2 -1;
         }
     }
 
     private void initializeThresholds() {
         //Initialize all the thresholds to 1
-        for (double[] threshold : thresholds) {
-            for (int i = 0; i < threshold.length; i++) {
-                threshold[i] = 1;
+        for (int i = 0; i < thresholds.length; i++) {
+            thresholds[i] = 1;
+        }
+    }
+    
+    private void initializeScaledWeights() {
+        //Uniform in [-limit, limit], He initialization for the rectifiers and Glorot for the rest
+        Random random = new Random();
+        for (int i = 1; i < layerSizes.length; i++) {
+            ActivationFunction activation = activations[i-1];
+            boolean rectifier = activation == Activation.RELU || activation == Activation.LEAKY_RELU;
+            double limit = rectifier ? Math.sqrt(6.0 / layerSizes[i-1]) : Math.sqrt(6.0 / (layerSizes[i-1] + layerSizes[i]));
+            for (int j = weightsOffsets[i-1]; j < weightsOffsets[i]; j++) {
+                weights[j] = (random.nextDouble() * 2 - 1) * limit;
             }
         }
+        for (int i = 0; i < thresholds.length; i++) {
+            thresholds[i] = 0;
+        }
     }
     
     private void spreadInput(){
-        double summation = 0;
-        double[] weigthList;
-        double[] previousNeuronsList;
-        int currentNeuronsListLength;
-        double[] thresholdsList;
-        double[] summationsList;
-        double[] currentNeuronsList;
-        for (int i = 1; i < neurons.size(); i++) {
-            weigthList = weights.get(i-1);
-            previousNeuronsList = neurons.get(i-1);
-            currentNeuronsListLength = neurons.get(i).length;
-            thresholdsList = thresholds.get(i-1);
-            summationsList = summations.get(i-1);
-            currentNeuronsList = neurons.get(i);
-            for (int j = 0; j < currentNeuronsListLength; j++) {
-                summation = 0;
-                for (int k = 0; k < previousNeuronsList.length; k++) {
-                    summation += weigthList[j+currentNeuronsListLength*k]*previousNeuronsList[k];
+        int weightsOffset;
+        int previousNeuronsOffset;
+        int previousNeuronsLength;
+        int currentNeuronsOffset;
+        int currentNeuronsLength;
+        int thresholdsOffset;
+        ActivationFunction activation;
+        int outputLayer = layerSizes.length - 1;
+        for (int i = 1; i < layerSizes.length; i++) {
+            weightsOffset = weightsOffsets[i-1];
+            previousNeuronsOffset = neuronsOffsets[i-1];
+            previousNeuronsLength = layerSizes[i-1];
+            currentNeuronsOffset = neuronsOffsets[i];
+            currentNeuronsLength = layerSizes[i];
+            thresholdsOffset = thresholdsOffsets[i-1];
+            activation = activations[i-1];
+            //Row k of the weights holds the weights leaving neuron k, so every row is added with unit stride
+            System.arraycopy(thresholds, thresholdsOffset, summations, thresholdsOffset, currentNeuronsLength);
+            if (i == 1 && sparseInputs) {
+                //Only the rows of the inputs that aren't 0 add something
+                for (int n = 0; n < nonZeroInputsLength; n++) {
+                    int k = nonZeroInputs[n];
+                    Kernels.axpy(neurons[k], weights, weightsOffset + currentNeuronsLength*k, summations, thresholdsOffset, currentNeuronsLength);
+                }
+            } else {
+                for (int k = 0; k < previousNeuronsLength; k++) {
+                    Kernels.axpy(neurons[previousNeuronsOffset + k], weights, weightsOffset + currentNeuronsLength*k, summations, thresholdsOffset, currentNeuronsLength);
+                }
+            }
+            if (i < outputLayer) {
+                for (int j = 0; j < currentNeuronsLength; j++) {
+                    neurons[currentNeuronsOffset + j] = activation.activate(summations[thresholdsOffset + j]);
                 }
-                summation += thresholdsList[j];
-                summationsList[j] = summation;
-                currentNeuronsList[j] = Sigmoid.calculateSigmoid(summation);
             }
         }
+        //The output layer is activated by the loss function, the softmax replaces its activation
+        lossFunction.activateOutputs(summations, thresholdsOffsets[outputLayer - 1], neurons, neuronsOffsets[outputLayer], layerSizes[outputLayer], activations[outputLayer - 1]);
     }
     
     private void calculateOutputLayerNeuronsDelta(double[] expectedOutputs){
-        double[] deltaLayerList = neuronsDelta.get(neuronsDelta.size() - 1);
-        double[] outputLayerList = neurons.get(neurons.size() - 1);
-        double[] summationList = summations.get(summations.size() - 1);
+        int outputLayer = layerSizes.length - 1;
+        int deltaOffset = thresholdsOffsets[outputLayer - 1];
+        int outputOffset = neuronsOffsets[outputLayer];
         
-        for (int i = 0; i < deltaLayerList.length; i++) {
-            deltaLayerList[i] = -(expectedOutputs[i] - outputLayerList[i]) * Sigmoid.calculateDerivative(summationList[i]);
-        }
+        lossFunction.calculateOutputsDelta(neurons, outputOffset, expectedOutputs, neuronsDelta, deltaOffset, layerSizes[outputLayer], activations[outputLayer - 1]);
     }
     
     private void calculateHiddenLayersNeuronsDelta(){
         double previousDeltaWeighted = 0;
-        int weigthPointer = 0;
-        int weigthLayerPointer = weights.size()-1;
-        int summationsLayerPointer = summations.size() - 2;
-        double[] currentDeltaList;
-        double[] nextDeltaList;
-        double[] weigthList;
-        double[] summationsList;
+        int weightsOffset;
+        int currentDeltaOffset;
+        int currentNeuronsOffset;
+        int currentDeltaLength;
+        int nextDeltaOffset;
+        int nextDeltaLength;
+        ActivationFunction activation;
         
-        for (int i = neuronsDelta.size() - 2; i >= 0; i--) {
-            weigthPointer = 0;
-            currentDeltaList = neuronsDelta.get(i);
-            nextDeltaList = neuronsDelta.get(i+1);
-            weigthList = weights.get(weigthLayerPointer);
-            summationsList = summations.get(summationsLayerPointer);
-            for (int j = 0; j < currentDeltaList.length; j++) {
-                previousDeltaWeighted = 0;
-                for (int k = 0; k < nextDeltaList.length; k++) {
-                    previousDeltaWeighted += nextDeltaList[k] * weigthList[weigthPointer];
-                    weigthPointer++;
-                }
-                currentDeltaList[j] = Sigmoid.calculateDerivative(summationsList[j]) * previousDeltaWeighted;
+        //Layer i is the layer whose delta is being calculated, layer i+1 feeds it back
+        for (int i = layerSizes.length - 2; i >= 1; i--) {
+            weightsOffset = weightsOffsets[i];
+            currentDeltaOffset = thresholdsOffsets[i-1];
+            currentNeuronsOffset = neuronsOffsets[i];
+            currentDeltaLength = layerSizes[i];
+            nextDeltaOffset = thresholdsOffsets[i];
+            nextDeltaLength = layerSizes[i+1];
+            activation = activations[i-1];
+            for (int j = 0; j < currentDeltaLength; j++) {
+                previousDeltaWeighted = Kernels.dot(neuronsDelta, nextDeltaOffset, weights, weightsOffset + nextDeltaLength*j, nextDeltaLength);
+                neuronsDelta[currentDeltaOffset + j] = activation.derivative(neurons[currentNeuronsOffset + j]) * previousDeltaWeighted;
             }
-            weigthLayerPointer--;
-            summationsLayerPointer--;
         }
     }
     
     private void updateWeigthsAndThresholds(){
+        double learningRate = optimizer.stepLearningRate(alpha * learningRateScale, ++optimizerSteps);
         //Weigths
-        int deltaLayerPointer = neuronsDelta.size() - 1;
-        int neuronsLayerPointer = neurons.size() - 1;
-        double[] weightsList;
-        double[] neuronsDeltaList;
+        int weightsOffset;
+        int deltaOffset;
         int currentNeuronsLayerLength;
-        double[] previousNeuronsLayerList;
-        for (int i = weights.size() - 1; i >= 0; i--) {
-            weightsList = weights.get(i);
-            neuronsDeltaList = neuronsDelta.get(deltaLayerPointer);
-            currentNeuronsLayerLength = neurons.get(neuronsLayerPointer).length;
-            previousNeuronsLayerList = neurons.get(neuronsLayerPointer - 1);
-            for (int j = 0; j < weightsList.length; j++) {
-                weightsList[j] = (weightsList[j] - alpha * neuronsDeltaList[j % currentNeuronsLayerLength] * previousNeuronsLayerList[j / currentNeuronsLayerLength]);
-            }
-            deltaLayerPointer--;
-            neuronsLayerPointer--;
-        }
-        
-        //Thresholds
-        deltaLayerPointer = neuronsDelta.size() - 1;
-        double[] threshodlsList;
-        for (int i = thresholds.size() - 1; i >= 0; i--) {
-            neuronsDeltaList = neuronsDelta.get(deltaLayerPointer);
-            threshodlsList = thresholds.get(i);
-            for (int j = 0; j < thresholds.get(i).length; j++) {
-                thresholds.get(i)[j] = threshodlsList[j] - alpha * neuronsDeltaList[j];
+        int previousNeuronsOffset;
+        int previousNeuronsLength;
+        for (int i = layerSizes.length - 1; i >= 1; i--) {
+            weightsOffset = weightsOffsets[i-1];
+            deltaOffset = thresholdsOffsets[i-1];
+            currentNeuronsLayerLength = layerSizes[i];
+            previousNeuronsOffset = neuronsOffsets[i-1];
+            previousNeuronsLength = layerSizes[i-1];
+            double layerLearningRate = learningRate * learningRateFactors[i-1];
+            //The gradient of row k of the weights is the delta of the layer scaled by neuron k
+            if (i == 1 && sparseInputs && weightsState.length == 0) {
+                //The rows of the inputs that are 0 have no gradient, and an optimizer without state leaves them as they are
+                for (int n = 0; n < nonZeroInputsLength; n++) {
+                    int k = nonZeroInputs[n];
+                    optimizer.update(weights, weightsOffset + currentNeuronsLayerLength*k, neuronsDelta, deltaOffset, neurons[k], 
+                            currentNeuronsLayerLength, weightsState, layerLearningRate);
+                }
+            } else {
+                for (int k = 0; k < previousNeuronsLength; k++) {
+                    optimizer.update(weights, weightsOffset + currentNeuronsLayerLength*k, neuronsDelta, deltaOffset, neurons[previousNeuronsOffset + k], 
+                            currentNeuronsLayerLength, weightsState, layerLearningRate);
+                }
             }
-            deltaLayerPointer--;
+            
+            //Thresholds
+            optimizer.update(thresholds, deltaOffset, neuronsDelta, deltaOffset, 1, currentNeuronsLayerLength, thresholdsState, layerLearningRate);
         }
     }
     
@@ -1,12 +1,48 @@
 package handwrittennumberidentifier;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
 /**
  *
  * @author Pablo Alonso
  */
 public class NeuralNetWorker {
     
+    static final double ERROR_RANGE = 0.03;
+    
     private final MultilayerPerceptron perceptron;
+    //Only used with single precision, perceptron is null then
+    private final FloatMultilayerPerceptron floatPerceptron;
+    private final Random random = new Random();
+    //The random numbers of every cycle are derived from the seed and the cycle
+    private long seed = new Random().nextLong();
+    private int completedCycles = 0;
+    private Path checkpointsDirectory;
+    private int checkpointInterval;
+    private int checkpointsKept;
+    private LearningRateSchedule learningRateSchedule = LearningRateSchedule.constant();
+    private int evaluationThreads = Runtime.getRuntime().availableProcessors();
+    private int evaluationSampleSize = 0;
+    private boolean epochScheduling = false;
+    private double validationFraction;
+    private boolean stratifiedBatches;
+    private int earlyStoppingPatience = 0;
+    private double minimumImprovement;
+    //The early stopping state of the training, written in the checkpoints
+    private MultilayerPerceptron bestPerceptron;
+    private double bestAccuracy = Double.NEGATIVE_INFINITY;
+    private int cyclesWithoutImprovement = 0;
+    //Set by resume, so the next training goes on with the state of the checkpoint
+    private boolean earlyStoppingRestored = false;
+    private final List<MetricsListener> metricsListeners = new ArrayList<>();
     
     /**
      *
@@ -15,6 +51,38 @@ public class NeuralNetWorker {
      */
     public NeuralNetWorker(double alpha, int...hiddenLayersSizes){
         perceptron = new MultilayerPerceptron(784, 1, alpha, hiddenLayersSizes);
+        floatPerceptron = null;
+    }
+    
+    /**
+     * Creates a perceptron with one output per digit. The output layer is a 
+     * softmax trained with the cross-entropy loss, and the guessed digit is the
+     * output with the biggest value.
+     * @param alpha The Alpha constant of the new perceptron
+     * @param hiddenActivation The activation function of the hidden layers
+     * @param hiddenLayersSizes The sizes of the hiddenLayer(s) of the new perceptron
+     */
+    public NeuralNetWorker(double alpha, ActivationFunction hiddenActivation, int...hiddenLayersSizes){
+        this(Precision.DOUBLE, alpha, hiddenActivation, hiddenLayersSizes);
+    }
+    
+    /**
+     * Same as NeuralNetWorker(alpha, hiddenActivation, hiddenLayersSizes), but 
+     * with FLOAT the perceptron and the data sets are stored in single 
+     * precision. The perceptron is converted to double precision to be saved.
+     * @param precision The precision of the perceptron and the data sets
+     * @param alpha The Alpha constant of the new perceptron
+     * @param hiddenActivation The activation function of the hidden layers
+     * @param hiddenLayersSizes The sizes of the hiddenLayer(s) of the new perceptron
+     */
+    public NeuralNetWorker(Precision precision, double alpha, ActivationFunction hiddenActivation, int...hiddenLayersSizes){
+        if (precision == Precision.FLOAT) {
+            perceptron = null;
+            floatPerceptron = new FloatMultilayerPerceptron(784, 10, alpha, hiddenActivation, LossFunction.SOFTMAX_CROSS_ENTROPY, hiddenLayersSizes);
+        } else {
+            perceptron = new MultilayerPerceptron(784, 10, alpha, hiddenActivation, LossFunction.SOFTMAX_CROSS_ENTROPY, hiddenLayersSizes);
+            floatPerceptron = null;
+        }
     }
     
     /**
@@ -23,39 +91,711 @@ public class NeuralNetWorker {
      */
     public NeuralNetWorker(String perceptronName){
         perceptron = DataManager.loadPerceptron(perceptronName);
+        floatPerceptron = null;
+    }
+    
+    private NeuralNetWorker(MultilayerPerceptron perceptron, FloatMultilayerPerceptron floatPerceptron){
+        this.perceptron = perceptron;
+        this.floatPerceptron = floatPerceptron;
+    }
+    
+    /**
+     * Goes on with a training from the newest checkpoint of a directory. The 
+     * perceptron, the completed cycles and the seed are restored, so the next
+     * cycles are the same ones the interrupted training would have done. The
+     * checkpoints are written again to the same directory, with the same interval.
+     * @param checkpointsDirectory The directory passed to enableCheckpoints
+     * @param checkpointInterval The number of cycles between checkpoints
+     * @param checkpointsKept The number of newest checkpoints kept in the directory
+     * @param precision The precision the training goes on with
+     * @return A new worker ready to train the remaining cycles
+     */
+    public static NeuralNetWorker resume(String checkpointsDirectory, int checkpointInterval, int checkpointsKept, Precision precision){
+        return resume(checkpointsDirectory, checkpointInterval, checkpointsKept, precision, Optimizer.sgd());
+    }
+    
+    /**
+     * Same as resume(checkpointsDirectory, checkpointInterval, checkpointsKept, precision),
+     * for trainings that use another optimizer. The values it remembered are 
+     * restored as well, like the early stopping state of DOUBLE trainings. 
+     * The learning rate schedule must be set again.
+     * @param checkpointsDirectory The directory passed to enableCheckpoints
+     * @param checkpointInterval The number of cycles between checkpoints
+     * @param checkpointsKept The number of newest checkpoints kept in the directory
+     * @param precision The precision the training goes on with
+     * @param optimizer The optimizer the interrupted training used
+     * @return A new worker ready to train the remaining cycles
+     */
+    public static NeuralNetWorker resume(String checkpointsDirectory, int checkpointInterval, int checkpointsKept, Precision precision, Optimizer optimizer){
+        Checkpoint checkpoint = Checkpointer.loadLatest(Paths.get(checkpointsDirectory));
+        if (checkpoint == null) {
+            throw new RuntimeException("There is no checkpoint in " + checkpointsDirectory);
+        }
+        MultilayerPerceptron perceptron = checkpoint.getPerceptron();
+        if (precision == Precision.DOUBLE) {
+            perceptron.setOptimizer(optimizer);
+            perceptron.setOptimizerState(checkpoint.getOptimizerStateSnapshot());
+        }
+        NeuralNetWorker worker = precision == Precision.FLOAT 
+                ? new NeuralNetWorker(null, FloatMultilayerPerceptron.fromDouble(perceptron)) 
+                : new NeuralNetWorker(perceptron, null);
+        worker.completedCycles = checkpoint.getCompletedCycles();
+        worker.seed = checkpoint.getSeed();
+        if (precision == Precision.DOUBLE) {
+            worker.bestAccuracy = checkpoint.getBestValidationAccuracy();
+            worker.cyclesWithoutImprovement = checkpoint.getCyclesWithoutImprovement();
+            if (checkpoint.getBestWeightsSnapshot() != null) {
+                worker.bestPerceptron = perceptron.copy();
+                System.arraycopy(checkpoint.getBestWeightsSnapshot(), 0, worker.bestPerceptron.getWeightsBuffer(), 0, worker.bestPerceptron.getWeightsBuffer().length);
+                System.arraycopy(checkpoint.getBestThresholdsSnapshot(), 0, worker.bestPerceptron.getThresholdsBuffer(), 0, worker.bestPerceptron.getThresholdsBuffer().length);
+            }
+            worker.earlyStoppingRestored = true;
+        }
+        worker.enableCheckpoints(checkpointsDirectory, checkpointInterval, checkpointsKept);
+        return worker;
+    }
+    
+    /**
+     * From now on a checkpoint is written in the background every few cycles,
+     * without stopping the training. See resume.
+     * @param checkpointsDirectory The directory where the checkpoints are written
+     * @param checkpointInterval The number of cycles between checkpoints
+     * @param checkpointsKept The number of newest checkpoints kept in the directory
+     */
+    public void enableCheckpoints(String checkpointsDirectory, int checkpointInterval, int checkpointsKept){
+        if (checkpointInterval < 1) {
+            throw new RuntimeException("The checkpoint interval must be at least 1");
+        }
+        this.checkpointsDirectory = Paths.get(checkpointsDirectory);
+        this.checkpointInterval = checkpointInterval;
+        this.checkpointsKept = checkpointsKept;
+    }
+    
+    /**
+     * Chooses how the weights and thresholds are updated. The single precision
+     * perceptron only supports Optimizer.sgd().
+     * @param optimizer The optimizer used from now on
+     */
+    public void setOptimizer(Optimizer optimizer){
+        if (floatPerceptron != null) {
+            if (optimizer != Optimizer.sgd()) {
+                throw new RuntimeException("The single precision perceptron is only trained with plain gradient descent");
+            }
+            return;
+        }
+        perceptron.setOptimizer(optimizer);
+    }
+    
+    /**
+     * The learning rate of each cycle is the alpha constant multiplied by the
+     * factor of the schedule for that cycle. Resumed trainings go on from the
+     * cycle they stopped at.
+     * @param learningRateSchedule The schedule used from now on
+     */
+    public void setLearningRateSchedule(LearningRateSchedule learningRateSchedule){
+        this.learningRateSchedule = learningRateSchedule;
+    }
+    
+    /**
+     * The random numbers used to sample the evaluations and shuffle the 
+     * streamed samples are derived from this seed, so two trainings with the
+     * same seed are the same.
+     * @param seed The seed of the random numbers
+     */
+    public void setSeed(long seed){
+        this.seed = seed;
+    }
+    
+    /**
+     *
+     * @return The number of training cycles done by this worker, including the
+     * ones done before the checkpoint it was resumed from
+     */
+    public int getCompletedCycles(){
+        return completedCycles;
+    }
+    
+    /**
+     *
+     * @param evaluationThreads The number of threads used to count the hits 
+     * of the data sets
+     */
+    public void setEvaluationThreads(int evaluationThreads){
+        this.evaluationThreads = evaluationThreads;
+    }
+    
+    /**
+     * The hits reported after each training cycle can be counted over a random
+     * subset of each data set, which is faster than using the whole data sets.
+     * @param evaluationSampleSize The number of samples of each data set used 
+     * after each training cycle, or 0 to use the whole data sets
+     */
+    public void setEvaluationSampleSize(int evaluationSampleSize){
+        this.evaluationSampleSize = evaluationSampleSize;
+    }
+    
+    /**
+     * From now on the training samples are used in a different random order in
+     * each cycle, and part of them can be kept aside to measure the accuracy of
+     * the perceptron on samples it isn't trained with. The order and the 
+     * validation samples are derived from the seed. Without calling this 
+     * method the samples are used in the order of the data set.
+     * @param validationFraction The fraction of the samples of each digit kept
+     * aside for validation, or 0 to train with all of them
+     * @param stratified true to spread the digits evenly along each cycle, so
+     * every batch has about the same share of each digit
+     */
+    public void setEpochScheduling(double validationFraction, boolean stratified){
+        if (floatPerceptron != null) {
+            throw new RuntimeException("The epoch scheduling only supports double precision perceptrons");
+        }
+        if (validationFraction < 0 || validationFraction >= 1) {
+            throw new RuntimeException("The validation fraction must be between 0 and 1");
+        }
+        this.epochScheduling = true;
+        this.validationFraction = validationFraction;
+        this.stratifiedBatches = stratified;
+    }
+    
+    /**
+     * The training stops before the number of cycles asked for when the 
+     * accuracy on the validation samples hasn't improved for some cycles, and
+     * the perceptron goes back to the weights of its best cycle. It needs a 
+     * validation fraction above 0, see setEpochScheduling. The best accuracy,
+     * its weights and the cycles without improvement are written in the 
+     * checkpoints, so a resumed training stops at the same cycle.
+     * @param patience The number of cycles without improvement before stopping,
+     * or 0 to always train every cycle
+     * @param minimumImprovement The smallest increase of the validation accuracy
+     * counted as an improvement, for instance 0.001
+     */
+    public void setEarlyStopping(int patience, double minimumImprovement){
+        if (patience < 0) {
+            throw new RuntimeException("The patience can't be negative");
+        }
+        this.earlyStoppingPatience = patience;
+        this.minimumImprovement = minimumImprovement;
+    }
+    
+    /**
+     * The listener receives the time, loss and hits of every batch and cycle of
+     * the following trainings. Nothing is measured while there are no listeners.
+     * @param listener The listener that will be added
+     */
+    public void addMetricsListener(MetricsListener listener){
+        metricsListeners.add(listener);
+    }
+    
+    public void removeMetricsListener(MetricsListener listener){
+        metricsListeners.remove(listener);
     }
     
     public void saveNeuralNet(String perceptronName){
-        DataManager.savePercepron(perceptron, perceptronName, getHits(DataManager.loadTestData(), DataManager.loadTestLabels()), getHits(DataManager.loadTrainData(), DataManager.loadTrainLabels()));
+        DataManager.savePercepron(getPerceptron(), perceptronName, getHits(DataManager.loadTestData(), DataManager.loadTestLabels()), getHits(DataManager.loadTrainData(), DataManager.loadTrainLabels()));
     }
     
     public void trainNeuralNet(int numberOfCycles){
+        trainNeuralNet(numberOfCycles, 1);
+    }
+    
+    /**
+     *
+     * @param numberOfCycles The number of times the whole training data set is used
+     * @param batchSize The number of samples used for each update of the perceptron.
+     * With 1 the perceptron is updated after every sample
+     */
+    public void trainNeuralNet(int numberOfCycles, int batchSize){
+        trainNeuralNet(numberOfCycles, batchSize, 1);
+    }
+    
+    /**
+     *
+     * @param numberOfCycles The number of times the whole training data set is used
+     * @param batchSize The number of samples used for each update of the perceptron.
+     * With 1 the perceptron is updated after every sample
+     * @param threads The number of threads each batch is split across. Single
+     * precision perceptrons are trained by the calling thread only
+     */
+    public void trainNeuralNet(int numberOfCycles, int batchSize, int threads){
+        if (floatPerceptron != null) {
+            trainFloatNeuralNet(numberOfCycles, batchSize);
+            return;
+        }
         double[][] trainDataSet = DataManager.loadTrainData();
         double[][] testDataSet = DataManager.loadTestData();
         double[] trainLabels = DataManager.loadTrainLabels();
         double[] testLabels = DataManager.loadTestLabels();
+        double[][] expectedOutputs = expectedOutputs(trainLabels);
+        //The samples trained one by one only visit the pixels that aren't 0
+        SparseDataSet sparseTrainDataSet = batchSize <= 1 ? DataManager.loadTrainDataSparse() : null;
+        EpochScheduler scheduler = epochScheduling ? new EpochScheduler(trainLabels, validationFraction, stratifiedBatches, seed) : null;
+        if (earlyStoppingPatience > 0 && (scheduler == null || scheduler.getValidationSize() == 0)) {
+            throw new RuntimeException("The early stopping needs validation samples, see setEpochScheduling");
+        }
+        int[] trainingIndices = scheduler == null ? null : scheduler.getTrainingIndices();
+        int[] validationIndices = scheduler == null ? null : scheduler.getValidationIndices();
+        int trainingSize = scheduler == null ? trainDataSet.length : scheduler.getTrainingSize();
+        if (!earlyStoppingRestored) {
+            resetEarlyStopping();
+        }
+        earlyStoppingRestored = false;
         
-        for (int i = 0; i < numberOfCycles; i++) {
-            for (int j = 0; j < trainDataSet.length; j++) {
-                perceptron.startTrainingCycle(trainDataSet[j], new double[]{trainLabels[j]});
+        try (ParallelTrainer parallelTrainer = threads > 1 && batchSize > 1 ? new ParallelTrainer(perceptron, threads, batchSize) : null;
+                Evaluator evaluator = new Evaluator(evaluationThreads);
+                Checkpointer checkpointer = newCheckpointer()) {
+            TrainingTelemetry telemetry = startTelemetry(parallelTrainer);
+            for (int cycles = 0; cycles < numberOfCycles; cycles++) {
+                int i = startCycle();
+                int[] order = scheduler == null ? null : scheduler.nextOrder(random);
+                if (telemetry != null) telemetry.startCycle(i);
+                trainSamples(parallelTrainer, trainDataSet, sparseTrainDataSet, expectedOutputs, order, trainingSize, batchSize, telemetry);
+                if (telemetry != null) telemetry.trainingFinished();
+                InferenceModel model = perceptron.toInferenceModel();
+                EvaluationResult trainingData = evaluate(evaluator, model, trainDataSet, trainLabels, trainingIndices, evaluationSampleSize);
+                EvaluationResult testData = evaluate(evaluator, model, testDataSet, testLabels, evaluationSampleSize);
+                EvaluationResult validationData = validationIndices == null || validationIndices.length == 0 ? null 
+                        : evaluator.evaluate(model, trainDataSet, trainLabels, validationIndices, ERROR_RANGE);
+                if (telemetry != null) telemetry.cycleFinished(trainingData, testData);
+                System.out.println("Cycle: " + i + ", Training Data Hits: " + trainingData.getHits() + ", Test Data Hits: " + testData.getHits()
+                        + (evaluationSampleSize > 0 ? " (" + evaluationSampleSize + " samples)" : "")
+                        + (validationData != null ? ", Validation Data Hits: " + validationData.getHits() + "/" + validationData.getSamples() : ""));
+                //Updated before the checkpoint of the cycle is written
+                if (earlyStoppingPatience > 0) {
+                    if (validationData.getAccuracy() > bestAccuracy + minimumImprovement) {
+                        bestAccuracy = validationData.getAccuracy();
+                        cyclesWithoutImprovement = 0;
+                        if (bestPerceptron == null) {
+                            bestPerceptron = perceptron.copy();
+                        } else {
+                            bestPerceptron.setParameters(perceptron);
+                        }
+                    } else {
+                        cyclesWithoutImprovement++;
+                    }
+                }
+                finishCycle(checkpointer);
+                if (earlyStoppingPatience > 0 && cyclesWithoutImprovement >= earlyStoppingPatience) {
+                    System.out.println("Early stopping after cycle " + i + ", the best validation accuracy was " 
+                            + String.format("%.4f", bestAccuracy) + " " + earlyStoppingPatience + " cycles ago");
+                    break;
+                }
+            }
+            //The perceptron keeps the weights of the best cycle, also when it didn't stop early
+            if (bestPerceptron != null && cyclesWithoutImprovement > 0) {
+                perceptron.setParameters(bestPerceptron);
             }
-            int trainingDataHits = getHits(trainDataSet, trainLabels);
-            int testDataHits = getHits(testDataSet, testLabels);
-            System.out.println("Cycle: " + i + ", Training Data Hits: " + trainingDataHits + ", Test Data Hits: " + testDataHits);
+        } finally {
+            perceptron.setTrainingCounters(null);
+            resetEarlyStopping();
+        }
+    }
+    
+    /**
+     * Trains the perceptron reading the training data set from the IDX files 
+     * while it trains, so the data set doesn't need to fit in memory. The 
+     * samples are shuffled inside each chunk. The test data set is loaded to 
+     * report the hits after each cycle.
+     * @param imagesFile The IDX file with the training images
+     * @param labelsFile The IDX file with the training labels
+     * @param numberOfCycles The number of times the whole training data set is used
+     * @param batchSize The number of samples used for each update of the perceptron.
+     * With 1 the perceptron is updated after every sample
+     * @param threads The number of threads each batch is split across
+     * @param chunkSize The number of samples read from the files at once
+     */
+    public void trainNeuralNetStreaming(String imagesFile, String labelsFile, int numberOfCycles, int batchSize, int threads, int chunkSize){
+        SampleSource source = new IdxSampleSource(DataManager.openIdxFile(imagesFile), DataManager.openIdxFile(labelsFile));
+        trainNeuralNetStreaming(source, numberOfCycles, batchSize, threads, chunkSize);
+    }
+    
+    /**
+     *
+     * @param trainSource The training data set, it is read from the beginning in every cycle
+     * @param numberOfCycles The number of times the whole training data set is used
+     * @param batchSize The number of samples used for each update of the perceptron.
+     * With 1 the perceptron is updated after every sample
+     * @param threads The number of threads each batch is split across
+     * @param chunkSize The number of samples read from the data set at once
+     */
+    public void trainNeuralNetStreaming(SampleSource trainSource, int numberOfCycles, int batchSize, int threads, int chunkSize){
+        if (floatPerceptron != null) {
+            throw new RuntimeException("The streaming training only supports double precision perceptrons");
+        }
+        double[][] testDataSet = DataManager.loadTestData();
+        double[] testLabels = DataManager.loadTestLabels();
+        double[][] expectedOutputs = new double[chunkSize][getOutputSize()];
+        
+        try (ParallelTrainer parallelTrainer = threads > 1 && batchSize > 1 ? new ParallelTrainer(perceptron, threads, batchSize) : null;
+                Evaluator evaluator = new Evaluator(evaluationThreads);
+                Checkpointer checkpointer = newCheckpointer()) {
+            TrainingTelemetry telemetry = startTelemetry(parallelTrainer);
+            for (int cycles = 0; cycles < numberOfCycles; cycles++) {
+                int i = startCycle();
+                try {
+                    trainSource.reset();
+                } catch (IOException ex) {
+                    throw new RuntimeException("The training data set can't be read again", ex);
+                }
+                if (telemetry != null) telemetry.startCycle(i);
+                int trainingSamples = 0;
+                try (PrefetchingSampleStream stream = new PrefetchingSampleStream(trainSource, chunkSize, 2, random)) {
+                    SampleChunk chunk;
+                    while ((chunk = stream.next()) != null) {
+                        fillExpectedOutputs(chunk.getLabels(), chunk.getSize(), expectedOutputs);
+                        trainSamples(parallelTrainer, chunk.getInputs(), null, expectedOutputs, null, chunk.getSize(), batchSize, telemetry);
+                        trainingSamples += chunk.getSize();
+                        stream.release(chunk);
+                    }
+                }
+                if (telemetry != null) telemetry.trainingFinished();
+                EvaluationResult testData = evaluate(evaluator, perceptron.toInferenceModel(), testDataSet, testLabels, evaluationSampleSize);
+                if (telemetry != null) telemetry.cycleFinished(null, testData);
+                System.out.println("Cycle: " + i + ", Training Samples: " + trainingSamples + ", Test Data Hits: " + testData.getHits()
+                        + (evaluationSampleSize > 0 ? " (" + evaluationSampleSize + " samples)" : ""));
+                finishCycle(checkpointer);
+            }
+        } finally {
+            perceptron.setTrainingCounters(null);
         }
     }
     
     public void testNeuralNet(){
+        if (floatPerceptron != null) {
+            double[] trainLabels = DataManager.loadTrainLabels();
+            double[] testLabels = DataManager.loadTestLabels();
+            try (Evaluator evaluator = new Evaluator(evaluationThreads)) {
+                int trainingDataHits = evaluator.evaluate(floatPerceptron, DataManager.loadTrainDataFloat(), trainLabels, null, ERROR_RANGE).getHits();
+                int testDataHits = evaluator.evaluate(floatPerceptron, DataManager.loadTestDataFloat(), testLabels, null, ERROR_RANGE).getHits();
+                System.out.println("Training Data Hits: " + trainingDataHits + ", Test Data Hits: " + testDataHits);
+            }
+            return;
+        }
         int trainingDataHits = getHits(DataManager.loadTrainData(), DataManager.loadTrainLabels());
         int testDataHits = getHits(DataManager.loadTestData(), DataManager.loadTestLabels());
         System.out.println("Training Data Hits: " + trainingDataHits + ", Test Data Hits: " + testDataHits);
     }
     
-    private int getHits(double[][] inputMatrix, double[] output){
-        int hits = 0;
-        for (int i = 0; i < inputMatrix.length; i++) {
-            if(perceptron.testNeuralNet(inputMatrix[i], new double[]{output[i]}, 0.03)) hits++;
+    /**
+     * Spreads the test data set through several saved perceptrons at once, and
+     * prints the hits of their combined outputs, the hits of each one and how
+     * often they agree.
+     * @param combination How the outputs of the perceptrons are combined
+     * @param perceptronNames The names of the saved perceptrons, all with the
+     * same input and output sizes
+     * @return The results of the ensemble and of each perceptron
+     */
+    public static EnsembleEvaluation testEnsemble(EnsembleModel.Combination combination, String... perceptronNames){
+        EnsembleModel ensemble = DataManager.loadEnsemble(combination, perceptronNames);
+        try (Evaluator evaluator = new Evaluator(Runtime.getRuntime().availableProcessors())) {
+            EnsembleEvaluation evaluation = evaluator.evaluate(ensemble, DataManager.loadTestData(), DataManager.loadTestLabels(), null, ERROR_RANGE);
+            System.out.print(evaluation);
+            return evaluation;
+        }
+    }
+    
+    /**
+     * Quantizes the perceptron to 8 bit integers and prints the hits of the 
+     * quantized model on the test data set, fed with the raw pixels, next to the
+     * hits of the perceptron.
+     * @param calibrationSamples The number of random training samples used to 
+     * measure the neurons of the hidden layers
+     * @return The quantized model
+     */
+    public QuantizedModel calibrateQuantization(int calibrationSamples){
+        MultilayerPerceptron doublePerceptron = getPerceptron();
+        double[][] trainDataSet = DataManager.loadTrainData();
+        int[] calibrationIndices = sampleIndices(trainDataSet.length, calibrationSamples);
+        double[][] calibrationInputs = trainDataSet;
+        if (calibrationIndices != null) {
+            calibrationInputs = new double[calibrationIndices.length][];
+            for (int i = 0; i < calibrationIndices.length; i++) {
+                calibrationInputs[i] = trainDataSet[calibrationIndices[i]];
+            }
+        }
+        QuantizedModel quantizedModel = QuantizedModel.quantize(doublePerceptron, calibrationInputs);
+        
+        double[] testLabels = DataManager.loadTestLabels();
+        try (Evaluator evaluator = new Evaluator(evaluationThreads)) {
+            EvaluationResult doubleResult = evaluator.evaluate(doublePerceptron.toInferenceModel(), DataManager.loadTestData(), testLabels, ERROR_RANGE);
+            EvaluationResult quantizedResult = evaluator.evaluate(quantizedModel, DataManager.openTestImages(), testLabels, null, ERROR_RANGE);
+            System.out.println("Test Data Hits: " + doubleResult.getHits() + ", Quantized Test Data Hits: " + quantizedResult.getHits()
+                    + ", Accuracy Delta: " + String.format("%+.4f", quantizedResult.getAccuracy() - doubleResult.getAccuracy()));
+            System.out.println("Parameters Size: " + 8L * (doublePerceptron.getWeightsBuffer().length + doublePerceptron.getThresholdsBuffer().length)
+                    + " bytes, Quantized Parameters Size: " + quantizedModel.getParametersSize() + " bytes");
+        }
+        return quantizedModel;
+    }
+    
+    /**
+     * Removes the weights with the smallest absolute value from every layer 
+     * but the output one, trains the pruned perceptron a few cycles keeping 
+     * the removed weights at 0, and prints the hits and the time per sample of
+     * the dense perceptron and the sparse model on the test data set. The 
+     * perceptron of this worker isn't modified.
+     * @param sparsity The fraction of the weights removed, for instance 0.9
+     * @param fineTuningCycles The number of cycles trained after pruning, 0 to
+     * keep the pruned weights as they are
+     * @param batchSize The number of samples used for each update while fine tuning
+     * @return The sparse model
+     */
+    public SparseInferenceModel pruneWeights(double sparsity, int fineTuningCycles, int batchSize){
+        MultilayerPerceptron pruned = getPerceptron().copy();
+        int[] prunedWeights = MagnitudePruning.prunedWeights(pruned, 
+                MagnitudePruning.hiddenLayersSparsities(pruned.getAllLayersSize().length, sparsity));
+        MagnitudePruning.apply(pruned.getWeightsBuffer(), prunedWeights);
+        if (fineTuningCycles > 0) {
+            double[][] trainDataSet = DataManager.loadTrainData();
+            double[][] expectedOutputs = expectedOutputs(DataManager.loadTrainLabels());
+            EpochScheduler scheduler = new EpochScheduler(DataManager.loadTrainLabels(), 0, false, seed);
+            int step = Math.max(1, batchSize);
+            for (int cycle = 0; cycle < fineTuningCycles; cycle++) {
+                random.setSeed(seed + cycle);
+                int[] order = scheduler.nextOrder(random);
+                for (int start = 0; start < order.length; start += step) {
+                    pruned.trainBatch(trainDataSet, expectedOutputs, order, start, Math.min(start + step, order.length), step);
+                    //The update gives the removed weights a value again
+                    MagnitudePruning.apply(pruned.getWeightsBuffer(), prunedWeights);
+                }
+            }
+        }
+        SparseInferenceModel sparseModel = SparseInferenceModel.of(pruned);
+        
+        double[][] testDataSet = DataManager.loadTestData();
+        double[] testLabels = DataManager.loadTestLabels();
+        MultilayerPerceptron doublePerceptron = getPerceptron();
+        InferenceModel denseModel = doublePerceptron.toInferenceModel();
+        try (Evaluator evaluator = new Evaluator(evaluationThreads)) {
+            EvaluationResult denseResult = evaluator.evaluate(denseModel, testDataSet, testLabels, ERROR_RANGE);
+            EvaluationResult sparseResult = evaluator.evaluate(sparseModel, testDataSet, testLabels, null, ERROR_RANGE);
+            System.out.println("Test Data Hits: " + denseResult.getHits() + ", Pruned Test Data Hits: " + sparseResult.getHits()
+                    + ", Accuracy Delta: " + String.format("%+.4f", sparseResult.getAccuracy() - denseResult.getAccuracy()));
+        }
+        StringBuilder sparsities = new StringBuilder();
+        for (int i = 1; i < pruned.getAllLayersSize().length; i++) {
+            sparsities.append(i > 1 ? ", " : "").append(String.format("%.4f", sparseModel.getSparsity(i)));
+        }
+        System.out.println("Sparsity Per Layer: " + sparsities + ", Parameters Size: " 
+                + 8L * (doublePerceptron.getWeightsBuffer().length + doublePerceptron.getThresholdsBuffer().length)
+                + " bytes, Pruned Parameters Size: " + sparseModel.getParametersSize() + " bytes");
+        InferenceWorkspace denseWorkspace = denseModel.newWorkspace();
+        InferenceWorkspace sparseWorkspace = sparseModel.newWorkspace();
+        double[] outputs = new double[sparseModel.getOutputSize()];
+        long denseNanos = Long.MAX_VALUE;
+        long sparseNanos = Long.MAX_VALUE;
+        //The best of several rounds, the first ones warm up the compiler
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (double[] inputs : testDataSet) {
+                denseModel.predict(inputs, outputs, denseWorkspace);
+            }
+            denseNanos = Math.min(denseNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (double[] inputs : testDataSet) {
+                sparseModel.predict(inputs, outputs, sparseWorkspace);
+            }
+            sparseNanos = Math.min(sparseNanos, System.nanoTime() - start);
+        }
+        System.out.println(String.format("Dense Latency: %.2f us/sample, Pruned Latency: %.2f us/sample, Speed-up: %.2fx",
+                denseNanos / 1e3 / testDataSet.length, sparseNanos / 1e3 / testDataSet.length, denseNanos / (double) sparseNanos));
+        return sparseModel;
+    }
+    
+    private void trainFloatNeuralNet(int numberOfCycles, int batchSize){
+        float[][] trainDataSet = DataManager.loadTrainDataFloat();
+        float[][] testDataSet = DataManager.loadTestDataFloat();
+        double[] trainLabels = DataManager.loadTrainLabels();
+        double[] testLabels = DataManager.loadTestLabels();
+        float[][] expectedOutputs = new float[trainLabels.length][getOutputSize()];
+        for (int j = 0; j < trainLabels.length; j++) {
+            expectedOutputs[j][Evaluator.labelClass(trainLabels[j])] = 1;
+        }
+        
+        try (Evaluator evaluator = new Evaluator(evaluationThreads);
+                Checkpointer checkpointer = newCheckpointer()) {
+            TrainingTelemetry telemetry = startTelemetry(null);
+            int step = telemetry == null ? trainDataSet.length : Math.max(1, batchSize);
+            for (int cycles = 0; cycles < numberOfCycles; cycles++) {
+                int i = startCycle();
+                if (telemetry != null) telemetry.startCycle(i);
+                for (int start = 0; start < trainDataSet.length; start += step) {
+                    floatPerceptron.trainBatch(trainDataSet, expectedOutputs, start, Math.min(start + step, trainDataSet.length), batchSize);
+                    if (telemetry != null) telemetry.batchFinished();
+                }
+                if (telemetry != null) telemetry.trainingFinished();
+                EvaluationResult trainingData = evaluator.evaluate(floatPerceptron, trainDataSet, trainLabels, 
+                        sampleIndices(trainDataSet.length, evaluationSampleSize), ERROR_RANGE);
+                EvaluationResult testData = evaluator.evaluate(floatPerceptron, testDataSet, testLabels, 
+                        sampleIndices(testDataSet.length, evaluationSampleSize), ERROR_RANGE);
+                if (telemetry != null) telemetry.cycleFinished(trainingData, testData);
+                System.out.println("Cycle: " + i + ", Training Data Hits: " + trainingData.getHits() + ", Test Data Hits: " + testData.getHits()
+                        + (evaluationSampleSize > 0 ? " (" + evaluationSampleSize + " samples)" : ""));
+                finishCycle(checkpointer);
+            }
+        } finally {
+            floatPerceptron.setTrainingCounters(null);
+        }
+    }
+    
+    /**
+     * Seeds the random numbers and sets the learning rate of the cycle that starts.
+     * @return The number of the cycle
+     */
+    private int startCycle(){
+        random.setSeed(seed + completedCycles);
+        double learningRateScale = learningRateSchedule.getFactor(completedCycles);
+        if (floatPerceptron != null) {
+            floatPerceptron.setLearningRateScale(learningRateScale);
+        } else {
+            perceptron.setLearningRateScale(learningRateScale);
+        }
+        return completedCycles;
+    }
+    
+    private void finishCycle(Checkpointer checkpointer){
+        completedCycles++;
+        if (checkpointer != null && completedCycles % checkpointInterval == 0) {
+            Map<String, double[]> optimizerState = floatPerceptron != null ? Collections.emptyMap() : perceptron.getOptimizerState();
+            checkpointer.submit(new Checkpoint(getPerceptron(), completedCycles, seed, optimizerState, 
+                    bestAccuracy, cyclesWithoutImprovement, bestPerceptron));
+        }
+    }
+    
+    private void resetEarlyStopping(){
+        bestPerceptron = null;
+        bestAccuracy = Double.NEGATIVE_INFINITY;
+        cyclesWithoutImprovement = 0;
+    }
+    
+    private Checkpointer newCheckpointer(){
+        return checkpointsDirectory == null ? null : new Checkpointer(checkpointsDirectory, checkpointsKept);
+    }
+    
+    /**
+     * Gives the counters of a new telemetry to whatever trains the perceptron,
+     * or returns null if there are no listeners.
+     */
+    private TrainingTelemetry startTelemetry(ParallelTrainer parallelTrainer){
+        if (metricsListeners.isEmpty()) return null;
+        TrainingTelemetry telemetry = new TrainingTelemetry(new ArrayList<>(metricsListeners));
+        if (floatPerceptron != null) {
+            floatPerceptron.setTrainingCounters(telemetry.getBatchCounters());
+        } else if (parallelTrainer != null) {
+            parallelTrainer.setTrainingCounters(telemetry.getBatchCounters());
+        } else {
+            perceptron.setTrainingCounters(telemetry.getBatchCounters());
+        }
+        return telemetry;
+    }
+    
+    /**
+     * Trains with the first size samples of order, or of the arrays if order is null.
+     * sparseInputs, if it isn't null, holds the same samples as inputs and is
+     * used instead of them when the samples are trained one by one.
+     */
+    private void trainSamples(ParallelTrainer parallelTrainer, double[][] inputs, SparseDataSet sparseInputs, double[][] expectedOutputs, int[] order, int size, int batchSize, TrainingTelemetry telemetry){
+        if (telemetry == null) {
+            trainRange(parallelTrainer, inputs, sparseInputs, expectedOutputs, order, 0, size, batchSize);
+            return;
+        }
+        //One range per update, so every batch is reported
+        int step = Math.max(1, batchSize);
+        for (int start = 0; start < size; start += step) {
+            trainRange(parallelTrainer, inputs, sparseInputs, expectedOutputs, order, start, Math.min(start + step, size), batchSize);
+            telemetry.batchFinished();
+        }
+    }
+    
+    private void trainRange(ParallelTrainer parallelTrainer, double[][] inputs, SparseDataSet sparseInputs, double[][] expectedOutputs, int[] order, int from, int to, int batchSize){
+        if (parallelTrainer != null) {
+            parallelTrainer.trainBatch(inputs, expectedOutputs, order, from, to);
+        } else if (batchSize > 1) {
+            perceptron.trainBatch(inputs, expectedOutputs, order, from, to, batchSize);
+        } else {
+            for (int j = from; j < to; j++) {
+                int sample = order == null ? j : order[j];
+                if (sparseInputs != null) {
+                    perceptron.startTrainingCycle(sparseInputs, sample, expectedOutputs[sample]);
+                } else {
+                    perceptron.startTrainingCycle(inputs[sample], expectedOutputs[sample]);
+                }
+            }
+        }
+    }
+    
+    private MultilayerPerceptron getPerceptron(){
+        return floatPerceptron != null ? floatPerceptron.toDouble() : perceptron;
+    }
+    
+    private int getOutputSize(){
+        int[] layersSize = floatPerceptron != null ? floatPerceptron.getAllLayersSize() : perceptron.getAllLayersSize();
+        return layersSize[layersSize.length - 1];
+    }
+    
+    private double[][] expectedOutputs(double[] labels){
+        double[][] expectedOutputs = new double[labels.length][getOutputSize()];
+        fillExpectedOutputs(labels, labels.length, expectedOutputs);
+        return expectedOutputs;
+    }
+    
+    private void fillExpectedOutputs(double[] labels, int size, double[][] expectedOutputs){
+        //A single output has to match the label, several outputs are one per digit
+        for (int j = 0; j < size; j++) {
+            if (expectedOutputs[j].length == 1) {
+                expectedOutputs[j][0] = labels[j];
+            } else {
+                Arrays.fill(expectedOutputs[j], 0);
+                expectedOutputs[j][Evaluator.labelClass(labels[j])] = 1;
+            }
+        }
+    }
+    
+    int getHits(double[][] inputMatrix, double[] output){
+        try (Evaluator evaluator = new Evaluator(evaluationThreads)) {
+            return evaluate(evaluator, getPerceptron().toInferenceModel(), inputMatrix, output, 0).getHits();
+        }
+    }
+    
+    private EvaluationResult evaluate(Evaluator evaluator, InferenceModel model, double[][] inputMatrix, double[] output, int sampleSize){
+        if(sampleSize <= 0 || sampleSize >= inputMatrix.length){
+            return evaluator.evaluate(model, inputMatrix, output, ERROR_RANGE);
+        }
+        return evaluator.evaluate(model, inputMatrix, output, sampleIndices(inputMatrix.length, sampleSize), ERROR_RANGE);
+    }
+    
+    /**
+     * Same as evaluate, but only with the samples of indices, or with all of 
+     * them if indices is null.
+     */
+    private EvaluationResult evaluate(Evaluator evaluator, InferenceModel model, double[][] inputMatrix, double[] output, int[] indices, int sampleSize){
+        if(indices == null){
+            return evaluate(evaluator, model, inputMatrix, output, sampleSize);
+        }
+        int[] sample = sampleIndices(indices.length, sampleSize);
+        if(sample != null){
+            for (int i = 0; i < sample.length; i++) {
+                sample[i] = indices[sample[i]];
+            }
+        }
+        return evaluator.evaluate(model, inputMatrix, output, sample == null ? indices : sample, ERROR_RANGE);
+    }
+    
+    private int[] sampleIndices(int dataSetSize, int sampleSize){
+        if(sampleSize <= 0 || sampleSize >= dataSetSize){
+            return null;
+        }
+        //Partial Fisher-Yates shuffle, the first sampleSize positions are the sample
+        int[] indices = new int[dataSetSize];
+        for (int i = 0; i < dataSetSize; i++) {
+            indices[i] = i;
+        }
+        for (int i = 0; i < sampleSize; i++) {
+            int chosen = i + random.nextInt(dataSetSize - i);
+            int swap = indices[i];
+            indices[i] = indices[chosen];
+            indices[chosen] = swap;
         }
-        return hits;
+        int[] sample = new int[sampleSize];
+        System.arraycopy(indices, 0, sample, 0, sampleSize);
+        return sample;
     }
 }
@@ -0,0 +1,211 @@
+package handwrittennumberidentifier;
+
+/**
+ * The rule used to move the weights and thresholds along their gradients. An
+ * optimizer only holds its settings; the values it remembers between updates
+ * are kept by the perceptron in buffers laid out like its weights and
+ * thresholds, and each update reads the gradient, updates those buffers and
+ * moves the parameter in a single pass. A single optimizer can be shared by
+ * any number of perceptrons.
+ * @author Pablo Alonso
+ */
+public abstract class Optimizer {
+
+    private static final Optimizer SGD = new Sgd();
+
+    private Optimizer(){
+    }
+
+    /**
+     * The plain gradient descent: parameter -= learningRate * gradient. It
+     * keeps nothing between updates.
+     * @return The default optimizer of the perceptrons
+     */
+    public static Optimizer sgd(){
+        return SGD;
+    }
+
+    /**
+     * velocity = momentum * velocity + gradient,
+     * parameter -= learningRate * velocity
+     * @param momentum The part of the previous velocity that is kept, usually 0.9
+     * @return A new optimizer
+     */
+    public static Optimizer momentum(double momentum){
+        return new Momentum(momentum, false);
+    }
+
+    /**
+     * Same as momentum, but the parameter is moved as if the velocity had
+     * already been applied: parameter -= learningRate * (gradient + momentum * velocity)
+     * @param momentum The part of the previous velocity that is kept, usually 0.9
+     * @return A new optimizer
+     */
+    public static Optimizer nesterov(double momentum){
+        return new Momentum(momentum, true);
+    }
+
+    /**
+     * Adam with the usual settings: beta1 = 0.9, beta2 = 0.999 and epsilon = 1e-8.
+     * Its learning rate is usually much smaller than the one of sgd, about 0.001.
+     * @return A new optimizer
+     */
+    public static Optimizer adam(){
+        return adam(0.9, 0.999, 1e-8);
+    }
+
+    /**
+     * Each parameter gets its own learning rate, from the running means of its
+     * gradients and of their squares:
+     * m = beta1 * m + (1 - beta1) * gradient,
+     * v = beta2 * v + (1 - beta2) * gradient^2,
+     * parameter -= learningRate * sqrt(1 - beta2^t) / (1 - beta1^t) * m / (sqrt(v) + epsilon)
+     * where t is the number of updates.
+     * @param beta1 The decay of the mean of the gradients
+     * @param beta2 The decay of the mean of the squared gradients
+     * @param epsilon Added to the denominator to avoid dividing by 0
+     * @return A new optimizer
+     */
+    public static Optimizer adam(double beta1, double beta2, double epsilon){
+        return new Adam(beta1, beta2, epsilon);
+    }
+
+    /**
+     *
+     * @return The names of the buffers kept between updates, each of them the
+     * size of the parameters
+     */
+    abstract String[] getStateNames();
+
+    /**
+     * Called once per update, before updating any layer.
+     * @param learningRate The learning rate of the perceptron
+     * @param step The number of this update, starting at 1
+     * @return The learning rate passed to update
+     */
+    double stepLearningRate(double learningRate, long step){
+        return learningRate;
+    }
+
+    /**
+     * Updates the parameters [parametersOffset, parametersOffset + length)
+     * with the gradient gradientScale * gradients[gradientsOffset + i]. The
+     * state buffers are read at the same positions as the parameters.
+     */
+    abstract void update(double[] parameters, int parametersOffset, double[] gradients, int gradientsOffset, double gradientScale,
+            int length, double[][] state, double learningRate);
+
+    private static final class Sgd extends Optimizer {
+
+        @Override
+        String[] getStateNames(){
+            return new String[0];
+        }
+
+        @Override
+        void update(double[] parameters, int parametersOffset, double[] gradients, int gradientsOffset, double gradientScale,
+                int length, double[][] state, double learningRate){
+            Kernels.axpy(-learningRate * gradientScale, gradients, gradientsOffset, parameters, parametersOffset, length);
+        }
+
+        @Override
+        public String toString(){
+            return "SGD";
+        }
+    }
+
+    private static final class Momentum extends Optimizer {
+
+        private final double momentum;
+        private final boolean nesterov;
+
+        private Momentum(double momentum, boolean nesterov){
+            if(momentum < 0 || momentum >= 1){
+                throw new RuntimeException("The momentum must be in [0, 1)");
+            }
+            this.momentum = momentum;
+            this.nesterov = nesterov;
+        }
+
+        @Override
+        String[] getStateNames(){
+            return new String[]{"velocity"};
+        }
+
+        @Override
+        void update(double[] parameters, int parametersOffset, double[] gradients, int gradientsOffset, double gradientScale,
+                int length, double[][] state, double learningRate){
+            double[] velocities = state[0];
+            if (nesterov) {
+                for (int i = 0; i < length; i++) {
+                    double gradient = gradientScale * gradients[gradientsOffset + i];
+                    double velocity = momentum * velocities[parametersOffset + i] + gradient;
+                    velocities[parametersOffset + i] = velocity;
+                    parameters[parametersOffset + i] -= learningRate * (gradient + momentum * velocity);
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    double velocity = momentum * velocities[parametersOffset + i] + gradientScale * gradients[gradientsOffset + i];
+                    velocities[parametersOffset + i] = velocity;
+                    parameters[parametersOffset + i] -= learningRate * velocity;
+                }
+            }
+        }
+
+        @Override
+        public String toString(){
+            return (nesterov ? "Nesterov" : "Momentum") + "(" + momentum + ")";
+        }
+    }
+
+    private static final class Adam extends Optimizer {
+
+        private final double beta1;
+        private final double beta2;
+        private final double epsilon;
+
+        private Adam(double beta1, double beta2, double epsilon){
+            if(beta1 < 0 || beta1 >= 1 || beta2 < 0 || beta2 >= 1){
+                throw new RuntimeException("The betas of Adam must be in [0, 1)");
+            }
+            if(epsilon <= 0){
+                throw new RuntimeException("The epsilon of Adam must be positive");
+            }
+            this.beta1 = beta1;
+            this.beta2 = beta2;
+            this.epsilon = epsilon;
+        }
+
+        @Override
+        String[] getStateNames(){
+            return new String[]{"mean", "variance"};
+        }
+
+        @Override
+        double stepLearningRate(double learningRate, long step){
+            //The bias correction of both means is folded into the learning rate
+            return learningRate * Math.sqrt(1 - Math.pow(beta2, step)) / (1 - Math.pow(beta1, step));
+        }
+
+        @Override
+        void update(double[] parameters, int parametersOffset, double[] gradients, int gradientsOffset, double gradientScale,
+                int length, double[][] state, double learningRate){
+            double[] means = state[0];
+            double[] variances = state[1];
+            for (int i = 0; i < length; i++) {
+                int p = parametersOffset + i;
+                double gradient = gradientScale * gradients[gradientsOffset + i];
+                double mean = beta1 * means[p] + (1 - beta1) * gradient;
+                double variance = beta2 * variances[p] + (1 - beta2) * gradient * gradient;
+                means[p] = mean;
+                variances[p] = variance;
+                parameters[p] -= learningRate * mean / (Math.sqrt(variance) + epsilon);
+            }
+        }
+
+        @Override
+        public String toString(){
+            return "Adam(" + beta1 + ", " + beta2 + ", " + epsilon + ")";
+        }
+    }
+}
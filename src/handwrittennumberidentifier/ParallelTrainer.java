@@ -0,0 +1,195 @@
+package handwrittennumberidentifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains a perceptron with mini-batches split across a fixed pool of threads.
+ * Every worker spreads its share of the batch with its own workspace, and the
+ * gradients of all the workers are added together with a tree reduction, 
+ * always in the same order, before the perceptron is updated. For a given 
+ * number of threads the result doesn't depend on how the threads are scheduled.
+ * @author Pablo Alonso
+ */
+public class ParallelTrainer implements AutoCloseable {
+    
+    private final MultilayerPerceptron perceptron;
+    private final ExecutorService executor;
+    private final BatchWorkspace[] workspaces;
+    private final int batchSize;
+    private TrainingCounters trainingCounters;
+    
+    /**
+     *
+     * @param perceptron The perceptron that will be trained
+     * @param threads The number of worker threads
+     * @param batchSize The number of samples used for each update of the perceptron
+     */
+    public ParallelTrainer(MultilayerPerceptron perceptron, int threads, int batchSize){
+        if(threads < 1){
+            throw new RuntimeException("The number of threads must be at least 1");
+        }
+        if(batchSize < 1){
+            throw new RuntimeException("The batch size must be at least 1");
+        }
+        this.perceptron = perceptron;
+        this.batchSize = batchSize;
+        int workers = Math.min(threads, batchSize);
+        int rowsPerWorker = (batchSize + workers - 1) / workers;
+        workspaces = new BatchWorkspace[workers];
+        for (int i = 0; i < workers; i++) {
+            workspaces[i] = perceptron.createBatchWorkspace(rowsPerWorker);
+        }
+        executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "ParallelTrainer-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Walks all the samples once, in order, updating the perceptron once per batch
+     * with the mean gradient of the batch.
+     * @param inputs The inputs used in the training phase, one row per sample
+     * @param expectedOutputs The outputs used in the training phase, one row per sample
+     */
+    public void trainBatch(double[][] inputs, double[][] expectedOutputs){
+        if(inputs.length != expectedOutputs.length){
+            throw new RuntimeException("The number of inputs passed as parameter is different "
+                    + "from the number of expected outputs");
+        }
+        trainBatch(inputs, expectedOutputs, 0, inputs.length);
+    }
+    
+    /**
+     * Same as trainBatch, but only the samples in the range [from, to) are used.
+     * @param inputs The inputs used in the training phase, one row per sample
+     * @param expectedOutputs The outputs used in the training phase, one row per sample
+     * @param from The first sample used
+     * @param to The sample after the last one used
+     */
+    public void trainBatch(double[][] inputs, double[][] expectedOutputs, int from, int to){
+        trainBatch(inputs, expectedOutputs, null, from, to);
+    }
+    
+    /**
+     * Same as trainBatch, but the samples are taken in the order given by an
+     * array of indices, so the data set can be shuffled without copying it.
+     * @param inputs The inputs used in the training phase, one row per sample
+     * @param expectedOutputs The outputs used in the training phase, one row per sample
+     * @param order The indices of the samples in the order they are used, or
+     * null to use them in the order of the arrays
+     * @param from The first position of order used
+     * @param to The position after the last one used
+     */
+    public void trainBatch(double[][] inputs, double[][] expectedOutputs, int[] order, int from, int to){
+        for (int start = from; start < to; start += batchSize) {
+            int end = Math.min(start + batchSize, to);
+            int parts = calculateGradients(inputs, expectedOutputs, order, start, end);
+            long update = System.nanoTime();
+            if (trainingCounters != null) countBatch(parts, end - start);
+            reduceGradients(parts);
+            perceptron.applyGradients(workspaces[0].weightGradients, workspaces[0].thresholdGradients, 1.0 / (end - start));
+            if (trainingCounters != null) trainingCounters.updateNanos += System.nanoTime() - update;
+        }
+    }
+    
+    /**
+     * Stops the worker threads. The trainer can't be used afterwards.
+     */
+    @Override
+    public void close(){
+        executor.shutdown();
+    }
+    
+    /**
+     * From now on the time and loss of every batch are added to the counters,
+     * or nothing is measured if they are null. The time of the forward and 
+     * delta phases is the one of the slowest worker, and the reduction of the
+     * gradients is counted as part of the update.
+     */
+    void setTrainingCounters(TrainingCounters trainingCounters){
+        this.trainingCounters = trainingCounters;
+    }
+    
+    private void countBatch(int parts, int rows){
+        long forwardNanos = 0;
+        long deltaNanos = 0;
+        for (int i = 0; i < parts; i++) {
+            forwardNanos = Math.max(forwardNanos, workspaces[i].forwardNanos);
+            deltaNanos = Math.max(deltaNanos, workspaces[i].deltaNanos);
+            trainingCounters.lossSum += workspaces[i].lossSum;
+        }
+        trainingCounters.samples += rows;
+        trainingCounters.forwardNanos += forwardNanos;
+        trainingCounters.deltaNanos += deltaNanos;
+    }
+    
+    private int calculateGradients(double[][] inputs, double[][] expectedOutputs, int[] order, int start, int end){
+        int rows = end - start;
+        int parts = Math.min(workspaces.length, rows);
+        int rowsPerPart = (rows + parts - 1) / parts;
+        List<Callable<Void>> tasks = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            final BatchWorkspace workspace = workspaces[i];
+            final int from = start + i * rowsPerPart;
+            final int to = Math.min(from + rowsPerPart, end);
+            tasks.add(() -> {
+                perceptron.calculateBatchGradients(workspace, inputs, expectedOutputs, order, from, to);
+                return null;
+            });
+        }
+        runAll(tasks);
+        return parts;
+    }
+    
+    private void reduceGradients(int parts){
+        //Pairwise tree: 0+=1, 2+=3... then 0+=2, 4+=6... until everything is in 0
+        for (int stride = 1; stride < parts; stride *= 2) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i + stride < parts; i += 2 * stride) {
+                final BatchWorkspace target = workspaces[i];
+                final BatchWorkspace source = workspaces[i + stride];
+                tasks.add(() -> {
+                    add(source.weightGradients, target.weightGradients);
+                    add(source.thresholdGradients, target.thresholdGradients);
+                    return null;
+                });
+            }
+            runAll(tasks);
+        }
+    }
+    
+    private static void add(double[] source, double[] target){
+        for (int i = 0; i < target.length; i++) {
+            target[i] += source[i];
+        }
+    }
+    
+    private void runAll(List<Callable<Void>> tasks){
+        if(tasks.size() == 1){
+            try {
+                tasks.get(0).call();
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            return;
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof RuntimeException) throw (RuntimeException) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+}
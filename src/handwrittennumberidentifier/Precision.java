@@ -0,0 +1,18 @@
+package handwrittennumberidentifier;
+
+/**
+ * The type used to store the parameters, neurons and data sets of a perceptron.
+ * @author Pablo Alonso
+ */
+public enum Precision {
+    
+    /**
+     * MultilayerPerceptron and double data sets.
+     */
+    DOUBLE,
+    
+    /**
+     * FloatMultilayerPerceptron and float data sets, half the memory of DOUBLE.
+     */
+    FLOAT
+}
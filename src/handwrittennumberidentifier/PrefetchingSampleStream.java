@@ -0,0 +1,132 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Walks a SampleSource once, chunk by chunk, reading and shuffling the next 
+ * chunks on a background thread while the current one is being used. 
+ * Only a fixed number of chunks exist, so the memory used doesn't depend on 
+ * the size of the data set. When all the chunks are waiting to be used the 
+ * reader stops until one of them is released.
+ * The samples are shuffled inside each chunk, by swapping rows, never copying them.
+ * @author Pablo Alonso
+ */
+public class PrefetchingSampleStream implements AutoCloseable {
+    
+    //Marks the end of the data set in the queue of ready chunks
+    private static final SampleChunk END = new SampleChunk(0, 0);
+    
+    private final SampleSource source;
+    private final BlockingQueue<SampleChunk> freeChunks;
+    private final BlockingQueue<SampleChunk> readyChunks;
+    private final Random random;
+    private final Thread reader;
+    private volatile Throwable readerError;
+    private volatile boolean closed = false;
+    private boolean finished = false;
+    
+    /**
+     *
+     * @param source The data set, it is read from its current position to the end
+     * @param chunkSize The number of samples of each chunk
+     * @param numberOfChunks The number of chunks, at least 2: one being used 
+     * while the next one is read
+     * @param random Used to shuffle the samples of each chunk, or null to keep 
+     * them in order
+     */
+    public PrefetchingSampleStream(SampleSource source, int chunkSize, int numberOfChunks, Random random){
+        if(chunkSize < 1){
+            throw new RuntimeException("The chunk size must be at least 1");
+        }
+        if(numberOfChunks < 2){
+            throw new RuntimeException("At least 2 chunks are needed to read while training");
+        }
+        this.source = source;
+        this.random = random;
+        freeChunks = new ArrayBlockingQueue<>(numberOfChunks);
+        //One extra place for the end mark
+        readyChunks = new ArrayBlockingQueue<>(numberOfChunks + 1);
+        for (int i = 0; i < numberOfChunks; i++) {
+            freeChunks.add(new SampleChunk(chunkSize, source.getInputSize()));
+        }
+        reader = new Thread(this::readChunks, "PrefetchingSampleStream-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    /**
+     * Waits until the next chunk is ready. It must be released once it has been used.
+     * @return The next chunk, or null when the end of the data set has been reached
+     */
+    public SampleChunk next(){
+        if(finished) return null;
+        try {
+            SampleChunk chunk = readyChunks.take();
+            if(chunk == END){
+                finished = true;
+                if(readerError != null){
+                    throw new RuntimeException("Error reading the data set", readerError);
+                }
+                return null;
+            }
+            return chunk;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Gives back a chunk returned by next, so the reader can fill it again.
+     * @param chunk The chunk that is no longer used
+     */
+    public void release(SampleChunk chunk){
+        freeChunks.add(chunk);
+    }
+    
+    /**
+     * Stops the reader, even if the end of the data set hasn't been reached.
+     */
+    @Override
+    public void close(){
+        closed = true;
+        reader.interrupt();
+        try {
+            reader.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void readChunks(){
+        try {
+            while (!closed) {
+                SampleChunk chunk = freeChunks.take();
+                chunk.size = source.read(chunk.inputs, chunk.labels, chunk.labels.length);
+                if(chunk.size == 0) break;
+                if(random != null) shuffle(chunk);
+                readyChunks.put(chunk);
+            }
+        } catch (InterruptedException ex) {
+            //Closed while waiting for a free chunk
+        } catch (IOException | RuntimeException ex) {
+            readerError = ex;
+        }
+        readyChunks.offer(END);
+    }
+    
+    private void shuffle(SampleChunk chunk){
+        for (int i = chunk.size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            double[] input = chunk.inputs[i];
+            chunk.inputs[i] = chunk.inputs[j];
+            chunk.inputs[j] = input;
+            double label = chunk.labels[i];
+            chunk.labels[i] = chunk.labels[j];
+            chunk.labels[j] = label;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package handwrittennumberidentifier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only version of a MultilayerPerceptron whose weights are stored as 8 bit
+ * integers, a quarter of the memory of the float weights and an eighth of the
+ * double ones. It is fed with the raw pixels of the IDX files, from 0 to 255.
+ * The weights of each layer are quantized symmetrically with their own scale,
+ * and the neurons of each layer are quantized from 0 to 255 with their own scale
+ * and zero point, measured on a calibration data set. The products of each layer
+ * are accumulated as integers; only the summation of each neuron is scaled back
+ * to apply the activation function, which is then quantized for the next layer.
+ * The outputs are given as doubles.
+ * Like InferenceModel, a single instance can be shared by any number of threads.
+ * @author Pablo Alonso
+ */
+public final class QuantizedModel {
+
+    private static final int MAX_WEIGHT = 127;
+    private static final int MAX_NEURON = 255;
+
+    private final int[] layerSizes;
+    private final int[] weightsOffsets;
+    private final int[] thresholdsOffsets;
+    private final byte[] weights;
+    //Scale of the weights of each layer, starting at the first hidden layer
+    private final double[] weightScales;
+    //Scale and zero point of the neurons of each layer, indexed by layer
+    private final double[] neuronScales;
+    private final int[] neuronZeroPoints;
+    private final double[] thresholds;
+    private final ActivationFunction[] activations;
+    private final LossFunction lossFunction;
+    private final ThreadLocal<int[][]> workspaces;
+
+    private QuantizedModel(int[] layerSizes, byte[] weights, double[] weightScales, double[] neuronScales, int[] neuronZeroPoints,
+            double[] thresholds, ActivationFunction[] activations, LossFunction lossFunction){
+        this.layerSizes = layerSizes;
+        this.weightsOffsets = new int[layerSizes.length];
+        this.thresholdsOffsets = new int[layerSizes.length];
+        int biggest = 0;
+        for (int i = 1; i < layerSizes.length; i++) {
+            weightsOffsets[i] = weightsOffsets[i - 1] + layerSizes[i - 1] * layerSizes[i];
+            thresholdsOffsets[i] = thresholdsOffsets[i - 1] + layerSizes[i];
+            biggest = Math.max(biggest, layerSizes[i]);
+        }
+        this.weights = weights;
+        this.weightScales = weightScales;
+        this.neuronScales = neuronScales;
+        this.neuronZeroPoints = neuronZeroPoints;
+        this.thresholds = thresholds;
+        this.activations = activations;
+        this.lossFunction = lossFunction;
+        final int biggestLayerSize = Math.max(biggest, layerSizes[0]);
+        //Accumulators, neurons of the previous layer and neurons of the current one
+        this.workspaces = ThreadLocal.withInitial(() -> new int[][]{new int[biggestLayerSize], new int[biggestLayerSize], new int[biggestLayerSize]});
+    }
+
+    /**
+     * Quantizes the current state of a perceptron whose inputs are pixels scaled
+     * from 0 to 1, as DataManager loads them. The neurons of the hidden layers
+     * are measured spreading the calibration inputs through the perceptron.
+     * Training the perceptron afterwards won't modify the model.
+     * @param perceptron The perceptron that will be quantized
+     * @param calibrationInputs Some inputs of the kind the model will be used
+     * with, a few hundred training samples are usually enough
+     * @return A new quantized model
+     */
+    public static QuantizedModel quantize(MultilayerPerceptron perceptron, double[][] calibrationInputs){
+        int[] layerSizes = perceptron.getAllLayersSize();
+        if(calibrationInputs.length == 0){
+            throw new RuntimeException("At least one calibration input is needed");
+        }
+        double[] doubleWeights = perceptron.getWeightsBuffer();
+        ActivationFunction[] activations = perceptron.getActivations();
+
+        //Weights, symmetric per layer so their zero point is 0
+        byte[] weights = new byte[doubleWeights.length];
+        double[] weightScales = new double[layerSizes.length - 1];
+        int offset = 0;
+        for (int i = 1; i < layerSizes.length; i++) {
+            int length = layerSizes[i - 1] * layerSizes[i];
+            double biggest = 0;
+            for (int j = offset; j < offset + length; j++) {
+                biggest = Math.max(biggest, Math.abs(doubleWeights[j]));
+            }
+            weightScales[i - 1] = biggest == 0 ? 1 : biggest / MAX_WEIGHT;
+            for (int j = offset; j < offset + length; j++) {
+                weights[j] = (byte) Math.round(doubleWeights[j] / weightScales[i - 1]);
+            }
+            offset += length;
+        }
+
+        //Neurons, the inputs are the raw pixels and the hidden layers are calibrated
+        double[] neuronScales = new double[layerSizes.length - 1];
+        int[] neuronZeroPoints = new int[layerSizes.length - 1];
+        neuronScales[0] = 1.0 / MAX_NEURON;
+        double[][] ranges = calibrate(perceptron, calibrationInputs);
+        for (int i = 1; i < layerSizes.length - 1; i++) {
+            double minimum = Math.min(0, ranges[i][0]);
+            double maximum = Math.max(0, ranges[i][1]);
+            neuronScales[i] = maximum == minimum ? 1 : (maximum - minimum) / MAX_NEURON;
+            neuronZeroPoints[i] = (int) Math.round(-minimum / neuronScales[i]);
+        }
+
+        return new QuantizedModel(layerSizes, weights, weightScales, neuronScales, neuronZeroPoints,
+                perceptron.getThresholdsBuffer().clone(), activations, perceptron.getLossFunction());
+    }
+
+    /**
+     *
+     * @param pixels The raw pixels of a sample, from 0 to 255, it must be the
+     * same size as the input size of this model. It is read from its position
+     * and the position isn't modified, so the buffers of IdxFile.getSampleBytes
+     * can be used directly
+     * @param outputs The array where the outputs will be written, it must be
+     * the same size as the output size of this model
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(ByteBuffer pixels, double[] outputs){
+        if(pixels.remaining() != layerSizes[0]){
+            throw new RuntimeException("The inputs passed as parameter is different in "
+                    + "size from the inputs size of this model");
+        }
+        int[][] workspace = workspaces.get();
+        int[] inputs = workspace[1];
+        int start = pixels.position();
+        for (int k = 0; k < layerSizes[0]; k++) {
+            inputs[k] = pixels.get(start + k) & 0xFF;
+        }
+        return spread(workspace, outputs);
+    }
+
+    /**
+     *
+     * @param pixels The raw pixels of a sample, from 0 to 255, it must be the
+     * same size as the input size of this model
+     * @param outputs The array where the outputs will be written, it must be
+     * the same size as the output size of this model
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(byte[] pixels, double[] outputs){
+        return predict(ByteBuffer.wrap(pixels), outputs);
+    }
+
+    /**
+     *
+     * @return An Array with all the layers size. The first one will be the input
+     * size, and the last one will be the output size.
+     */
+    public int[] getAllLayersSize(){
+        return layerSizes.clone();
+    }
+
+    public int getInputSize(){
+        return layerSizes[0];
+    }
+
+    public int getOutputSize(){
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    /**
+     *
+     * @return The number of bytes used by the weights and thresholds of this model
+     */
+    public long getParametersSize(){
+        return weights.length + (long) thresholds.length * Double.BYTES;
+    }
+
+    private double[] spread(int[][] workspace, double[] outputs){
+        if(outputs.length != layerSizes[layerSizes.length - 1]){
+            throw new RuntimeException("The output passed as parameter is different in "
+                    + "size from the output size of this model");
+        }
+        int[] accumulators = workspace[0];
+        int[] previousNeurons = workspace[1];
+        int[] currentNeurons = workspace[2];
+        int outputLayer = layerSizes.length - 1;
+        for (int i = 1; i < layerSizes.length; i++) {
+            int previousNeuronsLength = layerSizes[i - 1];
+            int currentNeuronsLength = layerSizes[i];
+            int weightsOffset = weightsOffsets[i - 1];
+            int zeroPoint = neuronZeroPoints[i - 1];
+            for (int j = 0; j < currentNeuronsLength; j++) {
+                accumulators[j] = 0;
+            }
+            //Row k of the weights holds the weights leaving neuron k, so every row is added with unit stride
+            for (int k = 0; k < previousNeuronsLength; k++) {
+                int neuron = previousNeurons[k] - zeroPoint;
+                if (neuron == 0) continue;
+                int row = weightsOffset + currentNeuronsLength * k;
+                for (int j = 0; j < currentNeuronsLength; j++) {
+                    accumulators[j] += neuron * weights[row + j];
+                }
+            }
+
+            double scale = neuronScales[i - 1] * weightScales[i - 1];
+            int thresholdsOffset = thresholdsOffsets[i - 1];
+            if (i == outputLayer) {
+                for (int j = 0; j < currentNeuronsLength; j++) {
+                    outputs[j] = accumulators[j] * scale + thresholds[thresholdsOffset + j];
+                }
+                lossFunction.activateOutputs(outputs, 0, outputs, 0, currentNeuronsLength, activations[i - 1]);
+            } else {
+                ActivationFunction activation = activations[i - 1];
+                double nextScale = neuronScales[i];
+                int nextZeroPoint = neuronZeroPoints[i];
+                for (int j = 0; j < currentNeuronsLength; j++) {
+                    double neuron = activation.activate(accumulators[j] * scale + thresholds[thresholdsOffset + j]);
+                    int quantized = (int) Math.round(neuron / nextScale) + nextZeroPoint;
+                    currentNeurons[j] = Math.max(0, Math.min(MAX_NEURON, quantized));
+                }
+                int[] swap = previousNeurons;
+                previousNeurons = currentNeurons;
+                currentNeurons = swap;
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Spreads the calibration inputs through the perceptron.
+     * @return The minimum and maximum value of the neurons of each layer, indexed by layer
+     */
+    private static double[][] calibrate(MultilayerPerceptron perceptron, double[][] calibrationInputs){
+        int[] layerSizes = perceptron.getAllLayersSize();
+        double[] weights = perceptron.getWeightsBuffer();
+        double[] thresholds = perceptron.getThresholdsBuffer();
+        ActivationFunction[] activations = perceptron.getActivations();
+        double[][] ranges = new double[layerSizes.length][];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new double[]{Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        }
+        for (double[] inputs : calibrationInputs) {
+            if(inputs.length != layerSizes[0]){
+                throw new RuntimeException("The calibration inputs are different in size "
+                        + "from the inputs size of the perceptron");
+            }
+            double[] previousNeurons = inputs;
+            int weightsOffset = 0;
+            int thresholdsOffset = 0;
+            for (int i = 1; i < layerSizes.length - 1; i++) {
+                double[] currentNeurons = new double[layerSizes[i]];
+                System.arraycopy(thresholds, thresholdsOffset, currentNeurons, 0, currentNeurons.length);
+                for (int k = 0; k < layerSizes[i - 1]; k++) {
+                    Kernels.axpy(previousNeurons[k], weights, weightsOffset + currentNeurons.length * k, currentNeurons, 0, currentNeurons.length);
+                }
+                for (int j = 0; j < currentNeurons.length; j++) {
+                    currentNeurons[j] = activations[i - 1].activate(currentNeurons[j]);
+                    ranges[i][0] = Math.min(ranges[i][0], currentNeurons[j]);
+                    ranges[i][1] = Math.max(ranges[i][1], currentNeurons[j]);
+                }
+                weightsOffset += layerSizes[i - 1] * layerSizes[i];
+                thresholdsOffset += layerSizes[i];
+                previousNeurons = currentNeurons;
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,38 @@
+package handwrittennumberidentifier;
+
+/**
+ * A group of consecutive samples read by a PrefetchingSampleStream. The arrays
+ * are reused for the next chunks once the chunk is released.
+ * @author Pablo Alonso
+ */
+public final class SampleChunk {
+    
+    final double[][] inputs;
+    final double[] labels;
+    int size;
+    
+    SampleChunk(int capacity, int inputSize){
+        inputs = new double[capacity][inputSize];
+        labels = new double[capacity];
+    }
+    
+    /**
+     *
+     * @return The inputs of the samples, only the first getSize rows are valid
+     */
+    public double[][] getInputs(){
+        return inputs;
+    }
+    
+    /**
+     *
+     * @return The labels of the samples, only the first getSize values are valid
+     */
+    public double[] getLabels(){
+        return labels;
+    }
+    
+    public int getSize(){
+        return size;
+    }
+}
@@ -0,0 +1,33 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+
+/**
+ * A data set read sequentially, so it doesn't need to fit in memory.
+ * @author Pablo Alonso
+ */
+public interface SampleSource {
+    
+    /**
+     *
+     * @return The number of inputs of each sample
+     */
+    int getInputSize();
+    
+    /**
+     * Reads the next samples of the data set.
+     * @param inputs The arrays where the inputs of the samples are written, one 
+     * per sample, each one with the input size
+     * @param labels The array where the labels of the samples are written
+     * @param maxSamples The maximum number of samples read
+     * @return The number of samples read, 0 once the end of the data set is reached
+     * @throws IOException If the data set can't be read
+     */
+    int read(double[][] inputs, double[] labels, int maxSamples) throws IOException;
+    
+    /**
+     * Goes back to the first sample of the data set.
+     * @throws IOException If the data set can't be read
+     */
+    void reset() throws IOException;
+}
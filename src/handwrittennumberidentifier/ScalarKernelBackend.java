@@ -0,0 +1,41 @@
+package handwrittennumberidentifier;
+
+/**
+ * Plain loops, which the JIT compiler may vectorize by itself. Used whenever
+ * the Vector API is not requested or not available.
+ * @author Pablo Alonso
+ */
+final class ScalarKernelBackend implements KernelBackend {
+    
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length){
+        double summation = 0;
+        for (int i = 0; i < length; i++) {
+            summation += a[aOffset + i] * b[bOffset + i];
+        }
+        return summation;
+    }
+    
+    @Override
+    public void axpy(double alpha, double[] x, int xOffset, double[] y, int yOffset, int length){
+        for (int i = 0; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+    
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length){
+        float summation = 0;
+        for (int i = 0; i < length; i++) {
+            summation += a[aOffset + i] * b[bOffset + i];
+        }
+        return summation;
+    }
+    
+    @Override
+    public void axpy(float alpha, float[] x, int xOffset, float[] y, int yOffset, int length){
+        for (int i = 0; i < length; i++) {
+            y[yOffset + i] += alpha * x[xOffset + i];
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package handwrittennumberidentifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The candidates tried by a HyperparameterSweep, either every combination of
+ * some alpha constants and hidden layers, or a random sample of them.
+ * @author Pablo Alonso
+ */
+public final class SearchSpace {
+
+    private final List<SweepCandidate> candidates;
+
+    private SearchSpace(List<SweepCandidate> candidates){
+        if(candidates.isEmpty()){
+            throw new RuntimeException("The search space has no candidates");
+        }
+        this.candidates = Collections.unmodifiableList(candidates);
+    }
+
+    /**
+     *
+     * @param alphas The alpha constants tried
+     * @param hiddenLayersSizes The hidden layers tried, one array per topology
+     * @return A search space with every alpha constant combined with every topology
+     */
+    public static SearchSpace grid(double[] alphas, int[]... hiddenLayersSizes){
+        List<SweepCandidate> candidates = new ArrayList<>();
+        for (int[] topology : hiddenLayersSizes) {
+            for (double alpha : alphas) {
+                candidates.add(new SweepCandidate(alpha, topology));
+            }
+        }
+        return new SearchSpace(candidates);
+    }
+
+    /**
+     * The alpha constants are chosen uniformly on a logarithmic scale, so 0.001
+     * to 0.01 is as likely as 0.01 to 0.1.
+     * @param minimumAlpha The smallest alpha constant
+     * @param maximumAlpha The biggest alpha constant
+     * @param numberOfCandidates The number of candidates
+     * @param seed The seed of the random numbers
+     * @param hiddenLayersSizes The hidden layers chosen from, one array per topology
+     * @return A search space with random candidates
+     */
+    public static SearchSpace random(double minimumAlpha, double maximumAlpha, int numberOfCandidates, long seed, int[]... hiddenLayersSizes){
+        if(minimumAlpha <= 0 || maximumAlpha < minimumAlpha){
+            throw new RuntimeException("The alpha constants must be above 0, and the minimum below the maximum");
+        }
+        if(hiddenLayersSizes.length == 0){
+            throw new RuntimeException("There must be at least one topology");
+        }
+        Random random = new Random(seed);
+        double logMinimum = Math.log(minimumAlpha);
+        double logMaximum = Math.log(maximumAlpha);
+        List<SweepCandidate> candidates = new ArrayList<>();
+        for (int i = 0; i < numberOfCandidates; i++) {
+            double alpha = Math.exp(logMinimum + random.nextDouble() * (logMaximum - logMinimum));
+            candidates.add(new SweepCandidate(alpha, hiddenLayersSizes[random.nextInt(hiddenLayersSizes.length)]));
+        }
+        return new SearchSpace(candidates);
+    }
+
+    public List<SweepCandidate> getCandidates(){
+        return candidates;
+    }
+
+    public int size(){
+        return candidates.size();
+    }
+}
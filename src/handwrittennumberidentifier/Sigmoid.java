@@ -7,11 +7,20 @@ package handwrittennumberidentifier;
 public class Sigmoid {
     
     public static double calculateSigmoid(double x){
-        return (1/(1+ Math.pow(Math.E, -x)));
+        return 1 / (1 + Math.exp(-x));
     }
     
     public static double calculateDerivative(double x){
         double sigmoide = calculateSigmoid(x);
         return sigmoide*(1-sigmoide);
     }
+    
+    /**
+     *
+     * @param sigmoid The value of the sigmoid at some point
+     * @return The derivative of the sigmoid at that same point
+     */
+    public static double calculateDerivativeFromSigmoid(double sigmoid){
+        return sigmoid*(1-sigmoid);
+    }
 }
@@ -0,0 +1,86 @@
+package handwrittennumberidentifier;
+
+/**
+ * The ways the sigmoid can be calculated. The faster ones give up some 
+ * precision, the maximum absolute error of each one is given in its description.
+ * All of them calculate the derivative from the stored sigmoid value.
+ * @author Pablo Alonso
+ */
+public enum SigmoidPrecision implements ActivationFunction {
+    
+    /**
+     * 1 / (1 + e^-x) using Math.exp. Exact up to the double precision.
+     */
+    EXACT(0) {
+        @Override
+        public double activate(double summation) {
+            return Sigmoid.calculateSigmoid(summation);
+        }
+    },
+    
+    /**
+     * Linear interpolation over a table of 4097 values covering [-16, 16], 
+     * plus one more so the interpolation never reads past the end; 4098 in 
+     * total. Constant outside that range. Maximum absolute error below 1e-6.
+     */
+    LOOKUP_TABLE(1e-6) {
+        @Override
+        public double activate(double summation) {
+            if (summation <= -TABLE_RANGE) return TABLE[0];
+            if (summation >= TABLE_RANGE) return TABLE[TABLE.length - 2];
+            double position = (summation + TABLE_RANGE) * TABLE_STEPS_PER_UNIT;
+            int index = (int) position;
+            double fraction = position - index;
+            return TABLE[index] + (TABLE[index + 1] - TABLE[index]) * fraction;
+        }
+    },
+    
+    /**
+     * 0.5 + 0.5 * tanh(x / 2), with tanh replaced by its 7th order rational 
+     * (continued fraction) approximation and saturated beyond |x| = 9.94. 
+     * No table and no transcendental call. Maximum absolute error below 5e-5.
+     */
+    RATIONAL(5e-5) {
+        @Override
+        public double activate(double summation) {
+            double y = summation * 0.5;
+            if (y >= RATIONAL_SATURATION) return 1;
+            if (y <= -RATIONAL_SATURATION) return 0;
+            double y2 = y * y;
+            double tanh = y * (135135 + y2 * (17325 + y2 * (378 + y2))) 
+                    / (135135 + y2 * (62370 + y2 * (3150 + y2 * 28)));
+            return 0.5 + 0.5 * tanh;
+        }
+    };
+    
+    private static final double TABLE_RANGE = 16;
+    private static final int TABLE_STEPS_PER_UNIT = 128;
+    //One extra value at the end so the interpolation of the last step never goes out of the table
+    private static final double[] TABLE = new double[(int) (2 * TABLE_RANGE * TABLE_STEPS_PER_UNIT) + 2];
+    private static final double RATIONAL_SATURATION = 4.97;
+    
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            TABLE[i] = Sigmoid.calculateSigmoid(-TABLE_RANGE + (double) i / TABLE_STEPS_PER_UNIT);
+        }
+    }
+    
+    private final double maxError;
+    
+    private SigmoidPrecision(double maxError){
+        this.maxError = maxError;
+    }
+    
+    /**
+     *
+     * @return The maximum absolute difference between this sigmoid and the exact one
+     */
+    public double getMaxError(){
+        return maxError;
+    }
+    
+    @Override
+    public double derivative(double activation) {
+        return Sigmoid.calculateDerivativeFromSigmoid(activation);
+    }
+}
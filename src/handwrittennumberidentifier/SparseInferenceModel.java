@@ -0,0 +1,310 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Read-only version of a MultilayerPerceptron that only stores the weights
+ * that aren't 0, in compressed sparse rows. Row k of a layer holds the weights
+ * leaving neuron k of the previous layer that are left, and the neuron each
+ * one goes to. Spreading an input only goes through the rows of the neurons
+ * that aren't 0, and only through the weights that are left in them, so a
+ * model with 90% of the weights pruned does about a tenth of the work of the
+ * dense one on the first layer.
+ * Like InferenceModel, a single instance can be shared by any number of threads.
+ * @author Pablo Alonso
+ */
+public final class SparseInferenceModel {
+
+    private final int[] layerSizes;
+    //Indexed by layer - 1
+    private final int[][] rowOffsets;
+    private final int[][] columns;
+    private final double[][] values;
+    private final double[][] thresholds;
+    private final ActivationFunction[] activations;
+    private final LossFunction lossFunction;
+    private final int biggestLayerSize;
+    private final ThreadLocal<InferenceWorkspace> workspaces;
+
+    /**
+     * The arrays are used as they are, they must not be modified after the
+     * creation of the model.
+     */
+    SparseInferenceModel(int[] layerSizes, int[][] rowOffsets, int[][] columns, double[][] values, double[][] thresholds,
+            ActivationFunction[] activations, LossFunction lossFunction){
+        if(activations.length != layerSizes.length - 1 || rowOffsets.length != layerSizes.length - 1
+                || columns.length != rowOffsets.length || values.length != rowOffsets.length || thresholds.length != rowOffsets.length){
+            throw new RuntimeException("There must be one set of weights, thresholds and activation function per layer besides the input layer");
+        }
+        int biggest = 0;
+        for (int i = 1; i < layerSizes.length; i++) {
+            checkLayer(layerSizes[i - 1], layerSizes[i], rowOffsets[i - 1], columns[i - 1], values[i - 1], thresholds[i - 1]);
+            biggest = Math.max(biggest, layerSizes[i]);
+        }
+        this.layerSizes = layerSizes.clone();
+        this.rowOffsets = rowOffsets;
+        this.columns = columns;
+        this.values = values;
+        this.thresholds = thresholds;
+        this.activations = activations.clone();
+        this.lossFunction = lossFunction;
+        this.biggestLayerSize = biggest;
+        this.workspaces = ThreadLocal.withInitial(this::newWorkspace);
+    }
+
+    /**
+     * Keeps the weights of the perceptron that aren't 0. Training the
+     * perceptron afterwards won't modify this model.
+     * @param perceptron The perceptron, usually one whose weights were pruned
+     * @return A new read-only model
+     */
+    public static SparseInferenceModel of(MultilayerPerceptron perceptron){
+        int[] layerSizes = perceptron.getAllLayersSize();
+        double[] weights = perceptron.getWeightsBuffer();
+        double[] perceptronThresholds = perceptron.getThresholdsBuffer();
+        int layers = layerSizes.length - 1;
+        int[][] rowOffsets = new int[layers][];
+        int[][] columns = new int[layers][];
+        double[][] values = new double[layers][];
+        double[][] thresholds = new double[layers][];
+        int weightsOffset = 0;
+        int thresholdsOffset = 0;
+        for (int i = 1; i < layerSizes.length; i++) {
+            int previousSize = layerSizes[i - 1];
+            int size = layerSizes[i];
+            int[] offsets = new int[previousSize + 1];
+            for (int k = 0; k < previousSize; k++) {
+                int nonZeros = 0;
+                for (int j = 0; j < size; j++) {
+                    if (weights[weightsOffset + k * size + j] != 0) nonZeros++;
+                }
+                offsets[k + 1] = offsets[k] + nonZeros;
+            }
+            int[] layerColumns = new int[offsets[previousSize]];
+            double[] layerValues = new double[layerColumns.length];
+            int position = 0;
+            for (int k = 0; k < previousSize; k++) {
+                for (int j = 0; j < size; j++) {
+                    double weight = weights[weightsOffset + k * size + j];
+                    if (weight != 0) {
+                        layerColumns[position] = j;
+                        layerValues[position++] = weight;
+                    }
+                }
+            }
+            rowOffsets[i - 1] = offsets;
+            columns[i - 1] = layerColumns;
+            values[i - 1] = layerValues;
+            thresholds[i - 1] = new double[size];
+            System.arraycopy(perceptronThresholds, thresholdsOffset, thresholds[i - 1], 0, size);
+            weightsOffset += previousSize * size;
+            thresholdsOffset += size;
+        }
+        return new SparseInferenceModel(layerSizes, rowOffsets, columns, values, thresholds, perceptron.getActivations(), perceptron.getLossFunction());
+    }
+
+    /**
+     * Removes the given fraction of the weights with the smallest absolute
+     * value from every layer but the output one, without training again.
+     * The perceptron isn't modified.
+     * @param perceptron The perceptron that will be pruned
+     * @param sparsity The fraction of the weights removed, from 0 to 1
+     * @return A new read-only model
+     */
+    public static SparseInferenceModel prune(MultilayerPerceptron perceptron, double sparsity){
+        MultilayerPerceptron pruned = perceptron.copy();
+        double[] sparsities = MagnitudePruning.hiddenLayersSparsities(perceptron.getAllLayersSize().length, sparsity);
+        MagnitudePruning.apply(pruned.getWeightsBuffer(), MagnitudePruning.prunedWeights(pruned, sparsities));
+        return of(pruned);
+    }
+
+    /**
+     * Reads a model written with save.
+     * @param path The file
+     * @return A new read-only model
+     * @throws IOException If the file can't be read or it isn't a valid sparse model
+     */
+    public static SparseInferenceModel load(Path path) throws IOException {
+        return SparseModelFormat.read(path);
+    }
+
+    /**
+     * Writes this model in the format described in SparseModelFormat.
+     * @param path The new file, it must not exist
+     * @throws IOException If the file can't be written
+     */
+    public void save(Path path) throws IOException {
+        SparseModelFormat.write(this, path);
+    }
+
+    /**
+     *
+     * @return A new workspace for this model, to be used by a single thread
+     */
+    public InferenceWorkspace newWorkspace(){
+        return new InferenceWorkspace(biggestLayerSize);
+    }
+
+    /**
+     * Spreads the inputs using a workspace owned by the calling thread.
+     * @param inputs The inputs, it must be the same size as the input size of this model
+     * @param outputs The array where the outputs will be written, it must be
+     * the same size as the output size of this model
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(double[] inputs, double[] outputs){
+        return predict(inputs, outputs, workspaces.get());
+    }
+
+    /**
+     *
+     * @param inputs The inputs, it must be the same size as the input size of this model
+     * @param outputs The array where the outputs will be written, it must be
+     * the same size as the output size of this model
+     * @param workspace A workspace created by this model, not used by any other
+     * thread at the same time
+     * @return The outputs array passed as parameter
+     */
+    public double[] predict(double[] inputs, double[] outputs, InferenceWorkspace workspace){
+        if(inputs.length != layerSizes[0]){
+            throw new RuntimeException("The inputs passed as parameter is different in "
+                    + "size from the inputs size of this model");
+        }
+        if(outputs.length != layerSizes[layerSizes.length - 1]){
+            throw new RuntimeException("The output passed as parameter is different in "
+                    + "size from the output size of this model");
+        }
+        if(workspace.currentLayer.length < biggestLayerSize){
+            throw new RuntimeException("The workspace passed as parameter wasn't created by this model");
+        }
+        double[] previousNeurons = inputs;
+        double[] currentNeurons = workspace.currentLayer;
+        double[] spareNeurons = workspace.nextLayer;
+        for (int i = 1; i < layerSizes.length; i++) {
+            if (i == layerSizes.length - 1) currentNeurons = outputs;
+            spreadLayer(i, previousNeurons, currentNeurons);
+            previousNeurons = currentNeurons;
+            currentNeurons = spareNeurons;
+            spareNeurons = previousNeurons;
+        }
+        return outputs;
+    }
+
+    /**
+     *
+     * @return An Array with all the layers size. The first one will be the input
+     * size, and the last one will be the output size.
+     */
+    public int[] getAllLayersSize(){
+        return layerSizes.clone();
+    }
+
+    public int getInputSize(){
+        return layerSizes[0];
+    }
+
+    public int getOutputSize(){
+        return layerSizes[layerSizes.length - 1];
+    }
+
+    public ActivationFunction[] getActivations(){
+        return activations.clone();
+    }
+
+    public LossFunction getLossFunction(){
+        return lossFunction;
+    }
+
+    /**
+     *
+     * @return The number of weights left in every layer
+     */
+    public long getNonZeroWeights(){
+        long nonZeros = 0;
+        for (double[] layerValues : values) {
+            nonZeros += layerValues.length;
+        }
+        return nonZeros;
+    }
+
+    /**
+     *
+     * @param layer The layer, from 1 to the output layer
+     * @return The fraction of the weights of the layer that were removed
+     */
+    public double getSparsity(int layer){
+        long dense = (long) layerSizes[layer - 1] * layerSizes[layer];
+        return dense == 0 ? 0 : 1 - values[layer - 1].length / (double) dense;
+    }
+
+    /**
+     *
+     * @return The bytes taken by the weights, their rows and columns and the thresholds
+     */
+    public long getParametersSize(){
+        long size = 0;
+        for (int i = 0; i < values.length; i++) {
+            size += 8L * values[i].length + 4L * columns[i].length + 4L * rowOffsets[i].length + 8L * thresholds[i].length;
+        }
+        return size;
+    }
+
+    int[] getRowOffsets(int layer){
+        return rowOffsets[layer - 1];
+    }
+
+    int[] getColumns(int layer){
+        return columns[layer - 1];
+    }
+
+    double[] getValues(int layer){
+        return values[layer - 1];
+    }
+
+    double[] getThresholds(int layer){
+        return thresholds[layer - 1];
+    }
+
+    private void spreadLayer(int layer, double[] previousNeurons, double[] currentNeurons){
+        int[] offsets = rowOffsets[layer - 1];
+        int[] layerColumns = columns[layer - 1];
+        double[] layerValues = values[layer - 1];
+        int previousNeuronsLength = layerSizes[layer - 1];
+        int currentNeuronsLength = layerSizes[layer];
+        ActivationFunction activation = activations[layer - 1];
+        System.arraycopy(thresholds[layer - 1], 0, currentNeurons, 0, currentNeuronsLength);
+        for (int k = 0; k < previousNeuronsLength; k++) {
+            double neuron = previousNeurons[k];
+            //Most pixels and many ReLU neurons are 0, their rows add nothing
+            if (neuron == 0) continue;
+            for (int p = offsets[k]; p < offsets[k + 1]; p++) {
+                currentNeurons[layerColumns[p]] += layerValues[p] * neuron;
+            }
+        }
+        if (layer == layerSizes.length - 1) {
+            lossFunction.activateOutputs(currentNeurons, 0, currentNeurons, 0, currentNeuronsLength, activation);
+        } else {
+            for (int j = 0; j < currentNeuronsLength; j++) {
+                currentNeurons[j] = activation.activate(currentNeurons[j]);
+            }
+        }
+    }
+
+    private static void checkLayer(int previousSize, int size, int[] offsets, int[] layerColumns, double[] layerValues, double[] layerThresholds){
+        if(offsets.length != previousSize + 1 || offsets[0] != 0 || offsets[previousSize] != layerValues.length
+                || layerColumns.length != layerValues.length || layerThresholds.length != size){
+            throw new RuntimeException("The rows of the sparse weights don't match the layers sizes");
+        }
+        for (int k = 0; k < previousSize; k++) {
+            if(offsets[k + 1] < offsets[k]){
+                throw new RuntimeException("The rows of the sparse weights must be in order");
+            }
+        }
+        for (int column : layerColumns) {
+            if(column < 0 || column >= size){
+                throw new RuntimeException("A sparse weight goes to a neuron outside its layer");
+            }
+        }
+    }
+}
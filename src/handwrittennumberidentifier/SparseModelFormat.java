@@ -0,0 +1,160 @@
+package handwrittennumberidentifier;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * File format of a SparseInferenceModel. Everything is little-endian:
+ * <pre>
+ * int    magic number, the characters "MLSP"
+ * int    version
+ * int    number of layers, followed by an int with the size of each layer
+ * string loss function, followed by one string per activation function. Each
+ *        string is a short with its length and its UTF-8 bytes
+ * For every layer but the input one:
+ *   int    number of weights left
+ *   int    offset of each row of weights, one per neuron of the previous layer
+ *          plus the end of the last row
+ *   int    neuron each weight goes to
+ *   double weights
+ *   double thresholds
+ * long   CRC32 of everything before it
+ * </pre>
+ * @author Pablo Alonso
+ */
+final class SparseModelFormat {
+
+    //"MLPS" is taken by the state files of Checkpointer
+    static final int MAGIC_NUMBER = 0x50534C4D;
+    static final int VERSION = 1;
+
+    private SparseModelFormat(){
+    }
+
+    static void write(SparseInferenceModel model, Path path) throws IOException {
+        int[] layerSizes = model.getAllLayersSize();
+        ActivationFunction[] activations = model.getActivations();
+        byte[] lossFunction = model.getLossFunction().name().getBytes(StandardCharsets.UTF_8);
+        byte[][] activationNames = new byte[activations.length][];
+        long length = 4 + 4 + 4 + 4L * layerSizes.length + 2 + lossFunction.length + 8;
+        for (int i = 0; i < activations.length; i++) {
+            activationNames[i] = activations[i].name().getBytes(StandardCharsets.UTF_8);
+            length += 2 + activationNames[i].length;
+        }
+        for (int i = 1; i < layerSizes.length; i++) {
+            length += 4 + 4L * model.getRowOffsets(i).length + 12L * model.getValues(i).length + 8L * layerSizes[i];
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("The model is too big for the sparse format");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC_NUMBER);
+        buffer.putInt(VERSION);
+        buffer.putInt(layerSizes.length);
+        for (int size : layerSizes) {
+            buffer.putInt(size);
+        }
+        buffer.putShort((short) lossFunction.length).put(lossFunction);
+        for (byte[] name : activationNames) {
+            buffer.putShort((short) name.length).put(name);
+        }
+        for (int i = 1; i < layerSizes.length; i++) {
+            double[] values = model.getValues(i);
+            buffer.putInt(values.length);
+            for (int offset : model.getRowOffsets(i)) {
+                buffer.putInt(offset);
+            }
+            for (int column : model.getColumns(i)) {
+                buffer.putInt(column);
+            }
+            for (double value : values) {
+                buffer.putDouble(value);
+            }
+            for (double threshold : model.getThresholds(i)) {
+                buffer.putDouble(threshold);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    static SparseInferenceModel read(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer file = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.length < 20 || file.getInt() != MAGIC_NUMBER) {
+            throw new IOException(path + " is not a sparse perceptron file");
+        }
+        int version = file.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sparse perceptron version " + version + " in " + path);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 8, 8).order(ByteOrder.LITTLE_ENDIAN).getLong()) {
+            throw new IOException("The checksum of " + path + " doesn't match, the file is corrupted");
+        }
+        try {
+            int[] layerSizes = new int[file.getInt()];
+            for (int i = 0; i < layerSizes.length; i++) {
+                layerSizes[i] = file.getInt();
+            }
+            LossFunction lossFunction = LossFunction.valueOf(readString(file));
+            ActivationFunction[] activations = new ActivationFunction[layerSizes.length - 1];
+            for (int i = 0; i < activations.length; i++) {
+                activations[i] = ActivationFunction.forName(readString(file));
+            }
+            int layers = layerSizes.length - 1;
+            int[][] rowOffsets = new int[layers][];
+            int[][] columns = new int[layers][];
+            double[][] values = new double[layers][];
+            double[][] thresholds = new double[layers][];
+            for (int i = 0; i < layers; i++) {
+                int nonZeros = file.getInt();
+                rowOffsets[i] = new int[layerSizes[i] + 1];
+                file.asIntBuffer().get(rowOffsets[i]);
+                file.position(file.position() + 4 * rowOffsets[i].length);
+                columns[i] = new int[nonZeros];
+                file.asIntBuffer().get(columns[i]);
+                file.position(file.position() + 4 * nonZeros);
+                values[i] = new double[nonZeros];
+                file.asDoubleBuffer().get(values[i]);
+                file.position(file.position() + 8 * nonZeros);
+                thresholds[i] = new double[layerSizes[i + 1]];
+                file.asDoubleBuffer().get(thresholds[i]);
+                file.position(file.position() + 8 * thresholds[i].length);
+            }
+            if (file.remaining() != 8) {
+                throw new IOException(path + " has " + (file.remaining() - 8) + " bytes more than its layers");
+            }
+            return new SparseInferenceModel(layerSizes, rowOffsets, columns, values, thresholds, activations, lossFunction);
+        } catch (BufferUnderflowException ex) {
+            throw new IOException(path + " is shorter than its layers", ex);
+        } catch (RuntimeException ex) {
+            throw new IOException(path + " is not a valid sparse perceptron: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
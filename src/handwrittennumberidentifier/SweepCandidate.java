@@ -0,0 +1,64 @@
+package handwrittennumberidentifier;
+
+/**
+ * One combination of hyperparameters tried by a HyperparameterSweep.
+ * @author Pablo Alonso
+ */
+public final class SweepCandidate {
+
+    private final double alpha;
+    private final int[] hiddenLayersSizes;
+
+    /**
+     *
+     * @param alpha The Alpha constant of the perceptron
+     * @param hiddenLayersSizes The sizes of the hidden layers of the perceptron
+     */
+    public SweepCandidate(double alpha, int... hiddenLayersSizes){
+        if(alpha <= 0){
+            throw new RuntimeException("The alpha constant must be above 0");
+        }
+        this.alpha = alpha;
+        this.hiddenLayersSizes = hiddenLayersSizes.clone();
+    }
+
+    public double getAlpha(){
+        return alpha;
+    }
+
+    public int[] getHiddenLayersSizes(){
+        return hiddenLayersSizes.clone();
+    }
+
+    /**
+     *
+     * @param inputSize The number of inputs of the perceptron
+     * @param outputSize The number of outputs of the perceptron
+     * @return The number of weights and thresholds of the perceptron
+     */
+    long getParameters(int inputSize, int outputSize){
+        long parameters = 0;
+        int previous = inputSize;
+        for (int size : hiddenLayersSizes) {
+            parameters += (long) previous * size + size;
+            previous = size;
+        }
+        return parameters + (long) previous * outputSize + outputSize;
+    }
+
+    /**
+     *
+     * @return For instance "alpha 0.05 hidden 128-64", the name of a perceptron
+     * without hidden layers ends in "hidden none"
+     */
+    @Override
+    public String toString(){
+        StringBuilder text = new StringBuilder("alpha ").append(alpha).append(" hidden ");
+        if (hiddenLayersSizes.length == 0) text.append("none");
+        for (int i = 0; i < hiddenLayersSizes.length; i++) {
+            if (i > 0) text.append("-");
+            text.append(hiddenLayersSizes[i]);
+        }
+        return text.toString();
+    }
+}
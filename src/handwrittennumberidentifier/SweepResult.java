@@ -0,0 +1,96 @@
+package handwrittennumberidentifier;
+
+/**
+ * What happened to a candidate of a HyperparameterSweep: the accuracy on the
+ * validation samples after each round of cycles, whether it was pruned, and
+ * the name it was saved with if it was one of the winners.
+ * @author Pablo Alonso
+ */
+public final class SweepResult {
+
+    private final SweepCandidate candidate;
+    private final double[] validationAccuracies;
+    private final int completedCycles;
+    private final boolean pruned;
+    private final String savedName;
+    private final int testDataHits;
+    private final int trainingDataHits;
+
+    SweepResult(SweepCandidate candidate, double[] validationAccuracies, int completedCycles, boolean pruned,
+            String savedName, int testDataHits, int trainingDataHits){
+        this.candidate = candidate;
+        this.validationAccuracies = validationAccuracies;
+        this.completedCycles = completedCycles;
+        this.pruned = pruned;
+        this.savedName = savedName;
+        this.testDataHits = testDataHits;
+        this.trainingDataHits = trainingDataHits;
+    }
+
+    public SweepCandidate getCandidate(){
+        return candidate;
+    }
+
+    /**
+     *
+     * @return The accuracy on the validation samples after each round
+     */
+    public double[] getValidationAccuracies(){
+        return validationAccuracies.clone();
+    }
+
+    /**
+     *
+     * @return The accuracy on the validation samples after the last cycle
+     * trained, or 0 if it wasn't trained
+     */
+    public double getValidationAccuracy(){
+        return validationAccuracies.length == 0 ? 0 : validationAccuracies[validationAccuracies.length - 1];
+    }
+
+    public int getCompletedCycles(){
+        return completedCycles;
+    }
+
+    /**
+     *
+     * @return true if the training stopped before the last cycle because the
+     * candidate was behind the others
+     */
+    public boolean isPruned(){
+        return pruned;
+    }
+
+    /**
+     *
+     * @return The name the perceptron was saved with, or null if it wasn't saved
+     */
+    public String getSavedName(){
+        return savedName;
+    }
+
+    /**
+     *
+     * @return The hits on the test data set, or -1 if the perceptron wasn't saved
+     */
+    public int getTestDataHits(){
+        return testDataHits;
+    }
+
+    /**
+     *
+     * @return The hits on the training data set, or -1 if the perceptron wasn't saved
+     */
+    public int getTrainingDataHits(){
+        return trainingDataHits;
+    }
+
+    @Override
+    public String toString(){
+        return "Candidate: " + candidate + ", Cycles: " + completedCycles
+                + String.format(", Validation Accuracy: %.4f", getValidationAccuracy())
+                + (pruned ? ", Pruned" : "")
+                + (savedName != null ? ", Test Data Hits: " + testDataHits + ", Training Data Hits: " + trainingDataHits
+                        + ", Saved As: " + savedName : "");
+    }
+}
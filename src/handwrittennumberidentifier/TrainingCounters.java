@@ -0,0 +1,35 @@
+package handwrittennumberidentifier;
+
+/**
+ * Time spent on each phase of the training and loss of the samples trained
+ * since the counters were reset. They are filled by the perceptrons and the 
+ * ParallelTrainer when they are given one, and read by TrainingTelemetry.
+ * @author Pablo Alonso
+ */
+final class TrainingCounters {
+    
+    long samples;
+    //Spreading the inputs through the net
+    long forwardNanos;
+    //Calculating the deltas and the gradients
+    long deltaNanos;
+    //Updating the weights and thresholds
+    long updateNanos;
+    double lossSum;
+    
+    void add(TrainingCounters other){
+        samples += other.samples;
+        forwardNanos += other.forwardNanos;
+        deltaNanos += other.deltaNanos;
+        updateNanos += other.updateNanos;
+        lossSum += other.lossSum;
+    }
+    
+    void reset(){
+        samples = 0;
+        forwardNanos = 0;
+        deltaNanos = 0;
+        updateNanos = 0;
+        lossSum = 0;
+    }
+}
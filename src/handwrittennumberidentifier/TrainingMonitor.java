@@ -0,0 +1,132 @@
+package handwrittennumberidentifier;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps the last metrics of the training so they can be inspected live through
+ * JMX, once the monitor is registered. The batch attributes are the ones of the
+ * last batch and the rest are the ones of the last finished cycle.
+ * @author Pablo Alonso
+ */
+public class TrainingMonitor implements MetricsListener, TrainingMonitorMBean {
+    
+    public static final String OBJECT_NAME = "handwrittennumberidentifier:type=TrainingMonitor";
+    
+    private volatile long batch;
+    private volatile long samplesTrained;
+    private volatile double samplesPerSecond;
+    private volatile double lastBatchLoss = Double.NaN;
+    private volatile CycleMetrics lastCycle;
+    
+    /**
+     * Registers this monitor in the platform MBean server with OBJECT_NAME.
+     */
+    public void register(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException ex) {
+            throw new RuntimeException("The training monitor can't be registered", ex);
+        }
+    }
+    
+    public void unregister(){
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            throw new RuntimeException("The training monitor can't be unregistered", ex);
+        }
+    }
+    
+    @Override
+    public void batchFinished(BatchMetrics metrics){
+        batch = metrics.getBatch();
+        samplesTrained += metrics.getSamples();
+        samplesPerSecond = metrics.getSamplesPerSecond();
+        lastBatchLoss = metrics.getLoss();
+    }
+    
+    @Override
+    public void cycleFinished(CycleMetrics metrics){
+        lastCycle = metrics;
+    }
+
+    @Override
+    public int getCycle() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? -1 : cycle.getCycle();
+    }
+
+    @Override
+    public long getBatch() {
+        return batch;
+    }
+
+    @Override
+    public long getSamplesTrained() {
+        return samplesTrained;
+    }
+
+    @Override
+    public double getSamplesPerSecond() {
+        return samplesPerSecond;
+    }
+
+    @Override
+    public double getLastBatchLoss() {
+        return lastBatchLoss;
+    }
+
+    @Override
+    public double getLastCycleLoss() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? Double.NaN : cycle.getLoss();
+    }
+
+    @Override
+    public double getTrainingAccuracy() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? Double.NaN : cycle.getTrainingAccuracy();
+    }
+
+    @Override
+    public double getTestAccuracy() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? Double.NaN : cycle.getTestAccuracy();
+    }
+
+    @Override
+    public double getForwardMillis() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? 0 : cycle.getForwardNanos() / 1e6;
+    }
+
+    @Override
+    public double getDeltaMillis() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? 0 : cycle.getDeltaNanos() / 1e6;
+    }
+
+    @Override
+    public double getUpdateMillis() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? 0 : cycle.getUpdateNanos() / 1e6;
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? 0 : cycle.getAllocatedBytes();
+    }
+
+    @Override
+    public long getGarbageCollections() {
+        CycleMetrics cycle = lastCycle;
+        return cycle == null ? 0 : cycle.getGarbageCollections();
+    }
+}
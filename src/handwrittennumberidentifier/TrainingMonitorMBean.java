@@ -0,0 +1,34 @@
+package handwrittennumberidentifier;
+
+/**
+ * The attributes of TrainingMonitor shown by JMX clients such as JConsole.
+ * @author Pablo Alonso
+ */
+public interface TrainingMonitorMBean {
+    
+    int getCycle();
+    
+    long getBatch();
+    
+    long getSamplesTrained();
+    
+    double getSamplesPerSecond();
+    
+    double getLastBatchLoss();
+    
+    double getLastCycleLoss();
+    
+    double getTrainingAccuracy();
+    
+    double getTestAccuracy();
+    
+    double getForwardMillis();
+    
+    double getDeltaMillis();
+    
+    double getUpdateMillis();
+    
+    long getAllocatedBytes();
+    
+    long getGarbageCollections();
+}
@@ -0,0 +1,108 @@
+package handwrittennumberidentifier;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Turns the counters filled by the trainers into BatchMetrics and CycleMetrics,
+ * and hands them to the listeners. Used by the training thread only.
+ * @author Pablo Alonso
+ */
+final class TrainingTelemetry {
+    
+    private final List<MetricsListener> listeners;
+    //Filled by the trainers during each batch
+    private final TrainingCounters batchCounters = new TrainingCounters();
+    private final TrainingCounters cycleCounters = new TrainingCounters();
+    private int cycle;
+    private long batch;
+    private long cycleStart;
+    private long batchStart;
+    private long trainingNanos;
+    private long allocatedBytesAtStart;
+    private long garbageCollectionsAtStart;
+    private long garbageCollectionMillisAtStart;
+    
+    TrainingTelemetry(List<MetricsListener> listeners){
+        this.listeners = listeners;
+    }
+    
+    TrainingCounters getBatchCounters(){
+        return batchCounters;
+    }
+    
+    void startCycle(int cycle){
+        this.cycle = cycle;
+        batch = 0;
+        trainingNanos = 0;
+        batchCounters.reset();
+        cycleCounters.reset();
+        allocatedBytesAtStart = allocatedBytes();
+        garbageCollectionsAtStart = garbageCollections();
+        garbageCollectionMillisAtStart = garbageCollectionMillis();
+        cycleStart = System.nanoTime();
+        batchStart = cycleStart;
+    }
+    
+    /**
+     * Called after every update of the perceptron.
+     */
+    void batchFinished(){
+        long now = System.nanoTime();
+        BatchMetrics metrics = new BatchMetrics(cycle, batch, batchCounters, now - batchStart);
+        for (MetricsListener listener : listeners) {
+            listener.batchFinished(metrics);
+        }
+        cycleCounters.add(batchCounters);
+        batchCounters.reset();
+        batch++;
+        batchStart = System.nanoTime();
+    }
+    
+    /**
+     * Called when the training of the cycle ends, before the evaluation.
+     */
+    void trainingFinished(){
+        trainingNanos = System.nanoTime() - cycleStart;
+    }
+    
+    void cycleFinished(EvaluationResult trainingData, EvaluationResult testData){
+        long evaluationNanos = System.nanoTime() - cycleStart - trainingNanos;
+        long allocated = allocatedBytes();
+        CycleMetrics metrics = new CycleMetrics(cycle, cycleCounters, trainingNanos, evaluationNanos, trainingData, testData, 
+                allocated < 0 ? -1 : allocated - allocatedBytesAtStart, garbageCollections() - garbageCollectionsAtStart, 
+                garbageCollectionMillis() - garbageCollectionMillisAtStart);
+        for (MetricsListener listener : listeners) {
+            listener.cycleFinished(metrics);
+        }
+    }
+    
+    private static long allocatedBytes(){
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspotThreads = (com.sun.management.ThreadMXBean) threads;
+            if (hotspotThreads.isThreadAllocatedMemorySupported() && hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+                return hotspotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+    
+    private static long garbageCollections(){
+        long collections = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+        }
+        return collections;
+    }
+    
+    private static long garbageCollectionMillis(){
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}